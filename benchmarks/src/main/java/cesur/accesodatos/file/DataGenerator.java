@@ -0,0 +1,100 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic data files in the "empresa.txt" format, used by the benchmarks.
+ * Employees get the IDs 1..n and are spread over the departments; department IDs are 10, 20, 30...
+ * The same seed always generates the same file.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class DataGenerator {
+    /**
+     * SURNAMES, POSITIONS, CITIES -> Values used for the text fields.
+     */
+    private static final String[] SURNAMES = {"García", "López", "Pérez", "González", "Vázquez", "Sánchez", "Fernández",
+            "Álvarez", "Martínez", "Hernández", "Ruiz", "Jiménez", "Moreno", "Muñoz", "Romero", "Navarro"};
+    private static final String[] POSITIONS = {"Dependiente", "Vendedor", "Responsable", "Presidente", "Analista", "Técnico"};
+    private static final String[] CITIES = {"Madrid", "Barcelona", "Alicante", "Valencia", "Sevilla", "Bilbao", "Palma"};
+    /**
+     * SEED -> Default seed of the random values.
+     */
+    static final long SEED = 42;
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private DataGenerator() {
+    }
+
+    /**
+     * Writes a data file with the given number of records. The file is replaced if it exists.
+     * @param file Path of the file to write.
+     * @param employees Number of employees.
+     * @param departments Number of departments (at least 1).
+     * @param seed Seed of the random values.
+     * @throws IOException If the file can't be written.
+     */
+    public static void generate(Path file, int employees, int departments, long seed) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        Files.deleteIfExists(file);
+        try (BatchAppender out = new BatchAppender(file)) {
+            out.append("-- departments: department(id,name,city).");
+            for (int i = 1; i <= departments; i++) {
+                out.append(new Department(i * 10, "Departamento" + i, CITIES[random.nextInt(CITIES.length)]));
+            }
+            out.append("-- employees: employee(id,surname,job,department_id).");
+            for (int i = 1; i <= employees; i++) {
+                out.append(new Employee(i, SURNAMES[random.nextInt(SURNAMES.length)], POSITIONS[random.nextInt(POSITIONS.length)],
+                        (random.nextInt(departments) + 1) * 10));
+            }
+        }
+    }
+
+    /**
+     * Writes a cached copy of a generated file: if a file with the same parameters was already generated in the
+     * directory, it is reused, so big files are only generated once.
+     * @param directory Directory of the generated files.
+     * @param employees Number of employees.
+     * @param departments Number of departments.
+     * @return Path of the generated file.
+     * @throws IOException If the file can't be written.
+     */
+    public static Path cached(Path directory, int employees, int departments) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("empresa-" + employees + "-" + departments + ".txt");
+        if (!Files.exists(file)) {
+            Path temp = directory.resolve(file.getFileName() + ".tmp");
+            generate(temp, employees, departments, SEED);
+            Files.move(temp, file);
+        }
+        return file;
+    }
+
+    /**
+     * Command line entry point.
+     * Usage: {@code DataGenerator <file> <employees> [departments]}.
+     * @param args Target file, number of employees and optional number of departments (100 by default).
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: DataGenerator <file> <employees> [departments]");
+            return;
+        }
+        try {
+            int employees = Integer.parseInt(args[1]);
+            int departments = args.length == 3 ? Integer.parseInt(args[2]) : 100;
+            generate(Paths.get(args[0]), employees, departments, SEED);
+            System.out.println("File generated: " + args[0]);
+        } catch (NumberFormatException e) {
+            System.err.println("ERROR: The number of records must be an integer");
+        } catch (IOException e) {
+            System.err.println("ERROR: An error occurred while writing the file: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package cesur.accesodatos.file;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the {@link IDAO} operations of {@link FileDAO} for data files of 10^3 to 10^7 employees, in every
+ * storage configuration. Data files are generated by {@link DataGenerator} once and reused between runs; every
+ * measurement iteration starts from a fresh copy, so write benchmarks don't make the file grow without limit.
+ *
+ * Run with the allocation profiler: {@code java -jar target/benchmarks.jar -prof gc}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileDAOBenchmark {
+    /**
+     * DEPARTMENTS -> Number of departments of the generated files.
+     */
+    static final int DEPARTMENTS = 100;
+    /**
+     * UPDATE_BATCH -> Number of employees changed by {@link #updateEmployees()}.
+     */
+    static final int UPDATE_BATCH = 100;
+    /**
+     * UPDATE_INPUT -> Answers given to the interactive update of an employee (last name, job and department ID).
+     */
+    private static final byte[] UPDATE_INPUT = "Benchmark\nAnalista\n10\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Number of employees of the data file.
+     */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int records;
+    /**
+     * Storage configuration: "REWRITE" (cache disabled), "REWRITE_CACHED", "APPEND_LOG" or "JOURNALED".
+     */
+    @Param({"REWRITE", "REWRITE_CACHED", "APPEND_LOG", "JOURNALED"})
+    public String configuration;
+
+    /**
+     * Generated data file, copied to {@link #work} before every iteration.
+     */
+    private Path source;
+    /**
+     * Data file used by the DAO.
+     */
+    private Path work;
+    private FileDAO dao;
+    private SplittableRandom random;
+    /**
+     * Next ID used by {@link #addEmployee()}.
+     */
+    private int nextId;
+    private InputStream originalIn;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        source = DataGenerator.cached(Paths.get(System.getProperty("java.io.tmpdir"), "filedao-benchmarks"), records, DEPARTMENTS);
+        work = Files.createTempFile("empresa-benchmark", ".txt");
+        // The update methods are interactive, they read their answers from System.in through the DAO's Scanner
+        originalIn = System.in;
+        System.setIn(new RepeatingInputStream(UPDATE_INPUT));
+        // Silence the messages the DAO prints on every operation
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        dao = new FileDAO(work.toString());
+        switch (configuration) {
+            case "REWRITE" -> dao.setCacheEnabled(false);
+            case "REWRITE_CACHED" -> dao.setCacheEnabled(true);
+            case "APPEND_LOG" -> dao.setStorageMode(StorageMode.APPEND_LOG);
+            case "JOURNALED" -> dao.setStorageMode(StorageMode.JOURNALED);
+            default -> throw new IllegalArgumentException("Unknown configuration: " + configuration);
+        }
+        random = new SplittableRandom(DataGenerator.SEED);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        dao.closeConnection(); // The copy replaces the file without the file locks, the open handles must not be reused
+        Files.copy(source, work, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(WriteAheadJournal.journalPath(work)); // The changes of the last iteration must not be replayed
+        nextId = records + 1;
+        dao.findEmployeeById(1); // Loads the index again when the cache is enabled
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() throws IOException {
+        dao.closeConnection();
+        System.setIn(originalIn);
+        System.setOut(originalOut);
+        Files.deleteIfExists(work);
+        Files.deleteIfExists(WriteAheadJournal.journalPath(work));
+    }
+
+    /**
+     * Gets a random ID of an employee of the generated file.
+     * @return Employee ID.
+     */
+    int randomEmployeeId() {
+        return random.nextInt(records) + 1;
+    }
+
+    @Benchmark
+    public List<Employee> findAllEmployees() {
+        return dao.findAllEmployees();
+    }
+
+    @Benchmark
+    public Employee findEmployeeById() {
+        return dao.findEmployeeById(randomEmployeeId());
+    }
+
+    @Benchmark
+    public List<Employee> findEmployeesByDept() {
+        return dao.findEmployeesByDept((random.nextInt(DEPARTMENTS) + 1) * 10);
+    }
+
+    @Benchmark
+    public void addEmployee() {
+        dao.addEmployee(new Employee(nextId++, "Benchmark", "Analista", 10));
+    }
+
+    @Benchmark
+    public Employee updateEmployee() {
+        return dao.updateEmployee(randomEmployeeId());
+    }
+
+    /**
+     * Updates {@link #UPDATE_BATCH} random employees with a single batch.
+     * @return Updated employees.
+     */
+    @Benchmark
+    public List<Employee> updateEmployees() {
+        List<Employee> batch = new ArrayList<>(UPDATE_BATCH);
+        for (int i = 0; i < UPDATE_BATCH; i++) {
+            batch.add(new Employee(randomEmployeeId(), "Benchmark", "Analista", 10));
+        }
+        return dao.updateEmployees(batch);
+    }
+
+    /**
+     * Deletes a random employee. The deleted employee is added back before the next invocation (not measured), so
+     * every invocation deletes an existing record.
+     * @param deletion State with the last deleted employee.
+     * @return Deleted employee.
+     */
+    @Benchmark
+    public Employee deleteEmployee(Deletion deletion) {
+        deletion.deleted = dao.deleteEmployee(randomEmployeeId());
+        return deletion.deleted;
+    }
+
+    /**
+     * State of {@link #deleteEmployee(Deletion)} that restores the deleted employee between invocations.
+     */
+    @State(Scope.Thread)
+    public static class Deletion {
+        Employee deleted;
+
+        @Setup(Level.Invocation)
+        public void restore(FileDAOBenchmark benchmark) {
+            if (deleted != null) {
+                benchmark.dao.addEmployee(deleted);
+                deleted = null;
+            }
+        }
+    }
+
+    /**
+     * Input stream that repeats the same bytes forever.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xFF;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                buffer[offset + i] = (byte) read();
+            }
+            return length;
+        }
+    }
+}
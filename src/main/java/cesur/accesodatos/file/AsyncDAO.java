@@ -0,0 +1,311 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * {@link AsyncIDAO} on top of any blocking {@link IDAO} ({@link FileDAO}, {@link BinaryFileDAO} or {@link ShardedFileDAO}).
+ * Every operation runs in its own virtual thread, so thousands of pending operations only cost a few KB each instead
+ * of a platform thread: while an operation waits for a lock or for the disk, its carrier thread runs other operations.
+ * The wrapped DAO is already thread-safe, so operations run in parallel as far as its locks allow.
+ *
+ * Optionally the number of operations that use the DAO at the same time can be limited; the rest wait (in their
+ * virtual threads) for a free slot, so a burst of requests doesn't start thousands of file scans at once.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class AsyncDAO implements AsyncIDAO, AutoCloseable {
+    /**
+     * IMPORT_BATCH_SIZE -> Number of records parsed before they are handed to the writer in {@link #importAsync(Path)}.
+     */
+    static final int IMPORT_BATCH_SIZE = 10000;
+    /**
+     * IMPORT_PIPELINE_DEPTH -> Number of parsed batches that may wait for the writer, so the parser doesn't get too far ahead.
+     */
+    static final int IMPORT_PIPELINE_DEPTH = 4;
+    /**
+     * Marker of the end of the source file in the import pipeline.
+     */
+    private static final List<Object> END_OF_SOURCE = new ArrayList<>();
+
+    /**
+     * Blocking DAO that runs the operations.
+     */
+    private final IDAO dao;
+    /**
+     * Executor that starts a new virtual thread per operation.
+     */
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    /**
+     * Slots of the operations that may use the DAO at the same time, null for no limit.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Creates an asynchronous DAO without a limit of concurrent operations.
+     * @param dao Blocking {@link IDAO} that runs the operations.
+     */
+    public AsyncDAO(IDAO dao) {
+        this(dao, 0);
+    }
+
+    /**
+     * Creates an asynchronous DAO.
+     * @param dao Blocking {@link IDAO} that runs the operations.
+     * @param maxConcurrentOperations Maximum number of operations that use the DAO at the same time, 0 or less for no limit.
+     */
+    public AsyncDAO(IDAO dao, int maxConcurrentOperations) {
+        this.dao = dao;
+        this.permits = maxConcurrentOperations > 0 ? new Semaphore(maxConcurrentOperations) : null;
+    }
+
+    @Override
+    public CompletableFuture<List<Employee>> findAllEmployeesAsync() {
+        return submit(dao::findAllEmployees);
+    }
+
+    @Override
+    public CompletableFuture<Employee> findEmployeeByIdAsync(Object id) {
+        return submit(() -> dao.findEmployeeById(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> addEmployeeAsync(Employee employee) {
+        return run(() -> dao.addEmployee(employee));
+    }
+
+    @Override
+    public CompletableFuture<Employee> updateEmployeeAsync(Employee employee) {
+        return submit(() -> dao.updateEmployee(employee));
+    }
+
+    @Override
+    public CompletableFuture<List<Employee>> updateEmployeesAsync(Collection<Employee> employees) {
+        return submit(() -> dao.updateEmployees(employees));
+    }
+
+    @Override
+    public CompletableFuture<Employee> deleteEmployeeAsync(Object id) {
+        return submit(() -> dao.deleteEmployee(id));
+    }
+
+    @Override
+    public CompletableFuture<List<Department>> findAllDepartmentsAsync() {
+        return submit(dao::findAllDepartments);
+    }
+
+    @Override
+    public CompletableFuture<Department> findDepartmentByIdAsync(Object id) {
+        return submit(() -> dao.findDepartmentById(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> addDepartmentAsync(Department department) {
+        return run(() -> dao.addDepartment(department));
+    }
+
+    @Override
+    public CompletableFuture<Department> updateDepartmentAsync(Department department) {
+        return submit(() -> dao.updateDepartment(department));
+    }
+
+    @Override
+    public CompletableFuture<List<Department>> updateDepartmentsAsync(Collection<Department> departments) {
+        return submit(() -> dao.updateDepartments(departments));
+    }
+
+    @Override
+    public CompletableFuture<Department> deleteDepartmentAsync(Object id) {
+        return submit(() -> dao.deleteDepartment(id));
+    }
+
+    @Override
+    public CompletableFuture<List<Employee>> findEmployeesByDeptAsync(Object idDept) {
+        return submit(() -> dao.findEmployeesByDept(idDept));
+    }
+
+    @Override
+    public CompletableFuture<Void> addEmployeesAsync(Collection<Employee> employees) {
+        return run(() -> dao.addEmployees(employees));
+    }
+
+    @Override
+    public CompletableFuture<Void> addDepartmentsAsync(Collection<Department> departments) {
+        return run(() -> dao.addDepartments(departments));
+    }
+
+    @Override
+    public CompletableFuture<List<Employee>> findEmployeesAsync(RecordFilter filter) {
+        return submit(() -> dao.findEmployees(filter));
+    }
+
+    @Override
+    public CompletableFuture<List<Department>> findDepartmentsAsync(RecordFilter filter) {
+        return submit(() -> dao.findDepartments(filter));
+    }
+
+    /**
+     * Imports the records of a text data file with a two-stage pipeline: a parser thread maps the source file and
+     * hands batches of {@link #IMPORT_BATCH_SIZE} records to the writer through a bounded queue, while the writer
+     * stores the previous batch with {@link IDAO#addDepartments(Collection)} and {@link IDAO#addEmployees(Collection)}.
+     * The departments of every batch are stored before its employees.
+     * @param source Path of the text file to import.
+     * @return Future with the number of imported and skipped records. It completes exceptionally if the source file
+     *         can't be read.
+     */
+    @Override
+    public CompletableFuture<ImportResult> importAsync(Path source) {
+        return submit(() -> {
+            Set<Integer> employeeIds = new HashSet<>(); // IDs already stored, records with any of them are skipped
+            Set<Integer> departmentIds = new HashSet<>();
+            try (Stream<Employee> employees = dao.streamEmployees()) {
+                employees.forEach(employee -> employeeIds.add(employee.getEmpno()));
+            }
+            try (Stream<Department> departments = dao.streamDepartments()) {
+                departments.forEach(department -> departmentIds.add(department.getDepno()));
+            }
+            BlockingQueue<List<Object>> batches = new ArrayBlockingQueue<>(IMPORT_PIPELINE_DEPTH);
+            int[] skipped = new int[1];
+            Future<?> parser = executor.submit(() -> {
+                parse(source, batches, employeeIds, departmentIds, skipped);
+                return null;
+            });
+            int importedDepartments = 0;
+            int importedEmployees = 0;
+            try {
+                for (List<Object> batch = batches.take(); batch != END_OF_SOURCE; batch = batches.take()) {
+                    List<Department> newDepartments = new ArrayList<>();
+                    List<Employee> newEmployees = new ArrayList<>();
+                    for (Object record : batch) {
+                        if (record instanceof Department department) {
+                            newDepartments.add(department);
+                        } else {
+                            newEmployees.add((Employee) record);
+                        }
+                    }
+                    if (!newDepartments.isEmpty()) {
+                        dao.addDepartments(newDepartments);
+                    }
+                    if (!newEmployees.isEmpty()) {
+                        dao.addEmployees(newEmployees);
+                    }
+                    importedDepartments += newDepartments.size();
+                    importedEmployees += newEmployees.size();
+                }
+                parser.get(); // Reports the errors of the parser
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } finally {
+                parser.cancel(true); // Stops the parser if the writer failed
+            }
+            return new ImportResult(importedDepartments, importedEmployees, skipped[0]);
+        });
+    }
+
+    /**
+     * Parser stage of {@link #importAsync(Path)}: scans the source file and puts batches of new records in the queue,
+     * followed by {@link #END_OF_SOURCE}.
+     * @param source Path of the text file to import.
+     * @param batches Queue read by the writer.
+     * @param employeeIds IDs of the stored employees. The IDs of the new ones are added.
+     * @param departmentIds IDs of the stored departments. The IDs of the new ones are added.
+     * @param skipped Counter of skipped records.
+     * @throws IOException If the source file can't be read.
+     */
+    private static void parse(Path source, BlockingQueue<List<Object>> batches, Set<Integer> employeeIds, Set<Integer> departmentIds, int[] skipped) throws IOException {
+        try (MappedRecordReader.RecordIterator records = MappedRecordReader.open(source)) {
+            List<Object> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            while (records.next()) {
+                MappedRecordReader.Cursor cursor = records.cursor();
+                if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE) {
+                    if (employeeIds.add(cursor.getInt(0))) {
+                        batch.add(cursor.toEmployee());
+                    } else {
+                        skipped[0]++;
+                    }
+                } else if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT) {
+                    if (departmentIds.add(cursor.getInt(0))) {
+                        batch.add(cursor.toDepartment());
+                    } else {
+                        skipped[0]++;
+                    }
+                }
+                if (batch.size() == IMPORT_BATCH_SIZE) {
+                    batches.put(batch); // Waits while the writer is IMPORT_PIPELINE_DEPTH batches behind
+                    batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.put(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // The writer failed
+        } finally {
+            try {
+                batches.put(END_OF_SOURCE); // Also after an error, so the writer doesn't wait forever
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // The writer is gone
+            }
+        }
+    }
+
+    /**
+     * Runs an operation with result in a new virtual thread.
+     * @param operation Blocking operation.
+     * @param <T> Type of the result.
+     * @return Future completed with the result of the operation.
+     */
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (permits != null) {
+                permits.acquireUninterruptibly(); // Only blocks the virtual thread
+            }
+            try {
+                return operation.get();
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Runs an operation without result in a new virtual thread.
+     * @param operation Blocking operation.
+     * @return Future completed when the operation ends.
+     */
+    private CompletableFuture<Void> run(Runnable operation) {
+        return submit(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting new operations. Operations already started still complete. The wrapped DAO is not closed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,153 @@
+package cesur.accesodatos.file;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking version of {@link IDAO}. Every method starts the operation and returns at once with a
+ * {@link CompletableFuture} that is completed with the result of the corresponding {@link IDAO} method, so a caller can
+ * run thousands of operations at the same time without blocking one of its threads per operation.
+ * Errors that the {@link IDAO} method reports with an exception complete the future exceptionally.
+ *
+ * Only the value-based updates of {@link IDAO} are part of this interface: the interactive ones read the new values
+ * from the terminal.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public interface AsyncIDAO {
+    /**
+     * Asynchronous version of {@link IDAO#findAllEmployees()}.
+     * @return Future with the list of {@link Employee} objects. The list could be empty.
+     */
+    CompletableFuture<List<Employee>> findAllEmployeesAsync();
+
+    /**
+     * Asynchronous version of {@link IDAO#findEmployeeById(Object)}.
+     * @param id Employee's ID (Integer value).
+     * @return Future with the {@link Employee}, or with null if there is no match.
+     */
+    CompletableFuture<Employee> findEmployeeByIdAsync(Object id);
+
+    /**
+     * Asynchronous version of {@link IDAO#addEmployee(Employee)}.
+     * @param employee {@link Employee} object with all attributes set.
+     * @return Future completed when the employee is stored.
+     */
+    CompletableFuture<Void> addEmployeeAsync(Employee employee);
+
+    /**
+     * Asynchronous version of {@link IDAO#updateEmployee(Employee)}.
+     * @param employee {@link Employee} with the ID of the employee to update and its new values.
+     * @return Future with the updated {@link Employee}, or with null if it was not found.
+     */
+    CompletableFuture<Employee> updateEmployeeAsync(Employee employee);
+
+    /**
+     * Asynchronous version of {@link IDAO#updateEmployees(Collection)}.
+     * @param employees {@link Employee} objects with the ID of the employees to update and their new values.
+     * @return Future with the list of updated employees.
+     */
+    CompletableFuture<List<Employee>> updateEmployeesAsync(Collection<Employee> employees);
+
+    /**
+     * Asynchronous version of {@link IDAO#deleteEmployee(Object)}.
+     * @param id Employee's ID (Integer value).
+     * @return Future with the deleted {@link Employee}, or with null if it was not found.
+     */
+    CompletableFuture<Employee> deleteEmployeeAsync(Object id);
+
+    /**
+     * Asynchronous version of {@link IDAO#findAllDepartments()}.
+     * @return Future with the list of {@link Department} objects. The list could be empty.
+     */
+    CompletableFuture<List<Department>> findAllDepartmentsAsync();
+
+    /**
+     * Asynchronous version of {@link IDAO#findDepartmentById(Object)}.
+     * @param id Department's ID (Integer value).
+     * @return Future with the {@link Department}, or with null if there is no match.
+     */
+    CompletableFuture<Department> findDepartmentByIdAsync(Object id);
+
+    /**
+     * Asynchronous version of {@link IDAO#addDepartment(Department)}.
+     * @param department {@link Department} object with all attributes set.
+     * @return Future completed when the department is stored.
+     */
+    CompletableFuture<Void> addDepartmentAsync(Department department);
+
+    /**
+     * Asynchronous version of {@link IDAO#updateDepartment(Department)}.
+     * @param department {@link Department} with the ID of the department to update and its new values.
+     * @return Future with the updated {@link Department}, or with null if it was not found.
+     */
+    CompletableFuture<Department> updateDepartmentAsync(Department department);
+
+    /**
+     * Asynchronous version of {@link IDAO#updateDepartments(Collection)}.
+     * @param departments {@link Department} objects with the ID of the departments to update and their new values.
+     * @return Future with the list of updated departments.
+     */
+    CompletableFuture<List<Department>> updateDepartmentsAsync(Collection<Department> departments);
+
+    /**
+     * Asynchronous version of {@link IDAO#deleteDepartment(Object)}.
+     * @param id Department's ID (Integer value).
+     * @return Future with the deleted {@link Department}, or with null if it was not found.
+     */
+    CompletableFuture<Department> deleteDepartmentAsync(Object id);
+
+    /**
+     * Asynchronous version of {@link IDAO#findEmployeesByDept(Object)}.
+     * @param idDept Department's ID (Integer value).
+     * @return Future with the list of {@link Employee} objects of the department. The list could be empty.
+     */
+    CompletableFuture<List<Employee>> findEmployeesByDeptAsync(Object idDept);
+
+    /**
+     * Asynchronous version of {@link IDAO#addEmployees(Collection)}.
+     * @param employees {@link Employee} objects with all attributes set.
+     * @return Future completed when all the employees are stored.
+     */
+    CompletableFuture<Void> addEmployeesAsync(Collection<Employee> employees);
+
+    /**
+     * Asynchronous version of {@link IDAO#addDepartments(Collection)}.
+     * @param departments {@link Department} objects with all attributes set.
+     * @return Future completed when all the departments are stored.
+     */
+    CompletableFuture<Void> addDepartmentsAsync(Collection<Department> departments);
+
+    /**
+     * Asynchronous version of {@link IDAO#findEmployees(RecordFilter)}.
+     * @param filter Employee {@link RecordFilter}.
+     * @return Future with the list of matching {@link Employee} objects. The list could be empty.
+     */
+    CompletableFuture<List<Employee>> findEmployeesAsync(RecordFilter filter);
+
+    /**
+     * Asynchronous version of {@link IDAO#findDepartments(RecordFilter)}.
+     * @param filter Department {@link RecordFilter}.
+     * @return Future with the list of matching {@link Department} objects. The list could be empty.
+     */
+    CompletableFuture<List<Department>> findDepartmentsAsync(RecordFilter filter);
+
+    /**
+     * Imports the records of a text data file (in the "empresa.txt" format). Records whose ID is already stored are
+     * skipped. The file is parsed while the previous records are being written, so parsing overlaps with the writes.
+     * @param source Path of the text file to import.
+     * @return Future with the number of imported and skipped records.
+     */
+    CompletableFuture<ImportResult> importAsync(Path source);
+
+    /**
+     * Result of an import.
+     * @param departments Number of imported departments.
+     * @param employees Number of imported employees.
+     * @param skipped Number of records skipped because their ID already exists.
+     */
+    record ImportResult(int departments, int employees, int skipped) {
+    }
+}
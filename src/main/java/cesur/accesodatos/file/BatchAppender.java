@@ -0,0 +1,153 @@
+package cesur.accesodatos.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends many record lines to the data file with a single open {@link FileChannel}.
+ * Records are formatted into a reused {@link StringBuilder} and encoded into a reused direct {@link ByteBuffer}, which
+ * is written to the channel only when it is full. {@link #close()} writes what is left and forces the data to disk
+ * once for the whole batch.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class BatchAppender implements Closeable {
+    /**
+     * BUFFER_SIZE -> Size of the reused output buffer (64 KB).
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * Channel of the data file, opened in append mode.
+     */
+    private final FileChannel channel;
+    /**
+     * Reused output buffer.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /**
+     * Reused UTF-8 encoder.
+     */
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    /**
+     * Reused builder where every line is formatted.
+     */
+    private final StringBuilder line = new StringBuilder(128);
+    /**
+     * Number of lines appended so far.
+     */
+    private int count;
+
+    /**
+     * Opens the data file in append mode.
+     * @param file Path of the data file. It is created if it doesn't exist.
+     * @throws IOException If the file can't be opened.
+     */
+    public BatchAppender(Path file) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Appends an employee line ("employee(id,surname,job,department_id)").
+     * @param employee {@link Employee} to append.
+     * @throws IOException If the file can't be written.
+     * @throws IllegalArgumentException If a text field can't be stored in a line, see {@link RecordFormat#checkEmployee(Employee)}.
+     */
+    public void append(Employee employee) throws IOException {
+        RecordFormat.checkEmployee(employee);
+        line.setLength(0);
+        line.append(RecordFormat.EMPLOYEE_PREFIX).append(employee.getEmpno()).append(',')
+                .append(employee.getName()).append(',')
+                .append(employee.getPosition()).append(',')
+                .append(employee.getDepno()).append(')');
+        writeLine();
+    }
+
+    /**
+     * Appends a department line ("department(id,name,city)").
+     * @param department {@link Department} to append.
+     * @throws IOException If the file can't be written.
+     * @throws IllegalArgumentException If a text field can't be stored in a line, see {@link RecordFormat#checkDepartment(Department)}.
+     */
+    public void append(Department department) throws IOException {
+        RecordFormat.checkDepartment(department);
+        line.setLength(0);
+        line.append(RecordFormat.DEPARTMENT_PREFIX).append(department.getDepno()).append(',')
+                .append(department.getName()).append(',')
+                .append(department.getLocation()).append(')');
+        writeLine();
+    }
+
+    /**
+     * Appends an already formatted line.
+     * @param text Line without line separator.
+     * @throws IOException If the file can't be written.
+     */
+    public void append(String text) throws IOException {
+        line.setLength(0);
+        line.append(text);
+        writeLine();
+    }
+
+    /**
+     * Gets the number of lines appended so far.
+     * @return Number of appended lines.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Encodes the formatted line plus the line separator into the buffer, writing the buffer when it gets full.
+     * @throws IOException If the file can't be written.
+     */
+    private void writeLine() throws IOException {
+        line.append(System.lineSeparator());
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+        encoder.reset();
+        count++;
+    }
+
+    /**
+     * Writes the content of the buffer to the channel.
+     * @throws IOException If the file can't be written.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the pending lines, forces them to disk (once for the whole batch) and closes the file.
+     * @throws IOException If the file can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cesur.accesodatos.file;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converter between the text data file of {@link FileDAO} ("empresa.txt") and the binary data file of
+ * {@link BinaryFileDAO}. Both directions keep the order of the records.
+ *
+ * Text files written in {@link StorageMode#APPEND_LOG} mode can be converted too, only the last version of every live
+ * record is kept.
+ * Binary files can be written with the jobs, department names and cities stored as dictionary codes (see
+ * {@link BinaryFormat}), which makes files with many employees of few jobs noticeably smaller.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class BinaryConverter {
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private BinaryConverter() {
+    }
+
+    /**
+     * Converts a text data file into a binary data file.
+     * @param text Path of the text file to read.
+     * @param binary Path of the binary file to write. It is replaced if it exists.
+     * @throws IOException If a file can't be read or written.
+     */
+    public static void textToBinary(Path text, Path binary) throws IOException {
+        textToBinary(text, binary, false);
+    }
+
+    /**
+     * Converts a text data file into a binary data file, optionally dictionary-encoded.
+     * @param text Path of the text file to read.
+     * @param binary Path of the binary file to write. It is replaced if it exists.
+     * @param dictionaryEncoded True to store the jobs, department names and cities as dictionary codes.
+     * @throws IOException If a file can't be read or written.
+     */
+    public static void textToBinary(Path text, Path binary, boolean dictionaryEncoded) throws IOException {
+        FileIndex index = new FileIndex(text);
+        index.load();
+        BinaryFormat.write(binary, index.getDepartments(), index.getEmployees(), dictionaryEncoded);
+    }
+
+    /**
+     * Converts a binary data file into a text data file.
+     * @param binary Path of the binary file to read.
+     * @param text Path of the text file to write. It is replaced if it exists.
+     * @throws IOException If a file can't be read or written.
+     */
+    public static void binaryToText(Path binary, Path text) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(text, StandardCharsets.UTF_8)) {
+            out.write("-- departments: department(id,name,city).");
+            out.newLine();
+            for (Department department : BinaryFormat.readDepartments(binary)) {
+                out.write(RecordFormat.formatDepartment(department));
+                out.newLine();
+            }
+            out.write("-- employees: employee(id,surname,job,department_id).");
+            out.newLine();
+            for (Employee employee : BinaryFormat.readEmployees(binary)) {
+                out.write(RecordFormat.formatEmployee(employee));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Command line entry point.
+     * Usage: {@code BinaryConverter to-binary [--dictionary] <text file> <binary file>} or
+     * {@code BinaryConverter to-text <binary file> <text file>}.
+     * @param args Direction, "--dictionary" to write a dictionary-encoded binary file, source file and target file.
+     */
+    public static void main(String[] args) {
+        boolean dictionary = args.length == 4 && args[0].equals("to-binary") && args[1].equals("--dictionary");
+        int first = dictionary ? 2 : 1;
+        if (args.length != first + 2 || !(args[0].equals("to-binary") || args[0].equals("to-text"))) {
+            System.err.println("Usage: BinaryConverter (to-binary [--dictionary] <text file> <binary file> | to-text <binary file> <text file>)");
+            return;
+        }
+        try {
+            if (args[0].equals("to-binary")) {
+                textToBinary(Paths.get(args[first]), Paths.get(args[first + 1]), dictionary);
+            } else {
+                binaryToText(Paths.get(args[first]), Paths.get(args[first + 1]));
+            }
+            System.out.println("File converted: " + args[first + 1]);
+        } catch (IOException e) {
+            System.err.println("ERROR: An error occurred while converting the file: " + e.getMessage());
+        }
+    }
+}
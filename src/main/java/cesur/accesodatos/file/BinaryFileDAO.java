@@ -0,0 +1,552 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Binary file-based Data Access Object.
+ * Second storage backend that keeps employees and departments in a compact binary file (see {@link BinaryFormat})
+ * instead of the "empresa.txt" text format. Reading the file needs no text parsing nor comment skipping, and the
+ * offset tables of the header allow finding a record by its ID without reading the rest of the file.
+ *
+ * The binary file is written as a whole on every change, so this backend favours reads over writes.
+ * {@link BinaryConverter} converts files between this format and the text format of {@link FileDAO}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class BinaryFileDAO implements IDAO, FileHandlerInterface {
+    /**
+     * Path of the binary data file.
+     */
+    private final Path path;
+    /**
+     * Flag indicating if the binary file exists and has been checked.
+     */
+    private boolean connectionFlag = false;
+    /**
+     * Scanner used for capturing user input from the terminal in the update methods.
+     */
+    private final Scanner scanner = new Scanner(System.in);
+    /**
+     * Cross-process locks of the binary file. Every change (read, modify and write of the file) holds the exclusive
+     * lock, so writers of other processes don't lose each other's changes. Reads need no lock because the file is
+     * always replaced with an atomic rename.
+     */
+    private final FileLockManager locks;
+
+    /**
+     * Creates a DAO for the given binary data file.
+     * @param path Path of the binary data file.
+     */
+    public BinaryFileDAO(String path) {
+        this.path = Paths.get(path);
+        this.locks = FileLockManager.forFile(this.path);
+    }
+
+    /**
+     * Reads all employees with a sequential read of the employee records.
+     * @return List of {@link Employee} objects. If no employees are found or an error occurs, an empty list is returned.
+     */
+    @Override
+    public List<Employee> findAllEmployees() {
+        try {
+            return BinaryFormat.readEmployees(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Finds an employee with a binary search in the offset table of the file and a positioned read of its record.
+     * @param id Employee's ID, expected to be of type {@link Integer}.
+     * @return The {@link Employee} or null if it is not found or an error occurs.
+     */
+    @Override
+    public Employee findEmployeeById(Object id) {
+        if (!(id instanceof Integer)) {
+            return null;
+        }
+        try {
+            return BinaryFormat.findEmployee(path, (Integer) id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Adds a new employee and writes the binary file again. Employees with an existing ID are rejected.
+     * @param employee The {@link Employee} to add.
+     */
+    @Override
+    public void addEmployee(Employee employee) {
+        RecordFormat.checkEmployee(employee); // Rejected before anything is written
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Employee> employees = BinaryFormat.readEmployees(path);
+            for (Employee e : employees) {
+                if (e.getEmpno() == employee.getEmpno()) {
+                    System.err.println("ERROR: There is already an Employee with the same ID");
+                    return;
+                }
+            }
+            employees.add(employee);
+            BinaryFormat.write(path, BinaryFormat.readDepartments(path), employees);
+            fileLock.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int empId = (Integer) id;
+        long readGeneration = getGeneration(); // Taken before reading the record, so any later write is noticed
+        Employee employee = findEmployeeById(empId);
+        if (employee == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        String readVersion = RecordFormat.formatEmployee(employee);
+        System.out.println("Updating employee with ID: " + empId);
+        System.out.print("Last name (current: " + employee.getName() + "): ");
+        String surname = scanner.nextLine();
+        if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+        RecordFormat.checkText("last name", surname);
+
+        System.out.print("Job (current: " + employee.getPosition() + "): ");
+        String job = scanner.nextLine();
+        if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+        RecordFormat.checkText("job", job);
+
+        System.out.print("Department ID (current: " + employee.getDepno() + "): ");
+        String departmentId = scanner.nextLine();
+        if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+
+        // The file is only locked now, not while the user types
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Employee> employees = BinaryFormat.readEmployees(path);
+            for (Employee stored : employees) {
+                if (stored.getEmpno() == empId) {
+                    if (locks.getGeneration() != readGeneration && !RecordFormat.formatEmployee(stored).equals(readVersion)) {
+                        System.err.println("ERROR: The employee was modified by another user, the update was cancelled");
+                        return null;
+                    }
+                    stored.setName(surname);
+                    stored.setPosition(job);
+                    stored.setDepno(Integer.parseInt(departmentId));
+                    BinaryFormat.write(path, BinaryFormat.readDepartments(path), employees);
+                    fileLock.commit();
+                    System.out.println("The employee was successfully updated in the file.");
+                    return stored;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return null;
+        }
+        System.out.println("Employee not found.");
+        return null;
+    }
+
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        List<Employee> updated = updateEmployees(List.of(employee));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
+
+    /**
+     * Updates many employees with a single write of the binary file. Employees whose ID doesn't exist are skipped.
+     * @param employees {@link Employee} objects with the ID of the employees to update and their new values.
+     * @return List of the updated employees. It is empty if an error occurs.
+     */
+    @Override
+    public List<Employee> updateEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        Map<Integer, Employee> changes = new HashMap<>();
+        for (Employee employee : employees) {
+            changes.put(employee.getEmpno(), employee);
+        }
+        List<Employee> updated = new ArrayList<>();
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Employee> stored = BinaryFormat.readEmployees(path);
+            for (int i = 0; i < stored.size(); i++) {
+                Employee change = changes.get(stored.get(i).getEmpno());
+                if (change != null) {
+                    stored.set(i, change);
+                    updated.add(change);
+                }
+            }
+            if (!updated.isEmpty()) {
+                BinaryFormat.write(path, BinaryFormat.readDepartments(path), stored);
+                fileLock.commit();
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        return updated;
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int empId = (Integer) id;
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Employee> employees = BinaryFormat.readEmployees(path);
+            for (int i = 0; i < employees.size(); i++) {
+                if (employees.get(i).getEmpno() == empId) {
+                    Employee removed = employees.remove(i);
+                    BinaryFormat.write(path, BinaryFormat.readDepartments(path), employees);
+                    fileLock.commit();
+                    System.out.println("Employee has been deleted.");
+                    return removed;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        System.out.println("Employee not found.");
+        return null;
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        try {
+            return BinaryFormat.readDepartments(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Finds a department with a binary search in the offset table of the file and a positioned read of its record.
+     * @param id Department's ID, expected to be of type {@link Integer}.
+     * @return The {@link Department} or null if it is not found or an error occurs.
+     */
+    @Override
+    public Department findDepartmentById(Object id) {
+        if (!(id instanceof Integer)) {
+            return null;
+        }
+        try {
+            return BinaryFormat.findDepartment(path, (Integer) id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Adds a new department and writes the binary file again. Departments with an existing ID are rejected.
+     * @param department The {@link Department} to add.
+     */
+    @Override
+    public void addDepartment(Department department) {
+        RecordFormat.checkDepartment(department); // Rejected before anything is written
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Department> departments = BinaryFormat.readDepartments(path);
+            for (Department d : departments) {
+                if (d.getDepno() == department.getDepno()) {
+                    System.err.println("ERROR: There is already a Department with the same ID");
+                    return;
+                }
+            }
+            departments.add(department);
+            BinaryFormat.write(path, departments, BinaryFormat.readEmployees(path));
+            fileLock.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int deptId = (Integer) id;
+        long readGeneration = getGeneration(); // Taken before reading the record, so any later write is noticed
+        Department department = findDepartmentById(deptId);
+        if (department == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        String readVersion = RecordFormat.formatDepartment(department);
+        System.out.println("Updating department with ID: " + deptId);
+        System.out.print("Name (current: " + department.getName() + "): ");
+        String name = scanner.nextLine();
+        if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty");
+        RecordFormat.checkText("name", name);
+
+        System.out.print("City (current: " + department.getLocation() + "): ");
+        String city = scanner.nextLine();
+        if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty");
+        RecordFormat.checkText("city", city);
+
+        // The file is only locked now, not while the user types
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Department> departments = BinaryFormat.readDepartments(path);
+            for (Department stored : departments) {
+                if (stored.getDepno() == deptId) {
+                    if (locks.getGeneration() != readGeneration && !RecordFormat.formatDepartment(stored).equals(readVersion)) {
+                        System.err.println("ERROR: The department was modified by another user, the update was cancelled");
+                        return null;
+                    }
+                    stored.setName(name);
+                    stored.setLocation(city);
+                    BinaryFormat.write(path, departments, BinaryFormat.readEmployees(path));
+                    fileLock.commit();
+                    System.out.println("Department has been successfully updated in the file.");
+                    return stored;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return null;
+        }
+        System.out.println("Department not found.");
+        return null;
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        List<Department> updated = updateDepartments(List.of(department));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
+
+    /**
+     * Updates many departments with a single write of the binary file. Departments whose ID doesn't exist are skipped.
+     * @param departments {@link Department} objects with the ID of the departments to update and their new values.
+     * @return List of the updated departments. It is empty if an error occurs.
+     */
+    @Override
+    public List<Department> updateDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        Map<Integer, Department> changes = new HashMap<>();
+        for (Department department : departments) {
+            changes.put(department.getDepno(), department);
+        }
+        List<Department> updated = new ArrayList<>();
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Department> stored = BinaryFormat.readDepartments(path);
+            for (int i = 0; i < stored.size(); i++) {
+                Department change = changes.get(stored.get(i).getDepno());
+                if (change != null) {
+                    stored.set(i, change);
+                    updated.add(change);
+                }
+            }
+            if (!updated.isEmpty()) {
+                BinaryFormat.write(path, stored, BinaryFormat.readEmployees(path));
+                fileLock.commit();
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        return updated;
+    }
+
+    @Override
+    public Department deleteDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("The provided ID is not valid.");
+            return null;
+        }
+        int deptId = (Integer) id;
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Department> departments = BinaryFormat.readDepartments(path);
+            for (int i = 0; i < departments.size(); i++) {
+                if (departments.get(i).getDepno() == deptId) {
+                    Department removed = departments.remove(i);
+                    BinaryFormat.write(path, departments, BinaryFormat.readEmployees(path));
+                    fileLock.commit();
+                    System.out.println("Department has been successfully deleted.");
+                    return removed;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        System.out.println("Department not found.");
+        return null;
+    }
+
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        if (!(idDept instanceof Integer)) {
+            System.out.println("Invalid department ID");
+            return null;
+        }
+        int deptId = (Integer) idDept;
+        List<Employee> employeesByDept = new ArrayList<>();
+        for (Employee employee : findAllEmployees()) {
+            if (employee.getDepno() == deptId) {
+                employeesByDept.add(employee);
+            }
+        }
+        return employeesByDept;
+    }
+
+    /**
+     * Adds many employees with a single write of the binary file. Employees with an existing ID are skipped.
+     * @param employees {@link Employee} objects to add.
+     */
+    @Override
+    public void addEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Employee> stored = BinaryFormat.readEmployees(path);
+            HashSet<Integer> ids = new HashSet<>();
+            for (Employee e : stored) {
+                ids.add(e.getEmpno());
+            }
+            for (Employee employee : employees) {
+                if (ids.add(employee.getEmpno())) {
+                    stored.add(employee);
+                } else {
+                    System.err.println("ERROR: There is already an Employee with ID " + employee.getEmpno());
+                }
+            }
+            BinaryFormat.write(path, BinaryFormat.readDepartments(path), stored);
+            fileLock.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds many departments with a single write of the binary file. Departments with an existing ID are skipped.
+     * @param departments {@link Department} objects to add.
+     */
+    @Override
+    public void addDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            List<Department> stored = BinaryFormat.readDepartments(path);
+            HashSet<Integer> ids = new HashSet<>();
+            for (Department d : stored) {
+                ids.add(d.getDepno());
+            }
+            for (Department department : departments) {
+                if (ids.add(department.getDepno())) {
+                    stored.add(department);
+                } else {
+                    System.err.println("ERROR: There is already a Department with ID " + department.getDepno());
+                }
+            }
+            BinaryFormat.write(path, stored, BinaryFormat.readEmployees(path));
+            fileLock.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams the employees, decoding them while the stream is consumed. Closing the stream closes the file.
+     * @return Lazy {@link Stream} of {@link Employee} objects. If an error occurs, an empty stream is returned.
+     */
+    @Override
+    public Stream<Employee> streamEmployees() {
+        try {
+            return BinaryFormat.streamEmployees(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Streams the departments, decoding them while the stream is consumed. Closing the stream closes the file.
+     * @return Lazy {@link Stream} of {@link Department} objects. If an error occurs, an empty stream is returned.
+     */
+    @Override
+    public Stream<Department> streamDepartments() {
+        try {
+            return BinaryFormat.streamDepartments(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Finds the employees that meet a filter, checking it on every employee while the file is read.
+     * @param filter Employee {@link RecordFilter}.
+     * @return List of matching {@link Employee} objects. If none match or an error occurs, an empty list is returned.
+     */
+    @Override
+    public List<Employee> findEmployees(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.EMPLOYEE);
+        try (Stream<Employee> employees = streamEmployees()) {
+            return employees.filter(filter::matches).collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Finds the departments that meet a filter, checking it on every department while the file is read.
+     * @param filter Department {@link RecordFilter}.
+     * @return List of matching {@link Department} objects. If none match or an error occurs, an empty list is returned.
+     */
+    @Override
+    public List<Department> findDepartments(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.DEPARTMENT);
+        try (Stream<Department> departments = streamDepartments()) {
+            return departments.filter(filter::matches).collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Gets the generation of the binary file, a counter stored in its lock file that every write of any process increases.
+     * @return Current generation, or -1 if the lock file can't be read.
+     */
+    @Override
+    public long getGeneration() {
+        try {
+            return locks.getGeneration();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean checkFileExists() {
+        connectionFlag = Files.exists(path);
+        if (connectionFlag) {
+            System.out.println("The binary database file " + path.getFileName() + " exists.");
+        } else {
+            System.out.println("The file does not exist, connectionFlag is set to false.");
+        }
+        return connectionFlag;
+    }
+
+    @Override
+    public void closeConnection() {
+        // Every operation opens and closes the file, there is nothing left open
+        connectionFlag = false;
+    }
+}
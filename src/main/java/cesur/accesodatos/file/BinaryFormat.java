@@ -0,0 +1,569 @@
+package cesur.accesodatos.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reader and writer of the binary data file used by {@link BinaryFileDAO}.
+ * All numbers are big-endian and Strings are stored as an unsigned 16-bit length followed by their UTF-8 bytes.
+ *
+ * <pre>
+ * Header (22 bytes):  int magic "EMPB" | short version | int departmentCount | int employeeCount | long employeesStart
+ * Dictionary:         (version 2 only) int size in bytes of the rest of the section | int count | count x string
+ * Offset tables:      departmentCount x (int depno, long offset) | employeeCount x (int empno, long offset), sorted by ID
+ * Department records: int depno | text name | text location
+ * Employee records:   int empno | string name | text position | int depno
+ * </pre>
+ *
+ * A text is a string in version 1 files, and the int code of a value of the dictionary in version 2 files, which store
+ * every distinct job, department name and city once. Surnames are always strings because they rarely repeat.
+ * Values read from a version 2 file share the Strings of the dictionary.
+ * {@link #write(Path, List, List)} keeps the version of the existing file, so a dictionary-encoded file stays encoded
+ * after every change of {@link BinaryFileDAO}.
+ *
+ * The offset tables allow finding a record by its ID with a binary search and a single positioned read.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class BinaryFormat {
+    /**
+     * MAGIC -> First 4 bytes of every binary data file ("EMPB").
+     */
+    static final int MAGIC = 0x454D5042;
+    /**
+     * VERSION -> Version of the binary layout with the texts stored in the records.
+     */
+    static final short VERSION = 1;
+    /**
+     * DICTIONARY_VERSION -> Version of the binary layout with the low-cardinality texts stored as dictionary codes.
+     */
+    static final short DICTIONARY_VERSION = 2;
+    /**
+     * HEADER_SIZE -> Size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 22;
+    /**
+     * TABLE_ENTRY_SIZE -> Size of an offset table entry in bytes (int ID + long offset).
+     */
+    static final int TABLE_ENTRY_SIZE = 12;
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private BinaryFormat() {
+    }
+
+    /**
+     * Writes a complete binary data file with the same layout as the existing file (a version 1 file if it doesn't
+     * exist). The file is written to a temporary file first and then moved over the old one, so readers never see a
+     * half-written file.
+     * @param file Path of the binary file.
+     * @param departments Departments to store, in the order they will be listed.
+     * @param employees Employees to store, in the order they will be listed.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Path file, List<Department> departments, List<Employee> employees) throws IOException {
+        write(file, departments, employees, isDictionaryEncoded(file));
+    }
+
+    /**
+     * Writes a complete binary data file. The file is written to a temporary file first and then moved over the old one,
+     * so readers never see a half-written file.
+     * @param file Path of the binary file.
+     * @param departments Departments to store, in the order they will be listed.
+     * @param employees Employees to store, in the order they will be listed.
+     * @param dictionaryEncoded True to write a version 2 file with the jobs, department names and cities stored as
+     *                          dictionary codes, false to write a version 1 file.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Path file, List<Department> departments, List<Employee> employees, boolean dictionaryEncoded) throws IOException {
+        StringDictionary dictionary = dictionaryEncoded ? new StringDictionary() : null;
+        byte[][] departmentRecords = new byte[departments.size()][];
+        byte[][] employeeRecords = new byte[employees.size()][];
+        for (int i = 0; i < departments.size(); i++) {
+            departmentRecords[i] = encode(departments.get(i), dictionary);
+        }
+        for (int i = 0; i < employees.size(); i++) {
+            employeeRecords[i] = encode(employees.get(i), dictionary);
+        }
+        byte[][] dictionaryValues = new byte[dictionary == null ? 0 : dictionary.size()][];
+        int dictionarySize = Integer.BYTES;
+        for (int code = 0; code < dictionaryValues.length; code++) {
+            dictionaryValues[code] = utf8(dictionary.decode(code));
+            dictionarySize += 2 + dictionaryValues[code].length;
+        }
+
+        long tablesSize = (long) (departments.size() + employees.size()) * TABLE_ENTRY_SIZE;
+        long tablesStart = HEADER_SIZE + (dictionary == null ? 0 : Integer.BYTES + dictionarySize);
+        long offset = tablesStart + tablesSize;
+        long[][] departmentTable = new long[departments.size()][];
+        for (int i = 0; i < departments.size(); i++) {
+            departmentTable[i] = new long[]{departments.get(i).getDepno(), offset};
+            offset += departmentRecords[i].length;
+        }
+        long employeesStart = offset;
+        long[][] employeeTable = new long[employees.size()][];
+        for (int i = 0; i < employees.size(); i++) {
+            employeeTable[i] = new long[]{employees.get(i).getEmpno(), offset};
+            offset += employeeRecords[i].length;
+        }
+        Arrays.sort(departmentTable, (a, b) -> Long.compare(a[0], b[0]));
+        Arrays.sort(employeeTable, (a, b) -> Long.compare(a[0], b[0]));
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(dictionary == null ? VERSION : DICTIONARY_VERSION);
+            out.writeInt(departments.size());
+            out.writeInt(employees.size());
+            out.writeLong(employeesStart);
+            if (dictionary != null) {
+                out.writeInt(dictionarySize);
+                out.writeInt(dictionaryValues.length);
+                for (byte[] value : dictionaryValues) {
+                    out.writeShort(value.length);
+                    out.write(value);
+                }
+            }
+            for (long[] entry : departmentTable) {
+                out.writeInt((int) entry[0]);
+                out.writeLong(entry[1]);
+            }
+            for (long[] entry : employeeTable) {
+                out.writeInt((int) entry[0]);
+                out.writeLong(entry[1]);
+            }
+            for (byte[] record : departmentRecords) {
+                out.write(record);
+            }
+            for (byte[] record : employeeRecords) {
+                out.write(record);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks if an existing binary data file stores the texts as dictionary codes.
+     * @param file Path of the binary file.
+     * @return True if it is a version 2 file, false if it is a version 1 file, it doesn't exist or it is not a binary
+     *         data file.
+     */
+    public static boolean isDictionaryEncoded(Path file) {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel).dictionary() != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes an empty binary data file (valid header, no records).
+     * @param file Path of the binary file.
+     * @throws IOException If the file can't be written.
+     */
+    public static void writeEmpty(Path file) throws IOException {
+        write(file, new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * Reads all departments of a binary data file, in the order they were stored.
+     * @param file Path of the binary file.
+     * @return List of {@link Department} objects. The list could be empty.
+     * @throws IOException If the file can't be read or is not a binary data file.
+     */
+    public static List<Department> readDepartments(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            Header header = readHeader(in);
+            in.skipNBytes((long) (header.departmentCount + header.employeeCount) * TABLE_ENTRY_SIZE);
+            List<Department> departments = new ArrayList<>(header.departmentCount);
+            for (int i = 0; i < header.departmentCount; i++) {
+                departments.add(readDepartment(in, header));
+            }
+            return departments;
+        }
+    }
+
+    /**
+     * Reads all employees of a binary data file, in the order they were stored.
+     * @param file Path of the binary file.
+     * @return List of {@link Employee} objects. The list could be empty.
+     * @throws IOException If the file can't be read or is not a binary data file.
+     */
+    public static List<Employee> readEmployees(Path file) throws IOException {
+        try (DataInputStream in = open(file)) {
+            Header header = readHeader(in);
+            in.skipNBytes(header.employeesStart - header.tablesStart);
+            List<Employee> employees = new ArrayList<>(header.employeeCount);
+            for (int i = 0; i < header.employeeCount; i++) {
+                employees.add(readEmployee(in, header));
+            }
+            return employees;
+        }
+    }
+
+    /**
+     * Streams the departments of a binary data file. Records are decoded while the stream is consumed and the file is
+     * closed when the stream is closed.
+     * @param file Path of the binary file.
+     * @return Lazy {@link Stream} of {@link Department} objects.
+     * @throws IOException If the file can't be opened or is not a binary data file.
+     */
+    public static Stream<Department> streamDepartments(Path file) throws IOException {
+        DataInputStream in = open(file);
+        try {
+            Header header = readHeader(in);
+            in.skipNBytes((long) (header.departmentCount + header.employeeCount) * TABLE_ENTRY_SIZE);
+            return lazy(in, header.departmentCount, () -> readDepartment(in, header));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Streams the employees of a binary data file. Records are decoded while the stream is consumed and the file is
+     * closed when the stream is closed.
+     * @param file Path of the binary file.
+     * @return Lazy {@link Stream} of {@link Employee} objects.
+     * @throws IOException If the file can't be opened or is not a binary data file.
+     */
+    public static Stream<Employee> streamEmployees(Path file) throws IOException {
+        DataInputStream in = open(file);
+        try {
+            Header header = readHeader(in);
+            in.skipNBytes(header.employeesStart - header.tablesStart);
+            return lazy(in, header.employeeCount, () -> readEmployee(in, header));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a stream that decodes a fixed number of records from an open stream.
+     * @param in Open stream positioned at the first record. It is closed when the stream is closed.
+     * @param count Number of records.
+     * @param decoder Function that decodes one record.
+     * @param <T> Type of the records.
+     * @return Lazy {@link Stream} of records.
+     */
+    private static <T> Stream<T> lazy(DataInputStream in, int count, RecordDecoder<T> decoder) {
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<>(count, Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.SIZED) {
+            private int remaining = count;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (remaining == 0) {
+                    return false;
+                }
+                try {
+                    action.accept(decoder.read());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                remaining--;
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Finds an employee with a binary search in the offset table and a positioned read of its record.
+     * @param file Path of the binary file.
+     * @param empno Employee's ID.
+     * @return The {@link Employee} or null if there is no Employee with that ID.
+     * @throws IOException If the file can't be read or is not a binary data file.
+     */
+    public static Employee findEmployee(Path file, int empno) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long tableStart = header.tablesStart + (long) header.departmentCount * TABLE_ENTRY_SIZE;
+            long offset = search(channel, tableStart, header.employeeCount, empno);
+            if (offset < 0) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 512))) {
+                return readEmployee(in, header);
+            }
+        }
+    }
+
+    /**
+     * Finds a department with a binary search in the offset table and a positioned read of its record.
+     * @param file Path of the binary file.
+     * @param depno Department's ID.
+     * @return The {@link Department} or null if there is no Department with that ID.
+     * @throws IOException If the file can't be read or is not a binary data file.
+     */
+    public static Department findDepartment(Path file, int depno) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel);
+            long offset = search(channel, header.tablesStart, header.departmentCount, depno);
+            if (offset < 0) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset)), 512))) {
+                return readDepartment(in, header);
+            }
+        }
+    }
+
+    /**
+     * Binary search of an ID in an offset table.
+     * @param channel Open channel of the binary file.
+     * @param tableStart Offset of the first entry of the table.
+     * @param count Number of entries of the table.
+     * @param id ID to find.
+     * @return Offset of the record, or -1 if the ID is not in the table.
+     * @throws IOException If the table can't be read.
+     */
+    private static long search(FileChannel channel, long tableStart, int count, int id) throws IOException {
+        if (count == 0) {
+            return -1;
+        }
+        MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableStart, (long) count * TABLE_ENTRY_SIZE);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = table.getInt(middle * TABLE_ENTRY_SIZE);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return table.getLong(middle * TABLE_ENTRY_SIZE + 4);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes a department record.
+     * @param department {@link Department} to encode.
+     * @param dictionary {@link StringDictionary} where the name and the city are encoded, null to store them as strings.
+     * @return Bytes of the record.
+     * @throws IOException If a String is longer than 65535 bytes.
+     */
+    private static byte[] encode(Department department, StringDictionary dictionary) throws IOException {
+        if (dictionary != null) {
+            return ByteBuffer.allocate(12).putInt(department.getDepno())
+                    .putInt(dictionary.encode(department.getName())).putInt(dictionary.encode(department.getLocation())).array();
+        }
+        byte[] name = utf8(department.getName());
+        byte[] location = utf8(department.getLocation());
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + name.length + 2 + location.length);
+        buffer.putInt(department.getDepno());
+        buffer.putShort((short) name.length).put(name);
+        buffer.putShort((short) location.length).put(location);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes an employee record.
+     * @param employee {@link Employee} to encode.
+     * @param dictionary {@link StringDictionary} where the job is encoded, null to store it as a string.
+     * @return Bytes of the record.
+     * @throws IOException If a String is longer than 65535 bytes.
+     */
+    private static byte[] encode(Employee employee, StringDictionary dictionary) throws IOException {
+        byte[] name = utf8(employee.getName());
+        byte[] position = dictionary == null ? utf8(employee.getPosition()) : null;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + name.length + (position == null ? 4 : 2 + position.length) + 4);
+        buffer.putInt(employee.getEmpno());
+        buffer.putShort((short) name.length).put(name);
+        if (position == null) {
+            buffer.putInt(dictionary.encode(employee.getPosition()));
+        } else {
+            buffer.putShort((short) position.length).put(position);
+        }
+        buffer.putInt(employee.getDepno());
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a department record.
+     * @param in Input stream positioned at the record.
+     * @param header {@link Header} of the file.
+     * @return The {@link Department}.
+     * @throws IOException If the stream can't be read.
+     */
+    private static Department readDepartment(DataInputStream in, Header header) throws IOException {
+        return new Department(in.readInt(), readText(in, header), readText(in, header));
+    }
+
+    /**
+     * Decodes an employee record.
+     * @param in Input stream positioned at the record.
+     * @param header {@link Header} of the file.
+     * @return The {@link Employee}.
+     * @throws IOException If the stream can't be read.
+     */
+    private static Employee readEmployee(DataInputStream in, Header header) throws IOException {
+        return new Employee(in.readInt(), readString(in), readText(in, header), in.readInt());
+    }
+
+    /**
+     * Reads a text that may be dictionary-encoded.
+     * @param in Input stream positioned at the text.
+     * @param header {@link Header} of the file.
+     * @return The String of the dictionary in version 2 files, or the decoded String in version 1 files.
+     * @throws IOException If the stream can't be read or the code is not in the dictionary.
+     */
+    private static String readText(DataInputStream in, Header header) throws IOException {
+        if (header.dictionary == null) {
+            return readString(in);
+        }
+        int code = in.readInt();
+        if (code < 0 || code >= header.dictionary.length) {
+            throw new IOException("Invalid dictionary code " + code + " in binary data file");
+        }
+        return header.dictionary[code];
+    }
+
+    /**
+     * Gets the UTF-8 bytes of a String, checking that its length fits in the 16-bit length prefix.
+     * @param value String to encode.
+     * @return UTF-8 bytes.
+     * @throws IOException If the String is longer than 65535 bytes.
+     */
+    private static byte[] utf8(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Value too long for the binary format: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 String.
+     * @param in Input stream positioned at the String.
+     * @return Decoded String.
+     * @throws IOException If the stream can't be read.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new IOException("Unexpected end of binary data file");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens a buffered stream of a binary data file.
+     * @param file Path of the binary file.
+     * @return Open {@link DataInputStream}.
+     * @throws IOException If the file can't be opened.
+     */
+    private static DataInputStream open(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+    }
+
+    /**
+     * Reads and validates the header from a stream.
+     * @param in Stream positioned at the beginning of the file.
+     * @return The {@link Header}.
+     * @throws IOException If the file is not a binary data file.
+     */
+    private static Header readHeader(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        short version = in.readShort();
+        checkHeader(magic, version);
+        int departmentCount = in.readInt();
+        int employeeCount = in.readInt();
+        long employeesStart = in.readLong();
+        if (version == VERSION) {
+            return new Header(departmentCount, employeeCount, employeesStart, HEADER_SIZE, null);
+        }
+        int dictionarySize = in.readInt();
+        String[] dictionary = new String[in.readInt()];
+        for (int code = 0; code < dictionary.length; code++) {
+            dictionary[code] = readString(in);
+        }
+        return new Header(departmentCount, employeeCount, employeesStart, HEADER_SIZE + Integer.BYTES + (long) dictionarySize, dictionary);
+    }
+
+    /**
+     * Reads and validates the header from a channel.
+     * @param channel Open channel of the binary file.
+     * @return The {@link Header}.
+     * @throws IOException If the file is not a binary data file.
+     */
+    private static Header readHeader(FileChannel channel) throws IOException {
+        // The stream is not closed, it would close the channel; the channel position is set again by the callers
+        return readHeader(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 512)));
+    }
+
+    /**
+     * Checks the magic number and the version of a header.
+     * @param magic Magic number read from the file.
+     * @param version Version read from the file.
+     * @throws IOException If the values are not the expected ones.
+     */
+    private static void checkHeader(int magic, short version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a binary data file");
+        }
+        if (version != VERSION && version != DICTIONARY_VERSION) {
+            throw new IOException("Unsupported binary data file version " + version);
+        }
+    }
+
+    /**
+     * Reads one record from a stream.
+     * @param <T> Type of the record.
+     */
+    @FunctionalInterface
+    private interface RecordDecoder<T> {
+        /**
+         * Decodes the next record.
+         * @return The record.
+         * @throws IOException If the stream can't be read.
+         */
+        T read() throws IOException;
+    }
+
+    /**
+     * Values of the header of a binary data file.
+     * @param departmentCount Number of departments.
+     * @param employeeCount Number of employees.
+     * @param employeesStart Offset of the first employee record.
+     * @param tablesStart Offset of the first entry of the offset tables.
+     * @param dictionary Values of the dictionary by their code, null in version 1 files.
+     */
+    private record Header(int departmentCount, int employeeCount, long employeesStart, long tablesStart, String[] dictionary) {
+    }
+}
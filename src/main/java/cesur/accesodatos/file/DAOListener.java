@@ -0,0 +1,106 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the measurements of the DAOs, to feed metrics, traces or dashboards. {@link DAOMetrics} keeps them in
+ * counters and histograms exposed through JMX; other implementations may send them anywhere.
+ *
+ * Operation measurements come from an {@link InstrumentedDAO}, which wraps any {@link IDAO}. The measurements of the
+ * data file (bytes, lines, rewrites and record cache accesses) come from a {@link FileDAO} with
+ * {@link FileDAO#setListener(DAOListener)}. Nothing is measured while no listener is set.
+ *
+ * Methods are called by the threads that run the operations, so they must be thread-safe and fast. All of them do
+ * nothing by default, an implementation only overrides what it needs.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public interface DAOListener {
+    /**
+     * Called when an {@link IDAO} or {@link FileHandlerInterface} operation ends.
+     * @param operation Name of the method, for example "findAllEmployees".
+     * @param nanos Duration of the operation in nanoseconds. For streams, the time until the stream is closed.
+     * @param records Number of records returned (or stored, for the additions), 0 if there are none.
+     * @param error Exception thrown by the operation, null if it ended normally.
+     */
+    default void operationCompleted(String operation, long nanos, int records, Throwable error) {
+    }
+
+    /**
+     * Called when the data file is read.
+     * @param bytes Number of bytes read, or mapped for a scan.
+     * @param lines Number of record lines parsed.
+     */
+    default void fileRead(long bytes, long lines) {
+    }
+
+    /**
+     * Called when the data file is written.
+     * @param bytes Number of bytes written: the appended bytes, or the size of the new file for a rewrite.
+     * @param rewrite True if the whole file was written again (a rewrite, compaction or checkpoint), false for appends.
+     */
+    default void fileWritten(long bytes, boolean rewrite) {
+    }
+
+    /**
+     * Called when a record cache is looked up (see {@link FileDAO#setRecordCacheEnabled(boolean)}).
+     * @param hit True if the record was cached, false if it had to be read from the file.
+     */
+    default void cacheAccessed(boolean hit) {
+    }
+
+    /**
+     * Called when an operation of a {@link FileDAO} gets an I/O error that it handles by itself, printing it and
+     * returning an empty result instead of throwing it, so it doesn't reach {@link #operationCompleted}.
+     * @param operation Name of the method where the error happened, for example "addEmployee" or "compactLog".
+     * @param error The {@link IOException}.
+     */
+    default void ioError(String operation, IOException error) {
+    }
+
+    /**
+     * Creates a listener that forwards every measurement to several listeners, in order.
+     * @param listeners Listeners that receive the measurements.
+     * @return New {@link DAOListener}.
+     */
+    static DAOListener of(DAOListener... listeners) {
+        List<DAOListener> targets = List.of(listeners);
+        return new DAOListener() {
+            @Override
+            public void operationCompleted(String operation, long nanos, int records, Throwable error) {
+                for (DAOListener target : targets) {
+                    target.operationCompleted(operation, nanos, records, error);
+                }
+            }
+
+            @Override
+            public void fileRead(long bytes, long lines) {
+                for (DAOListener target : targets) {
+                    target.fileRead(bytes, lines);
+                }
+            }
+
+            @Override
+            public void fileWritten(long bytes, boolean rewrite) {
+                for (DAOListener target : targets) {
+                    target.fileWritten(bytes, rewrite);
+                }
+            }
+
+            @Override
+            public void cacheAccessed(boolean hit) {
+                for (DAOListener target : targets) {
+                    target.cacheAccessed(hit);
+                }
+            }
+
+            @Override
+            public void ioError(String operation, IOException error) {
+                for (DAOListener target : targets) {
+                    target.ioError(operation, error);
+                }
+            }
+        };
+    }
+}
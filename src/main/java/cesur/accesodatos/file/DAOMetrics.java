@@ -0,0 +1,241 @@
+package cesur.accesodatos.file;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DAOListener} that keeps the measurements of the DAOs: a {@link LatencyHistogram} and counters of calls, errors
+ * and records for every operation, plus the counters of the data files (bytes read and written, lines parsed, record
+ * cache hits and misses, rewrites and I/O errors). One instance may be shared by several DAOs to add up their measurements.
+ *
+ * The measurements are exposed as a JMX MBean (see {@link DAOMetricsMBean}) once {@link #register(String)} is called,
+ * so they can be read with JConsole or any JMX collector. Thread-safe, counters are updated without locks.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class DAOMetrics implements DAOListener, DAOMetricsMBean {
+    /**
+     * JMX_DOMAIN -> Domain of the names of the registered MBeans.
+     */
+    static final String JMX_DOMAIN = "cesur.accesodatos.file";
+    /**
+     * NANOS_PER_MILLI -> Nanoseconds in a millisecond, latencies are recorded in nanoseconds.
+     */
+    static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /**
+     * Measurements of every operation by its name.
+     */
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+    /**
+     * Counters of the data files.
+     */
+    private final LongAdder recordsReturned = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder linesParsed = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder fileRewrites = new LongAdder();
+    private final LongAdder ioErrors = new LongAdder();
+    /**
+     * Name the MBean is registered with, null if it is not registered.
+     */
+    private ObjectName objectName;
+
+    @Override
+    public void operationCompleted(String operation, long nanos, int records, Throwable error) {
+        Operation measured = operations.computeIfAbsent(operation, name -> new Operation());
+        measured.latency.record(nanos);
+        if (error != null) {
+            measured.errors.increment();
+        }
+        recordsReturned.add(records);
+    }
+
+    @Override
+    public void fileRead(long bytes, long lines) {
+        bytesRead.add(bytes);
+        linesParsed.add(lines);
+    }
+
+    @Override
+    public void fileWritten(long bytes, boolean rewrite) {
+        bytesWritten.add(bytes);
+        if (rewrite) {
+            fileRewrites.increment();
+        }
+    }
+
+    @Override
+    public void cacheAccessed(boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    @Override
+    public void ioError(String operation, IOException error) {
+        ioErrors.increment();
+    }
+
+    /**
+     * Gets the latency histogram of an operation, to read other percentiles or the latencies in nanoseconds.
+     * @param operation Name of the operation.
+     * @return Live {@link LatencyHistogram} of the operation in nanoseconds, or null if it was never called.
+     */
+    public LatencyHistogram getLatency(String operation) {
+        Operation measured = operations.get(operation);
+        return measured == null ? null : measured.latency;
+    }
+
+    @Override
+    public String[] getOperations() {
+        return operations.keySet().stream().sorted().toArray(String[]::new);
+    }
+
+    @Override
+    public long getCalls(String operation) {
+        LatencyHistogram latency = getLatency(operation);
+        return latency == null ? 0 : latency.getCount();
+    }
+
+    @Override
+    public long getErrors(String operation) {
+        Operation measured = operations.get(operation);
+        return measured == null ? 0 : measured.errors.sum();
+    }
+
+    @Override
+    public double getMeanMillis(String operation) {
+        LatencyHistogram latency = getLatency(operation);
+        return latency == null ? 0 : latency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getPercentileMillis(String operation, double percentile) {
+        LatencyHistogram latency = getLatency(operation);
+        return latency == null ? 0 : latency.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis(String operation) {
+        LatencyHistogram latency = getLatency(operation);
+        return latency == null ? 0 : latency.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRecordsReturned() {
+        return recordsReturned.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return linesParsed.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getFileRewrites() {
+        return fileRewrites.sum();
+    }
+
+    @Override
+    public long getIOErrors() {
+        return ioErrors.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (Operation measured : operations.values()) {
+            measured.latency.reset();
+            measured.errors.reset();
+        }
+        recordsReturned.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        linesParsed.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        fileRewrites.reset();
+        ioErrors.reset();
+    }
+
+    /**
+     * Registers the measurements as an MBean of the platform MBean server, with the name
+     * "cesur.accesodatos.file:type=DAOMetrics,name=&lt;name&gt;". A previous registration of this instance is removed.
+     * @param name Name that tells the DAOs apart, for example the tenant or the data file.
+     * @return {@link ObjectName} of the MBean.
+     * @throws IllegalStateException If another MBean is already registered with that name or the registration fails.
+     */
+    public synchronized ObjectName register(String name) {
+        unregister();
+        try {
+            ObjectName registered = new ObjectName(JMX_DOMAIN + ":type=DAOMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, registered);
+            this.objectName = registered;
+            return registered;
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("An MBean is already registered with the name " + name, e);
+        } catch (JMException e) {
+            throw new IllegalStateException("The metrics could not be registered: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Removes the MBean registered by {@link #register(String)}, if any.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Already removed by someone else
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    /**
+     * Measurements of one operation.
+     */
+    private static final class Operation {
+        /**
+         * Latencies of the calls in nanoseconds, its count is the number of calls.
+         */
+        final LatencyHistogram latency = new LatencyHistogram();
+        /**
+         * Number of calls that threw an exception.
+         */
+        final LongAdder errors = new LongAdder();
+    }
+}
@@ -0,0 +1,106 @@
+package cesur.accesodatos.file;
+
+/**
+ * JMX management interface of {@link DAOMetrics}. Counters are attributes; the statistics of one operation (named
+ * after the {@link IDAO} method, see {@link #getOperations()}) are read with the operations that take its name.
+ * Latencies are in milliseconds.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public interface DAOMetricsMBean {
+    /**
+     * Gets the names of the measured operations.
+     * @return Names of the operations called at least once, sorted.
+     */
+    String[] getOperations();
+
+    /**
+     * Gets the number of calls of an operation.
+     * @param operation Name of the operation.
+     * @return Number of calls, 0 if it was never called.
+     */
+    long getCalls(String operation);
+
+    /**
+     * Gets the number of calls of an operation that threw an exception.
+     * @param operation Name of the operation.
+     * @return Number of failed calls.
+     */
+    long getErrors(String operation);
+
+    /**
+     * Gets the mean latency of an operation.
+     * @param operation Name of the operation.
+     * @return Mean latency in milliseconds.
+     */
+    double getMeanMillis(String operation);
+
+    /**
+     * Gets a percentile of the latency of an operation.
+     * @param operation Name of the operation.
+     * @param percentile Percentage between 0 and 100, for example 99.
+     * @return Latency in milliseconds under which that percentage of the calls ended.
+     */
+    double getPercentileMillis(String operation, double percentile);
+
+    /**
+     * Gets the highest latency of an operation.
+     * @param operation Name of the operation.
+     * @return Highest latency in milliseconds.
+     */
+    double getMaxMillis(String operation);
+
+    /**
+     * Gets the number of records returned (or stored) by all the operations.
+     * @return Number of records.
+     */
+    long getRecordsReturned();
+
+    /**
+     * Gets the number of bytes read from the data files.
+     * @return Number of bytes.
+     */
+    long getBytesRead();
+
+    /**
+     * Gets the number of bytes written to the data files.
+     * @return Number of bytes.
+     */
+    long getBytesWritten();
+
+    /**
+     * Gets the number of record lines parsed from the data files.
+     * @return Number of lines.
+     */
+    long getLinesParsed();
+
+    /**
+     * Gets the number of lookups served by the record caches.
+     * @return Number of hits.
+     */
+    long getCacheHits();
+
+    /**
+     * Gets the number of lookups that the record caches could not serve.
+     * @return Number of misses.
+     */
+    long getCacheMisses();
+
+    /**
+     * Gets the number of times a data file was written again as a whole (rewrites, compactions and checkpoints).
+     * @return Number of rewrites.
+     */
+    long getFileRewrites();
+
+    /**
+     * Gets the number of I/O errors of the data files that the operations handled by themselves, printing them and
+     * returning an empty result. Errors thrown to the caller are counted by {@link #getErrors(String)}.
+     * @return Number of I/O errors.
+     */
+    long getIOErrors();
+
+    /**
+     * Sets all the counters and histograms to 0.
+     */
+    void reset();
+}
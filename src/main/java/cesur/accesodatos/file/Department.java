@@ -13,7 +13,7 @@ public class Department {
     /**
      * Variable that serves as the identifier of the Department object.
      */
-    private Integer depno;
+    private int depno;
 
     /**
      *  Variable that serves as the name of the Department object.
@@ -33,7 +33,7 @@ public class Department {
      * @param name   Name which each Department is going to have
      * @param location Location which each Department is going to have
      */
-    public Department(Integer depno, String name, String location) {
+    public Department(int depno, String name, String location) {
         this.depno = depno;
         this.name = name;
         this.location = location;
@@ -13,7 +13,7 @@ public class Employee {
     /**
      * The unique identifier for the Employee.
      */
-    private Integer empno;
+    private int empno;
 
     /**
      * The name of the Employee.
@@ -28,7 +28,7 @@ public class Employee {
     /**
      * The department number where the Employee works.
      */
-    private Integer depno;
+    private int depno;
 
     // Constructors
     /**
@@ -38,7 +38,7 @@ public class Employee {
      * @param position The job position of the Employee.
      * @param depno The department number where the Employee works.
      */
-    public Employee(Integer empno, String name, String position, Integer depno) {
+    public Employee(int empno, String name, String position, int depno) {
         this.empno = empno;
         this.name = name;
         this.position = position;
@@ -80,7 +80,7 @@ public class Employee {
      * Retrieves the department number where the Employee works.
      * @return The department number.
      */
-    public Integer getDepno() {
+    public int getDepno() {
         return this.depno;
     }
 
@@ -89,7 +89,7 @@ public class Employee {
      * Sets the unique identifier of the Employee.
      * @param empno The new identifier for the Employee.
      */
-    public void setEmpno(Integer empno) {
+    public void setEmpno(int empno) {
         this.empno = empno;
     }
 
@@ -113,7 +113,7 @@ public class Employee {
      * Sets the department number where the Employee works.
      * @param depno The new department number.
      */
-    public void setDepno(Integer depno) {
+    public void setDepno(int depno) {
         this.depno = depno;
     }
 
@@ -0,0 +1,461 @@
+package cesur.accesodatos.file;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Columnar in-memory table of employees, used by {@link FileIndex}.
+ * Every attribute is a column: the IDs are plain int arrays, the job is an int code of a {@link StringDictionary} and
+ * the surname is a plain String, so a record costs a few ints and a String instead of an {@link Employee} object, two
+ * boxed Integers and a map entry. Jobs repeat a lot, but surnames barely do, and a dictionary of them would only keep
+ * every surname ever stored. {@link Employee} objects are only created when they are handed out, and they are always
+ * new objects.
+ *
+ * Rows keep the order in which employees were first added (the file order). An update changes the row in place; a
+ * removal marks the row as deleted, and deleted rows are dropped once they are more than the live ones. The job
+ * dictionary only grows, so it is rebuilt with the jobs of the live rows when the table is compacted, which also
+ * happens when it has twice as many jobs as live rows.
+ * An open-addressing hash of primitive ints finds the row of an ID, and a secondary index keeps the rows of every
+ * department.
+ * Rows can be added straight from a {@link MappedRecordReader.Cursor}: the texts are encoded from the bytes of the
+ * line, so the jobs that are already in the dictionary cost no String when the file is loaded.
+ * {@link #find(RecordFilter)} checks filters on the columns, with int comparisons of the codes for the job.
+ *
+ * Not thread-safe: changes need exclusive access. Streams copy the columns when they are created, so they can be
+ * consumed while the table changes.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class EmployeeTable {
+    /**
+     * DELETED -> Job code of a deleted row.
+     */
+    private static final int DELETED = -1;
+    /**
+     * MIN_COMPACTION_ROWS -> Minimum number of deleted rows before the table is compacted.
+     */
+    private static final int MIN_COMPACTION_ROWS = 1024;
+
+    /**
+     * Columns of the table. Only the first {@link #rows} positions are used.
+     */
+    private int[] empnos = new int[16];
+    private int[] depnos = new int[16];
+    private String[] names = new String[16];
+    private int[] positions = new int[16];
+    /**
+     * Number of used rows, including deleted ones.
+     */
+    private int rows;
+    /**
+     * Number of live rows.
+     */
+    private int live;
+    /**
+     * Dictionary of the job column. It is replaced by a new one when the table is compacted, streams keep the values of
+     * the one they were created with.
+     */
+    private StringDictionary positionDictionary = new StringDictionary();
+    /**
+     * Row of every employee ID.
+     */
+    private IntIntMap rowsById = new IntIntMap();
+    /**
+     * Secondary index: rows of the employees of every department, in the order they joined it.
+     */
+    private Map<Integer, IntList> rowsByDept = new HashMap<>();
+
+    /**
+     * Adds an employee, or replaces the one with the same ID keeping its row.
+     * @param employee {@link Employee} to store. Only its values are kept.
+     */
+    public void put(Employee employee) {
+        put(employee.getEmpno(), employee.getName(), employee.getPosition(), employee.getDepno());
+    }
+
+    /**
+     * Adds an employee, or replaces the one with the same ID keeping its row.
+     * @param empno Employee's ID.
+     * @param name Employee's surname.
+     * @param position Employee's job.
+     * @param depno Employee's department ID.
+     */
+    public void put(int empno, String name, String position, int depno) {
+        put(empno, name, positionDictionary.encode(position), depno);
+    }
+
+    /**
+     * Adds the employee of the current record of a cursor, or replaces the one with the same ID keeping its row.
+     * The job is encoded from the bytes of the line, without decoding the values that are already in the dictionary.
+     * @param cursor {@link MappedRecordReader.Cursor} positioned on an employee record.
+     */
+    public void put(MappedRecordReader.Cursor cursor) {
+        put(cursor.getInt(0), cursor.getString(1), cursor.getCode(2, positionDictionary), cursor.getInt(3));
+    }
+
+    /**
+     * Gets the employees that meet a filter, in row order. Numeric conditions are checked on the int columns and
+     * job conditions on the dictionary codes, so only the matching rows become {@link Employee} objects.
+     * @param filter Employee {@link RecordFilter}.
+     * @return New list with a new {@link Employee} per matching row. The list could be empty.
+     */
+    public List<Employee> find(RecordFilter filter) {
+        List<Employee> result = new ArrayList<>();
+        if (filter.getType() != MappedRecordReader.RecordType.EMPLOYEE) {
+            return result;
+        }
+        int[] empnoBounds = filter.bounds(RecordFilter.Field.EMPLOYEE_ID);
+        int[] depnoBounds = filter.bounds(RecordFilter.Field.EMPLOYEE_DEPNO);
+        Predicate<String> nameMatcher = filter.textMatcher(RecordFilter.Field.EMPLOYEE_NAME);
+        IntPredicate positionMatcher = filter.codeMatcher(RecordFilter.Field.EMPLOYEE_POSITION, positionDictionary);
+        for (int row = 0; row < rows; row++) {
+            if (positions[row] != DELETED
+                    && (empnoBounds == null || (empnos[row] >= empnoBounds[0] && empnos[row] <= empnoBounds[1]))
+                    && (depnoBounds == null || (depnos[row] >= depnoBounds[0] && depnos[row] <= depnoBounds[1]))
+                    && (positionMatcher == null || positionMatcher.test(positions[row]))
+                    && (nameMatcher == null || nameMatcher.test(names[row]))) {
+                result.add(view(row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds an employee with an encoded job, or replaces the one with the same ID keeping its row.
+     * @param empno Employee's ID.
+     * @param name Employee's surname.
+     * @param position Code of the job.
+     * @param depno Employee's department ID.
+     */
+    private void put(int empno, String name, int position, int depno) {
+        int row = rowsById.get(empno);
+        if (row < 0) {
+            if (rows == empnos.length) {
+                int capacity = rows * 2;
+                empnos = Arrays.copyOf(empnos, capacity);
+                depnos = Arrays.copyOf(depnos, capacity);
+                names = Arrays.copyOf(names, capacity);
+                positions = Arrays.copyOf(positions, capacity);
+            }
+            row = rows++;
+            empnos[row] = empno;
+            rowsById.put(empno, row);
+            rowsByDept.computeIfAbsent(depno, k -> new IntList()).add(row);
+            live++;
+        } else if (depnos[row] != depno) {
+            unlink(row); // The employee goes to the end of the new department
+            rowsByDept.computeIfAbsent(depno, k -> new IntList()).add(row);
+        }
+        depnos[row] = depno;
+        names[row] = name;
+        positions[row] = position;
+        if (positionDictionary.size() > MIN_COMPACTION_ROWS && positionDictionary.size() > live * 2) {
+            compact(); // Most jobs of the dictionary are not used by any row anymore
+        }
+    }
+
+    /**
+     * Gets an employee by its ID.
+     * @param empno Employee's ID.
+     * @return New {@link Employee} with the values of the row, or null if there is no employee with that ID.
+     */
+    public Employee get(int empno) {
+        int row = rowsById.get(empno);
+        return row < 0 ? null : view(row);
+    }
+
+    /**
+     * Removes an employee.
+     * @param empno Employee's ID.
+     * @return The removed {@link Employee}, or null if there was no employee with that ID.
+     */
+    public Employee remove(int empno) {
+        int row = rowsById.get(empno);
+        if (row < 0) {
+            return null;
+        }
+        Employee removed = view(row);
+        rowsById.remove(empno);
+        unlink(row);
+        names[row] = null;
+        positions[row] = DELETED;
+        live--;
+        if (rows - live > MIN_COMPACTION_ROWS && rows - live > live) {
+            compact();
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the number of employees.
+     * @return Number of live rows.
+     */
+    public int size() {
+        return live;
+    }
+
+    /**
+     * Gets all the employees in row order.
+     * @return New list with a new {@link Employee} per row.
+     */
+    public List<Employee> list() {
+        List<Employee> result = new ArrayList<>(live);
+        for (int row = 0; row < rows; row++) {
+            if (positions[row] != DELETED) {
+                result.add(view(row));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the employees of a department using the secondary index.
+     * @param depno Department's ID.
+     * @return New list with a new {@link Employee} per employee of the department. The list could be empty.
+     */
+    public List<Employee> listByDept(int depno) {
+        IntList deptRows = rowsByDept.get(depno);
+        if (deptRows == null) {
+            return new ArrayList<>();
+        }
+        List<Employee> result = new ArrayList<>(deptRows.size);
+        for (int i = 0; i < deptRows.size; i++) {
+            result.add(view(deptRows.values[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Streams all the employees in row order. The columns are copied when the method is called, so later changes of
+     * the table are not seen; the {@link Employee} objects are created while the stream is consumed.
+     * @return {@link Stream} with a new {@link Employee} per row.
+     */
+    public Stream<Employee> stream() {
+        int count = rows;
+        int[] empnoColumn = Arrays.copyOf(empnos, count);
+        int[] depnoColumn = Arrays.copyOf(depnos, count);
+        String[] nameColumn = Arrays.copyOf(names, count);
+        int[] positionColumn = Arrays.copyOf(positions, count);
+        String[] positionValues = positionDictionary.snapshot();
+        return IntStream.range(0, count)
+                .filter(row -> positionColumn[row] != DELETED)
+                .mapToObj(row -> new Employee(empnoColumn[row], nameColumn[row], positionValues[positionColumn[row]], depnoColumn[row]));
+    }
+
+    /**
+     * Creates an {@link Employee} with the values of a row.
+     * @param row Live row.
+     * @return New {@link Employee}.
+     */
+    private Employee view(int row) {
+        return new Employee(empnos[row], names[row], positionDictionary.decode(positions[row]), depnos[row]);
+    }
+
+    /**
+     * Removes a row from the secondary index.
+     * @param row Row to remove.
+     */
+    private void unlink(int row) {
+        IntList deptRows = rowsByDept.get(depnos[row]);
+        if (deptRows != null) {
+            deptRows.remove(row);
+            if (deptRows.size == 0) {
+                rowsByDept.remove(depnos[row]);
+            }
+        }
+    }
+
+    /**
+     * Drops the deleted rows, keeping the order of the live ones and of the secondary index, and rebuilds the job
+     * dictionary with the jobs of the live rows.
+     */
+    private void compact() {
+        int[] newRows = new int[rows];
+        int[] newEmpnos = new int[Math.max(16, live)];
+        int[] newDepnos = new int[newEmpnos.length];
+        String[] newNames = new String[newEmpnos.length];
+        int[] newPositions = new int[newEmpnos.length];
+        IntIntMap newRowsById = new IntIntMap();
+        StringDictionary newPositionDictionary = new StringDictionary();
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            if (positions[row] != DELETED) {
+                newRows[row] = count;
+                newEmpnos[count] = empnos[row];
+                newDepnos[count] = depnos[row];
+                newNames[count] = names[row];
+                newPositions[count] = newPositionDictionary.encode(positionDictionary.decode(positions[row]));
+                newRowsById.put(empnos[row], count);
+                count++;
+            }
+        }
+        for (IntList deptRows : rowsByDept.values()) {
+            for (int i = 0; i < deptRows.size; i++) {
+                deptRows.values[i] = newRows[deptRows.values[i]];
+            }
+        }
+        empnos = newEmpnos;
+        depnos = newDepnos;
+        names = newNames;
+        positions = newPositions;
+        positionDictionary = newPositionDictionary;
+        rowsById = newRowsById;
+        rows = count;
+    }
+
+    /**
+     * Growable list of primitive ints.
+     */
+    private static final class IntList {
+        /**
+         * Values of the list. Only the first {@link #size} positions are used.
+         */
+        int[] values = new int[4];
+        /**
+         * Number of values.
+         */
+        int size;
+
+        /**
+         * Adds a value at the end.
+         * @param value Value to add.
+         */
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Removes the first occurrence of a value, keeping the order of the rest.
+         * @param value Value to remove.
+         */
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    System.arraycopy(values, i + 1, values, i, size - i - 1);
+                    size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash map from int to non-negative int, with open addressing and linear probing, so neither keys nor values are
+     * boxed.
+     */
+    private static final class IntIntMap {
+        /**
+         * Keys of the slots.
+         */
+        private int[] keys = new int[16];
+        /**
+         * Values of the slots plus one, 0 for an empty slot.
+         */
+        private int[] values = new int[16];
+        /**
+         * Number of keys.
+         */
+        private int size;
+
+        /**
+         * Gets the value of a key.
+         * @param key Key to find.
+         * @return The value, or -1 if the key is not in the map.
+         */
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; values[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Sets the value of a key.
+         * @param key Key.
+         * @param value Non-negative value.
+         */
+        void put(int key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != 0) {
+                if (keys[i] == key) {
+                    values[i] = value + 1;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value + 1;
+            size++;
+        }
+
+        /**
+         * Removes a key, moving back the keys of the same probe sequence so lookups don't need deleted markers.
+         * @param key Key to remove.
+         */
+        void remove(int key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (values[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (values[i] == 0) {
+                return;
+            }
+            values[i] = 0;
+            size--;
+            for (int j = (i + 1) & mask; values[j] != 0; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!reachable) { // The key at j would not be found past the empty slot, it is moved to it
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    values[j] = 0;
+                    i = j;
+                }
+            }
+        }
+
+        /**
+         * Doubles the number of slots.
+         */
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) {
+                    put(oldKeys[i], oldValues[i] - 1);
+                }
+            }
+        }
+
+        /**
+         * Spreads the bits of a key.
+         * @param key Key.
+         * @return Hash of the key.
+         */
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -1,12 +1,41 @@
 package cesur.accesodatos.file;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -22,61 +51,1516 @@ import java.io.InputStreamReader;
  * {@link FileHandlerInterface} for file database management.
  * {@link Menu} for user related interactions.
  *
+ * The {@link IDAO} operations are thread-safe, so one instance can be shared by several threads: reads run in parallel
+ * under a shared lock and writes are serialized (see {@link #lock}).
+ *
  * @author Marc Albert Seguí Olmos
  */
 
-public class FileDAO implements IDAO, Menu, FileHandlerInterface{
-    // Terminal outputs and colors
+public class FileDAO implements IDAO, Menu, FileHandlerInterface{
+    // Terminal outputs and colors
+    /**
+     * BLACK_FONT -> Static and final {@link String} variable that stores ASCII code for black font color.
+     */
+    static final String BLACK_FONT = "\u001B[30m";
+    /**
+     * GREEN_FONT -> Static and final {@link String} variable that stores ASCII code for green font color.
+     */
+    static final String GREEN_FONT = "\u001B[32m";
+    /**
+     * WHITE_BG -> Static and final {@link String} variable that stores ASCII code for white background color.
+     */
+    static final String WHITE_BG = "\u001B[47m";
+    /**
+     * RESET -> Static and final {@link String} variable that stores ASCII code to reset terminal colors.
+     */
+    static final String RESET = "\u001B[0m";
+    /**
+     * USER_INPUT -> Static and final {@link String} variable that stores a simple prompt for the user when he has to introduce any data.
+     */
+    static final String USER_INPUT = String.format("%s%s>%s ", BLACK_FONT, WHITE_BG, RESET);
+
+    public BufferedReader reader; // Instance variable
+    /**
+     * Flag indicating if a file connection has been established.
+     * Used to ensure operations don't proceed without proper file access setup.
+     */
+    private boolean connectionFlag = false;
+
+    /**
+     * Flag to control the execution flow of the application, typically used to keep the application running or initiate a graceful shutdown.
+     */
+    private boolean executionFlag = true;
+    /**
+     * DEFAULT_PATH -> Path to the "empresa.txt" file within the project's resources directory, used as the data storage
+     * by {@link #FileDAO()}.
+     */
+    static final String DEFAULT_PATH = "src/main/resources/empresa.txt";
+    /**
+     * Path of the data file of this DAO.
+     */
+    private final Path path;
+    /**
+     * Scanner used for capturing user input from the terminal.
+     */
+    private final Scanner scanner = new Scanner(System.in);
+    /**
+     * isr -> {@link InputStreamReader} variable that will allow the user to insert data through terminal.
+     *
+     */
+    private final InputStreamReader isr = new InputStreamReader(System.in);
+    /**
+     * In-memory index of the data file. It is null while the cache mode is disabled (default behaviour),
+     * in that case every read operation scans the file.
+     */
+    private FileIndex index;
+    /**
+     * How updates and deletions are stored in the data file. See {@link StorageMode}.
+     */
+    private StorageMode storageMode = StorageMode.REWRITE;
+    /**
+     * Lock held while appending to the data file, so a running log compaction doesn't lose appended lines.
+     */
+    private final Object logLock = new Object();
+    /**
+     * Lock that makes sure only one log compaction runs at a time.
+     */
+    private final Object compactionLock = new Object();
+    /**
+     * Background thread used for log compactions. It is created the first time a compaction is needed.
+     */
+    private ExecutorService compactionExecutor;
+    /**
+     * Flag indicating if a background compaction is already scheduled or running.
+     */
+    private final AtomicBoolean compactionPending = new AtomicBoolean(false);
+    /**
+     * COMPACTION_MIN_DEAD_RECORDS -> Minimum number of garbage lines (old versions and tombstones) before a background
+     * compaction is scheduled. A compaction also needs more garbage lines than live records.
+     */
+    static final long COMPACTION_MIN_DEAD_RECORDS = 1000;
+    /**
+     * Scanner used for full scans of the file on all the cores. It is null while parallel scans are disabled (default
+     * behaviour), in that case the file is scanned by the calling thread.
+     */
+    private ParallelScanner parallelScanner;
+    /**
+     * Generation of the data file (see {@link FileLockManager}) the index was loaded at, -1 if it was never loaded.
+     */
+    private volatile long indexGeneration = -1;
+    /**
+     * Lock of the data file and the index. Read operations share the read lock, so they run in parallel on all the
+     * cores; write operations take the write lock, so they never overlap with each other nor with a read. Writes only
+     * hold it while the file and the index are changed: interactive updates ask for the new values before taking it.
+     */
+    private final StampedLock lock = new StampedLock();
+    /**
+     * Write-ahead journal of the data file. It is null unless the storage mode is {@link StorageMode#JOURNALED}.
+     */
+    private WriteAheadJournal journal;
+    /**
+     * Ticket of the journal entry appended by the running write, waited for once the locks are released (see
+     * {@link #writeFile(Supplier, Object)}). Only used while holding the write lock, 0 if the write appended nothing.
+     */
+    private long journalTicket;
+    /**
+     * Lock that makes sure only one checkpoint of the journal runs at a time.
+     */
+    private final Object checkpointLock = new Object();
+    /**
+     * Background thread used for checkpoints of the journal. It is created the first time a checkpoint is needed.
+     */
+    private ExecutorService checkpointExecutor;
+    /**
+     * Flag indicating if a background checkpoint is already scheduled or running.
+     */
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+    /**
+     * CHECKPOINT_MIN_JOURNAL_BYTES -> Size of the journal (in bytes) that schedules a background checkpoint.
+     */
+    static final long CHECKPOINT_MIN_JOURNAL_BYTES = 1024 * 1024;
+    /**
+     * Persistent index of the data file. It is null while it is disabled (default behaviour), in that case lookups by ID
+     * without the cache scan the file.
+     */
+    private OffsetIndex offsetIndex;
+    /**
+     * Type and ID of the record changed in place by the running write, used to update the {@link OffsetIndex}. Only
+     * used while holding the write lock, type is null if the write only appended.
+     */
+    private MappedRecordReader.RecordType rewrittenType;
+    private int rewrittenId;
+    private boolean rewrittenDeleted;
+    /**
+     * Flag indicating if the running write changed many records in place, so the {@link OffsetIndex} is left out of
+     * date and rebuilt by the next lookup. Only used while holding the write lock.
+     */
+    private boolean rewrittenMany;
+    /**
+     * Number of records changed in place by the running write. If it is not 0 the write replaced the whole file, which
+     * is reported as a rewrite (see {@link #reportWrite}). Only used while holding the write lock.
+     */
+    private int rewrittenRecords;
+    /**
+     * Bounded caches of the employees and departments found by ID. They are null while they are disabled (default
+     * behaviour), and they are only used while the cache mode is disabled.
+     */
+    private RecordCache<Employee> employeeCache;
+    private RecordCache<Department> departmentCache;
+    /**
+     * DEFAULT_RECORD_CACHE_ENTRIES -> Default maximum number of records of every record cache.
+     */
+    static final int DEFAULT_RECORD_CACHE_ENTRIES = 10000;
+    /**
+     * DEFAULT_RECORD_CACHE_BYTES -> Default maximum estimated size of every record cache (16 MB).
+     */
+    static final long DEFAULT_RECORD_CACHE_BYTES = 16L * 1024 * 1024;
+    /**
+     * Open channel of the data file shared by the reads of this DAO (scans, parallel scans and the lookups of the
+     * {@link OffsetIndex}), so a read doesn't open and close the file. Streams open their own channel, because they
+     * outlive the locks and this one is closed once the file is rewritten. It is null until the first read and after
+     * {@link #closeConnection()}.
+     */
+    private FileChannel dataChannel;
+    /**
+     * Generation of the data file the channel was opened at. Rewrites replace the file, so a channel of another
+     * generation may point to a replaced file and it is opened again.
+     */
+    private long dataChannelGeneration = -1;
+    /**
+     * Lock of {@link #dataChannel}, which is shared by all the readers.
+     */
+    private final Object dataChannelLock = new Object();
+    /**
+     * Flag indicating if the lines appended to the data file by other programs are followed (see
+     * {@link #setTailFollowEnabled(boolean, long)}).
+     */
+    private volatile boolean tailFollowing;
+    /**
+     * Time between two checks of the data file while following it, in milliseconds.
+     */
+    private volatile long tailPollMillis = DEFAULT_TAIL_POLL_MILLIS;
+    /**
+     * Background thread that watches the data file while following it. It is created the first time it is needed and
+     * stopped by {@link #closeConnection()}. Guarded by {@link #tailLock}.
+     */
+    private ExecutorService tailExecutor;
+    /**
+     * Lock of {@link #tailExecutor}.
+     */
+    private final Object tailLock = new Object();
+    /**
+     * Listener that receives the measurements of the data file, null while they are disabled (default behaviour).
+     */
+    private volatile DAOListener listener;
+    /**
+     * DEFAULT_TAIL_POLL_MILLIS -> Default time between two checks of the data file while following it (1 second).
+     */
+    static final long DEFAULT_TAIL_POLL_MILLIS = 1000;
+    /**
+     * TAIL_LOCK_WAIT_MILLIS -> Maximum time a read waits for the write lock to parse the appended lines. If it is not
+     * available (for example, the same thread is consuming a stream), the read loads the whole file instead.
+     */
+    static final long TAIL_LOCK_WAIT_MILLIS = 100;
+
+    /**
+     * Creates a DAO for the default data file, {@link #DEFAULT_PATH}.
+     */
+    public FileDAO() {
+        this(DEFAULT_PATH);
+    }
+
+    /**
+     * Creates a DAO for a data file. Every instance only uses its own file, so a JVM can serve many data files (see
+     * {@link FileDAOPool}).
+     * @param path Path of the data file.
+     */
+    public FileDAO(String path) {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Enables or disables the cache mode. When it is enabled, the data file is loaded once into a {@link FileIndex}
+     * and all read operations are served from memory. Write operations still go through to the file and update the
+     * index afterwards. The index is loaded again when the file modification time or size changes.
+     * @param enabled True to serve reads from memory, false to read the file on every call.
+     * @throws IllegalStateException If the cache is disabled while using {@link StorageMode#APPEND_LOG} or
+     *                               {@link StorageMode#JOURNALED}, which need it.
+     */
+    public void setCacheEnabled(boolean enabled) {
+        runWithWriteLock(() -> enableCache(enabled));
+    }
+
+    /**
+     * Enables or disables the cache mode. The caller must hold the write lock.
+     * @param enabled True to serve reads from memory, false to read the file on every call.
+     */
+    private void enableCache(boolean enabled) {
+        if (!enabled && this.storageMode != StorageMode.REWRITE) {
+            throw new IllegalStateException("The cache can't be disabled in " + this.storageMode + " mode");
+        }
+        if (enabled == (this.index != null)) {
+            return; // Nothing changes, the loaded index is kept
+        }
+        if (enabled) {
+            this.index = new FileIndex(path);
+            this.index.setFollowing(this.tailFollowing);
+        } else {
+            this.tailFollowing = false; // Appended lines are followed into the index
+            stopTailWatcher();
+            this.index = null;
+        }
+    }
+
+    /**
+     * Method to check if the cache mode is enabled.
+     * @return True if read operations are served from the in-memory {@link FileIndex}.
+     */
+    public boolean isCacheEnabled() {
+        return withReadLock(() -> this.index != null);
+    }
+
+    /**
+     * Enables or disables the change tracking of the data file with the default interval. See
+     * {@link #setTailFollowEnabled(boolean, long)}.
+     * @param enabled True to follow the lines appended to the data file, false to load it again when it changes.
+     */
+    public void setTailFollowEnabled(boolean enabled) {
+        setTailFollowEnabled(enabled, DEFAULT_TAIL_POLL_MILLIS);
+    }
+
+    /**
+     * Enables or disables the change tracking of the data file, for files that other programs append records to while
+     * this DAO is in use. It enables the cache mode: the index remembers the last byte of the file it consumed and only
+     * the lines appended after it are parsed into the index (see {@link FileIndex#follow()}), instead of loading the
+     * whole file on the next read. A file that was truncated or rewritten (for example by a deletion in
+     * {@link StorageMode#REWRITE} mode) is still loaded again as a whole.
+     * A background thread watches the file with a {@link WatchService} (or checks it every interval if the file system
+     * doesn't support it), so the appended lines are usually in the index before the next read needs them. Reads
+     * also check the file, so they never miss a line that was appended before they started.
+     * Programs that append without the file locks (see {@link FileLockManager}) must write whole lines; a line without
+     * its line break is parsed once the line break is appended.
+     * @param enabled True to follow the lines appended to the data file, false to load it again when it changes.
+     * @param pollMillis Maximum time between two checks of the file, in milliseconds.
+     */
+    public void setTailFollowEnabled(boolean enabled, long pollMillis) {
+        runWithWriteLock(() -> {
+            this.tailPollMillis = Math.max(1, pollMillis);
+            if (enabled == this.tailFollowing) {
+                return;
+            }
+            if (enabled) {
+                enableCache(true);
+            } else {
+                stopTailWatcher();
+            }
+            this.tailFollowing = enabled;
+            this.index.setFollowing(enabled);
+        });
+        if (enabled) {
+            startTailWatcher();
+        }
+    }
+
+    /**
+     * Method to check if the change tracking of the data file is enabled.
+     * @return True if the lines appended to the data file are parsed into the index.
+     */
+    public boolean isTailFollowEnabled() {
+        return this.tailFollowing;
+    }
+
+    /**
+     * Sets the listener that receives the measurements of the data file: the bytes read and the record lines parsed by
+     * scans, lookups and loads of the index, the bytes written by appends and rewrites (also by compactions and
+     * checkpoints) and the accesses to the record caches. The operations themselves are measured by wrapping the DAO
+     * in an {@link InstrumentedDAO}. Without a listener nothing is measured.
+     * @param listener {@link DAOListener}, for example a {@link DAOMetrics}, or null to stop measuring.
+     */
+    public void setListener(DAOListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the listener that receives the measurements of the data file.
+     * @return {@link DAOListener}, or null if nothing is measured.
+     */
+    public DAOListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * Changes how updates and deletions are stored in the data file.
+     * {@link StorageMode#APPEND_LOG} enables the cache mode, because reads must resolve the last version of every record.
+     * Going back to {@link StorageMode#REWRITE} compacts the file first, so it only has one line per record again.
+     * {@link StorageMode#JOURNALED} also enables the cache mode and opens the {@link WriteAheadJournal}; leaving it
+     * checkpoints the journal into the data file first.
+     * @param mode New {@link StorageMode}.
+     * @throws UncheckedIOException If the journal can't be opened or checkpointed.
+     */
+    public void setStorageMode(StorageMode mode) {
+        runWithWriteLock(() -> {
+            if (mode == this.storageMode) {
+                return;
+            }
+            if (this.storageMode == StorageMode.JOURNALED) {
+                closeJournal();
+            }
+            if (mode == StorageMode.APPEND_LOG) {
+                enableCache(true);
+            } else if (mode == StorageMode.JOURNALED) {
+                stopCompactions();
+                compactLog();
+                openJournal();
+            } else {
+                stopCompactions();
+                compactLog();
+            }
+            this.storageMode = mode;
+        });
+    }
+
+    /**
+     * Enables or disables parallel scans. When they are enabled, the searches that read the whole file while the cache
+     * is disabled split it into chunks that are parsed on all the cores by a {@link ParallelScanner}. Results keep the
+     * file order.
+     * @param enabled True to scan the file in parallel, false to scan it in the calling thread.
+     */
+    public void setParallelScan(boolean enabled) {
+        runWithWriteLock(() -> this.parallelScanner = enabled ? new ParallelScanner() : null);
+    }
+
+    /**
+     * Method to check if parallel scans are enabled.
+     * @return True if full scans of the file are split across all the cores.
+     */
+    public boolean isParallelScanEnabled() {
+        return withReadLock(() -> this.parallelScanner != null);
+    }
+
+    /**
+     * Enables or disables the persistent index. When it is enabled, lookups by ID that are not served by the cache use an
+     * {@link OffsetIndex} stored next to the data file ("empresa.txt.idx"): one probe of the index and one read of the
+     * record line, without scanning nor loading the file. Writes in {@link StorageMode#REWRITE} mode keep the index in
+     * sync; any other change of the file makes the next lookup rebuild it.
+     * @param enabled True to use the persistent index, false to scan the file.
+     */
+    public void setPersistentIndexEnabled(boolean enabled) {
+        runWithWriteLock(() -> {
+            if (enabled == (this.offsetIndex != null)) {
+                return;
+            }
+            if (enabled) {
+                this.offsetIndex = new OffsetIndex(path);
+            } else {
+                closeOffsetIndex();
+            }
+        });
+    }
+
+    /**
+     * Method to check if the persistent index is enabled.
+     * @return True if lookups by ID use the {@link OffsetIndex}.
+     */
+    public boolean isPersistentIndexEnabled() {
+        return withReadLock(() -> this.offsetIndex != null);
+    }
+
+    /**
+     * Rebuilds the persistent index from the data file.
+     * @return True if the index was rebuilt, false if it is disabled or an error occurred.
+     */
+    public boolean rebuildPersistentIndex() {
+        return readFile(() -> {
+            if (this.offsetIndex == null) {
+                return false;
+            }
+            try {
+                this.offsetIndex.rebuild(this.fileLocks().getGeneration());
+                return true;
+            } catch (IOException e) {
+                reportIOError("rebuildPersistentIndex", e);
+                e.printStackTrace();
+                return false;
+            }
+        }, false);
+    }
+
+    /**
+     * Enables or disables the record caches with the default limits. See {@link #setRecordCacheEnabled(boolean, int, long)}.
+     * @param enabled True to cache the records found by ID, false to read them from the file on every call.
+     */
+    public void setRecordCacheEnabled(boolean enabled) {
+        setRecordCacheEnabled(enabled, DEFAULT_RECORD_CACHE_ENTRIES, DEFAULT_RECORD_CACHE_BYTES);
+    }
+
+    /**
+     * Enables or disables the record caches. When they are enabled and the cache mode is disabled,
+     * {@link #findEmployeeById(Object)} and {@link #findDepartmentById(Object)} keep the most recently found records in
+     * a {@link RecordCache}, so the lookups of hot records don't read the data file. Updates and deletions invalidate
+     * the changed record, and any write of another process empties the caches.
+     * Enabling them again replaces the caches (and their counters) with empty ones.
+     * @param enabled True to cache the records found by ID, false to read them from the file on every call.
+     * @param maxEntries Maximum number of records of every cache, 0 or less for no limit.
+     * @param maxBytes Maximum estimated size in bytes of every cache, 0 or less for no limit.
+     */
+    public void setRecordCacheEnabled(boolean enabled, int maxEntries, long maxBytes) {
+        runWithWriteLock(() -> {
+            this.employeeCache = enabled ? RecordCache.forEmployees(maxEntries, maxBytes) : null;
+            this.departmentCache = enabled ? RecordCache.forDepartments(maxEntries, maxBytes) : null;
+        });
+    }
+
+    /**
+     * Method to check if the record caches are enabled.
+     * @return True if the records found by ID are cached.
+     */
+    public boolean isRecordCacheEnabled() {
+        return withReadLock(() -> this.employeeCache != null);
+    }
+
+    /**
+     * Gets the counters (hits, misses and evictions) and the size of the employee cache.
+     * @return {@link RecordCache.Stats} of the employee cache, or null if the record caches are disabled.
+     */
+    public RecordCache.Stats getEmployeeCacheStats() {
+        return withReadLock(() -> this.employeeCache == null ? null : this.employeeCache.getStats());
+    }
+
+    /**
+     * Gets the counters (hits, misses and evictions) and the size of the department cache.
+     * @return {@link RecordCache.Stats} of the department cache, or null if the record caches are disabled.
+     */
+    public RecordCache.Stats getDepartmentCacheStats() {
+        return withReadLock(() -> this.departmentCache == null ? null : this.departmentCache.getStats());
+    }
+
+    /**
+     * Closes the persistent index. The caller must hold the write lock.
+     */
+    private void closeOffsetIndex() {
+        try {
+            this.offsetIndex.close();
+        } catch (IOException e) {
+            reportIOError("closeOffsetIndex", e);
+            e.printStackTrace();
+        }
+        this.offsetIndex = null;
+    }
+
+    /**
+     * Method to get the current storage mode.
+     * @return Current {@link StorageMode}.
+     */
+    public StorageMode getStorageMode() {
+        return withReadLock(() -> this.storageMode);
+    }
+
+    /**
+     * Removes old versions and tombstones from the data file, keeping only the last version of every live record.
+     * Writers are only blocked while the compacted file replaces the old one. See {@link LogCompactor}.
+     * @return Number of removed lines, or -1 if an error occurred.
+     */
+    public long compactLog() {
+        synchronized (this.compactionLock) {
+            try {
+                FileEvents.Rewrite event = new FileEvents.Rewrite();
+                event.begin();
+                long removed = LogCompactor.compact(path, this.logLock, this.fileLocks());
+                if (removed > 0) {
+                    reportRewrite(event, "compaction", removed);
+                }
+                return removed;
+            } catch (IOException e) {
+                reportIOError("compactLog", e);
+                e.printStackTrace();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Appends record lines to the data file. Used by updates and deletions in {@link StorageMode#APPEND_LOG} mode,
+     * so a change costs one small append instead of a rewrite of the whole file.
+     * @param lines Record or tombstone lines (without line separator).
+     * @param cache Index of the file.
+     * @throws IOException If the file can't be written.
+     */
+    private void appendToLog(List<String> lines, FileIndex cache) throws IOException {
+        synchronized (this.logLock) {
+            try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                for (String line : lines) {
+                    out.write(line);
+                    out.newLine();
+                }
+            }
+        }
+        cache.addRecordLines(lines.size());
+    }
+
+    /**
+     * Schedules a background compaction when the data file is written in {@link StorageMode#APPEND_LOG} mode and
+     * most of its record lines are garbage.
+     * @param cache Index of the file, used to know the number of live and garbage records.
+     */
+    private void scheduleCompactionIfNeeded(FileIndex cache) {
+        if (this.storageMode != StorageMode.APPEND_LOG || cache == null) {
+            return;
+        }
+        long dead = cache.getDeadRecords();
+        if (dead < COMPACTION_MIN_DEAD_RECORDS || dead <= cache.getLiveRecords()) {
+            return;
+        }
+        if (this.compactionPending.compareAndSet(false, true)) {
+            if (this.compactionExecutor == null) {
+                this.compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "FileDAO-compaction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.compactionExecutor.submit(() -> {
+                try {
+                    compactLog();
+                } finally {
+                    this.compactionPending.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the background compaction thread, waiting for a running compaction to finish.
+     */
+    private void stopCompactions() {
+        if (this.compactionExecutor == null) {
+            return;
+        }
+        this.compactionExecutor.shutdown();
+        try {
+            this.compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.compactionExecutor = null;
+    }
+
+    /**
+     * Parses the lines appended to the data file into the index, if it is followed and the file changed since it was
+     * last loaded or written. Must be called without holding the read lock, it takes the write lock.
+     * @param wait True to wait for the write lock, false to give up after {@link #TAIL_LOCK_WAIT_MILLIS}, because the
+     *             calling thread may already hold the read lock.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private void followTail(boolean wait) {
+        if (!this.tailFollowing) {
+            return;
+        }
+        startTailWatcher(); // Stopped by closeConnection, started again by the next operation
+        FileIndex cache = this.index;
+        try {
+            if (cache == null || cache.isSynced()) {
+                return;
+            }
+        } catch (IOException e) {
+            return; // The read reports it
+        }
+        long stamp;
+        try {
+            stamp = wait ? this.lock.writeLock() : this.lock.tryWriteLock(TAIL_LOCK_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (stamp == 0) {
+            return; // The read loads the whole file if it is not synced
+        }
+        try (FileLockManager.Lock fileLock = this.fileLocks().lockShared()) {
+            cachedIndex(); // Holding the write lock, it follows the file
+        } catch (IOException e) {
+            reportIOError("followTail", e);
+            System.err.println("ERROR: The data file could not be locked: " + e.getMessage());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Starts the background thread that watches the data file while it is followed, if it is not running.
+     */
+    private void startTailWatcher() {
+        synchronized (this.tailLock) {
+            if (this.tailExecutor != null || !this.tailFollowing) {
+                return;
+            }
+            ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "FileDAO-tail");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.tailExecutor = executor;
+            executor.submit(() -> watchTail(executor));
+        }
+    }
+
+    /**
+     * Stops the background thread that watches the data file. The thread is not interrupted, an interrupt would close
+     * the channels it is using: it ends on its next check of the file.
+     */
+    private void stopTailWatcher() {
+        synchronized (this.tailLock) {
+            if (this.tailExecutor != null) {
+                this.tailExecutor.shutdown();
+                this.tailExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Loop of the background thread that follows the data file: it waits for a change of the file (or for the poll
+     * interval) and parses the appended lines into the index, until the thread is stopped.
+     * @param executor Executor of the thread, the loop ends when it is not the current one anymore.
+     */
+    private void watchTail(ExecutorService executor) {
+        Path dir = this.path.toAbsolutePath().getParent();
+        WatchService watcher = null;
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            closeWatcher(watcher);
+            watcher = null; // The file is polled instead
+        }
+        try {
+            while (isTailWatcher(executor)) {
+                boolean changed = true;
+                if (watcher == null) {
+                    Thread.sleep(this.tailPollMillis);
+                } else {
+                    WatchKey key = watcher.poll(this.tailPollMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) { // Otherwise the poll interval elapsed, events may be lost on some file systems
+                        changed = false;
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || this.path.getFileName().equals(event.context());
+                        }
+                        key.reset();
+                    }
+                }
+                if (changed && isTailWatcher(executor)) {
+                    followTail(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeWatcher(watcher);
+        }
+    }
+
+    /**
+     * Checks if a background thread that follows the data file must keep running.
+     * @param executor Executor of the thread.
+     * @return True if it is the current executor and the file is still followed.
+     */
+    private boolean isTailWatcher(ExecutorService executor) {
+        synchronized (this.tailLock) {
+            return this.tailExecutor == executor && this.tailFollowing;
+        }
+    }
+
+    /**
+     * Closes the {@link WatchService} of the background thread that follows the data file.
+     * @param watcher {@link WatchService}, it may be null.
+     */
+    private static void closeWatcher(WatchService watcher) {
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens the journal of the data file and enables the cache mode with it. Entries left by a crashed process are
+     * applied to the data file first, so the index starts from a clean journal. The caller must hold the write lock.
+     */
+    private void openJournal() {
+        try {
+            this.journal = new WriteAheadJournal(path);
+            checkpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        enableCache(true);
+        this.index.setJournal(this.journal);
+        this.indexGeneration = -1; // Loaded again with the journal on the next read
+    }
+
+    /**
+     * Stops the background checkpoints, applies the whole journal to the data file and closes it. The caller must hold
+     * the write lock.
+     */
+    private void closeJournal() {
+        stopCheckpoints();
+        try {
+            checkpoint();
+            this.journal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (this.index != null) {
+            this.index.setJournal(null);
+        }
+        this.journal = null;
+    }
+
+    /**
+     * Applies the journal to the data file and empties it. Writers are only blocked while the new data file replaces
+     * the old one. See {@link WriteAheadJournal#checkpoint(FileLockManager, java.util.function.LongConsumer)}.
+     * @return Number of applied journal entries.
+     * @throws IOException If the files can't be read or written.
+     */
+    private long checkpoint() throws IOException {
+        WriteAheadJournal wal = this.journal;
+        FileIndex cache = this.index;
+        synchronized (this.checkpointLock) {
+            FileEvents.Rewrite event = new FileEvents.Rewrite();
+            event.begin();
+            long applied = wal.checkpoint(this.fileLocks(), generation -> {
+                // The index already had the checkpointed changes, only the state of the new data file is remembered
+                if (cache != null && this.indexGeneration == generation - 1) {
+                    markSynced(cache);
+                    this.indexGeneration = generation;
+                }
+            });
+            if (applied > 0) {
+                reportRewrite(event, "checkpoint", applied);
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Appends the lines of a change to the journal. Must be called from a write operation, which waits for the entry to
+     * be on disk after releasing its locks.
+     * @param lines Record or tombstone lines of the change.
+     * @throws IOException If the journal can't be written.
+     */
+    private void appendToJournal(List<String> lines) throws IOException {
+        // The entry is numbered with the generation this write commits, see WriteAheadJournal
+        this.journalTicket = this.journal.append(this.fileLocks().getGeneration() + 1, lines);
+    }
+
+    /**
+     * Appends an update or deletion line, to the journal in {@link StorageMode#JOURNALED} mode or to the data file in
+     * {@link StorageMode#APPEND_LOG} mode.
+     * @param lines Record or tombstone lines (without line separator).
+     * @param cache Index of the file.
+     * @throws IOException If the file can't be written.
+     */
+    private void appendChange(String line, FileIndex cache) throws IOException {
+        appendChanges(List.of(line), cache);
+    }
+
+    /**
+     * Appends many update or deletion lines at once, as a single journal entry in {@link StorageMode#JOURNALED} mode
+     * or with a single write of the data file in {@link StorageMode#APPEND_LOG} mode.
+     * @param lines Record or tombstone lines (without line separator).
+     * @param cache Index of the file.
+     * @throws IOException If the file can't be written.
+     */
+    private void appendChanges(List<String> lines, FileIndex cache) throws IOException {
+        if (this.storageMode == StorageMode.JOURNALED) {
+            appendToJournal(lines);
+        } else {
+            appendToLog(lines, cache);
+        }
+    }
+
+    /**
+     * Waits until a journal entry is on disk (group commit) and schedules a background checkpoint when the journal is
+     * big enough.
+     * @param wal Journal the entry was appended to.
+     * @param ticket Ticket of the entry.
+     * @return True if the entry is durable, false if the journal could not be forced.
+     */
+    private boolean syncJournal(WriteAheadJournal wal, long ticket) {
+        try {
+            wal.sync(ticket);
+            if (wal.size() >= CHECKPOINT_MIN_JOURNAL_BYTES && this.checkpointPending.compareAndSet(false, true)) {
+                scheduleCheckpoint();
+            }
+            return true;
+        } catch (IOException e) {
+            reportIOError("syncJournal", e);
+            System.err.println("ERROR: The journal could not be written to disk: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Submits a checkpoint to the background thread. The caller must have set {@link #checkpointPending}.
+     */
+    private void scheduleCheckpoint() {
+        long stamp = this.lock.writeLock(); // The executor and the journal only change while holding the write lock
+        try {
+            if (this.journal == null) {
+                this.checkpointPending.set(false);
+                return;
+            }
+            if (this.checkpointExecutor == null) {
+                this.checkpointExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "FileDAO-checkpoint");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.checkpointExecutor.submit(() -> {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    reportIOError("scheduleCheckpoint", e);
+                    e.printStackTrace();
+                } finally {
+                    this.checkpointPending.set(false);
+                }
+            });
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Stops the background checkpoint thread, waiting for a running checkpoint to finish.
+     */
+    private void stopCheckpoints() {
+        if (this.checkpointExecutor == null) {
+            return;
+        }
+        this.checkpointExecutor.shutdown();
+        try {
+            this.checkpointExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.checkpointExecutor = null;
+        this.checkpointPending.set(false);
+    }
+
     /**
-     * BLACK_FONT -> Static and final {@link String} variable that stores ASCII code for black font color.
+     * Runs an action while holding the read lock.
+     * @param action Read operation.
+     * @param <T> Type of the result.
+     * @return Result of the action.
      */
-    static final String BLACK_FONT = "\u001B[30m";
+    private <T> T withReadLock(Supplier<T> action) {
+        long stamp = this.lock.readLock();
+        try {
+            return action.get();
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
     /**
-     * GREEN_FONT -> Static and final {@link String} variable that stores ASCII code for green font color.
+     * Runs an action without result while holding the write lock.
+     * @param action Write operation.
      */
-    static final String GREEN_FONT = "\u001B[32m";
+    private void runWithWriteLock(Runnable action) {
+        long stamp = this.lock.writeLock();
+        try {
+            action.run();
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
     /**
-     * WHITE_BG -> Static and final {@link String} variable that stores ASCII code for white background color.
+     * Gets the manager of the cross-process locks of the data file.
+     * @return {@link FileLockManager} of the current path.
      */
-    static final String WHITE_BG = "\u001B[47m";
+    private FileLockManager fileLocks() {
+        return FileLockManager.forFile(path);
+    }
+
     /**
-     * RESET -> Static and final {@link String} variable that stores ASCII code to reset terminal colors.
+     * Runs a read operation of the data file while holding the read lock and a shared file lock, so no thread nor
+     * process rewrites the file meanwhile. When the data file is followed, the lines appended to it are parsed into the
+     * index first.
+     * @param action Read operation.
+     * @param failed Result returned if the file can't be locked.
+     * @param <T> Type of the result.
+     * @return Result of the action.
      */
-    static final String RESET = "\u001B[0m";
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private <T> T readFile(Supplier<T> action, T failed) {
+        followTail(false);
+        long stamp = this.lock.readLock();
+        try (FileLockManager.Lock fileLock = this.fileLocks().lockShared()) {
+            return action.get();
+        } catch (IOException e) {
+            reportIOError("readFile", e);
+            System.err.println("ERROR: The data file could not be locked: " + e.getMessage());
+            return failed;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
     /**
-     * USER_INPUT -> Static and final {@link String} variable that stores a simple prompt for the user when he has to introduce any data.
+     * Runs a write operation of the data file while holding the write lock and the exclusive file lock. Afterwards the
+     * generation counter is increased, so other processes know the file changed.
+     * If the action appended to the journal, the entry is forced to disk after the locks are released, so concurrent
+     * writers share one force of the journal (group commit) and the operation only returns once it is durable.
+     * @param action Write operation.
+     * @param failed Result returned if the file can't be locked or the journal entry can't be forced.
+     * @param <T> Type of the result.
+     * @return Result of the action.
      */
-    static final String USER_INPUT = String.format("%s%s>%s ", BLACK_FONT, WHITE_BG, RESET);
+    private <T> T writeFile(Supplier<T> action, T failed) {
+        T result;
+        WriteAheadJournal wal;
+        long ticket;
+        long stamp = this.lock.writeLock();
+        try (FileLockManager.Lock fileLock = this.fileLocks().lockExclusive()) {
+            this.journalTicket = 0;
+            long sizeBefore = beforeIndexedWrite();
+            DAOListener measured = this.listener;
+            FileEvents.Append append = new FileEvents.Append();
+            FileEvents.Rewrite rewrite = new FileEvents.Rewrite();
+            boolean measuring = measured != null || append.isEnabled() || rewrite.isEnabled();
+            long startSize = measuring ? fileSize() : -1;
+            append.begin();
+            rewrite.begin();
+            result = action.get();
+            if (measuring) {
+                reportWrite(measured, startSize, append, rewrite);
+            }
+            long generation = fileLock.commit();
+            afterIndexedWrite(sizeBefore, generation);
+            advanceRecordCaches(generation);
+            if (this.indexGeneration == generation - 1) {
+                this.indexGeneration = generation; // The index was up-to-date and has the changes of this write
+            }
+            wal = this.journal;
+            ticket = this.journalTicket;
+        } catch (IOException e) {
+            reportIOError("writeFile", e);
+            System.err.println("ERROR: The data file could not be locked: " + e.getMessage());
+            return failed;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        if (ticket != 0 && !syncJournal(wal, ticket)) {
+            return failed;
+        }
+        return result;
+    }
 
-    public BufferedReader reader; // Instance variable
     /**
-     * Flag indicating if a file connection has been established.
-     * Used to ensure operations don't proceed without proper file access setup.
+     * Prepares the {@link OffsetIndex} for a write. The caller must hold the write lock and the exclusive file lock.
+     * @return Size of the data file before the write, or -1 if the index is not kept in sync by this write (it is
+     *         disabled, out of date or the storage mode is not {@link StorageMode#REWRITE}).
      */
-    private boolean connectionFlag = false;
+    private long beforeIndexedWrite() {
+        this.rewrittenType = null;
+        this.rewrittenMany = false;
+        this.rewrittenRecords = 0;
+        if (this.offsetIndex == null || this.storageMode != StorageMode.REWRITE) {
+            return -1;
+        }
+        try {
+            return this.offsetIndex.isCurrent(this.fileLocks().getGeneration()) ? Files.size(path) : -1;
+        } catch (IOException e) {
+            reportIOError("beforeIndexedWrite", e);
+            e.printStackTrace();
+            return -1;
+        }
+    }
 
     /**
-     * Flag to control the execution flow of the application, typically used to keep the application running or initiate a graceful shutdown.
+     * Applies the changes of a write to the {@link OffsetIndex}: the record changed in place, or else the appended lines.
+     * If it fails the index is left out of date and the next lookup rebuilds it.
+     * @param sizeBefore Value returned by {@link #beforeIndexedWrite()}.
+     * @param generation Generation committed by the write.
      */
-    private boolean executionFlag = true;
+    private void afterIndexedWrite(long sizeBefore, long generation) {
+        if (sizeBefore < 0 || this.rewrittenMany) {
+            return; // After a batch of changes a rebuild is cheaper than shifting the offsets once per record
+        }
+        try {
+            if (this.rewrittenType != null) {
+                this.offsetIndex.recordRewritten(this.rewrittenType, this.rewrittenId, this.rewrittenDeleted, sizeBefore, generation);
+            } else {
+                this.offsetIndex.indexAppended(sizeBefore, generation);
+            }
+        } catch (IOException e) {
+            reportIOError("afterIndexedWrite", e);
+            System.err.println("ERROR: The persistent index could not be updated: " + e.getMessage());
+        }
+    }
+
     /**
-     * Path to the "empresa.txt" file within the project's resources directory, used as the data storage for the application.
+     * Remembers the record changed in place by the running write, so the {@link OffsetIndex} can be updated, and
+     * removes it from the record caches.
+     * @param type Type of the record.
+     * @param id ID of the record.
+     * @param deleted True if the line was removed.
      */
-    static String path = "src/main/resources/empresa.txt"; // Path of the file
+    private void recordRewritten(MappedRecordReader.RecordType type, int id, boolean deleted) {
+        this.rewrittenType = type;
+        this.rewrittenId = id;
+        this.rewrittenDeleted = deleted;
+        this.rewrittenRecords++;
+        RecordCache<?> records = type == MappedRecordReader.RecordType.EMPLOYEE ? this.employeeCache : this.departmentCache;
+        if (records != null) {
+            records.invalidate(id);
+        }
+    }
+
     /**
-     * Scanner used for capturing user input from the terminal.
+     * Remembers that the running write changed many records in place, and removes them from the record caches.
+     * @param type Type of the records.
+     * @param ids IDs of the records.
      */
-    private final Scanner scanner = new Scanner(System.in);
+    private void recordsRewritten(MappedRecordReader.RecordType type, Collection<Integer> ids) {
+        this.rewrittenMany = true;
+        this.rewrittenRecords += ids.size();
+        RecordCache<?> records = type == MappedRecordReader.RecordType.EMPLOYEE ? this.employeeCache : this.departmentCache;
+        if (records != null) {
+            for (int id : ids) {
+                records.invalidate(id);
+            }
+        }
+    }
+
     /**
-     * isr -> {@link InputStreamReader} variable that will allow the user to insert data through terminal.
-     *
+     * Moves the record caches to the generation committed by a write. In {@link StorageMode#REWRITE} mode every
+     * changed record was already invalidated by {@link #recordRewritten}, and appended lines don't change the first
+     * line of an ID (the one found by ID); in the other modes the caches are left behind and emptied by the next lookup.
+     * The caller must hold the write lock.
+     * @param generation Generation committed by the write.
      */
-    private final InputStreamReader isr = new InputStreamReader(System.in);
+    private void advanceRecordCaches(long generation) {
+        if (this.employeeCache == null || this.storageMode != StorageMode.REWRITE) {
+            return;
+        }
+        this.employeeCache.advance(generation - 1, generation);
+        this.departmentCache.advance(generation - 1, generation);
+    }
+
+    /**
+     * Gets a record from a record cache. Must be called while holding a file lock.
+     * @param records {@link RecordCache} of the record type, null if the record caches are disabled.
+     * @param id ID of the record.
+     * @param <V> Type of the record.
+     * @return Copy of the cached record, or null if it is not cached.
+     */
+    private <V> V cachedRecord(RecordCache<V> records, int id) {
+        if (records == null) {
+            return null;
+        }
+        try {
+            V cached = records.get(id, this.fileLocks().getGeneration());
+            DAOListener measured = this.listener;
+            if (measured != null) {
+                measured.cacheAccessed(cached != null);
+            }
+            return cached;
+        } catch (IOException e) {
+            reportIOError("cachedRecord", e);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a record read from the file in a record cache. Must be called while holding a file lock.
+     * @param records {@link RecordCache} of the record type, null if the record caches are disabled.
+     * @param id ID of the record.
+     * @param value Record read from the file, null if there is no record with that ID (it is not cached).
+     * @param <V> Type of the record.
+     * @return The given record.
+     */
+    private <V> V cacheRecord(RecordCache<V> records, int id, V value) {
+        if (records != null && value != null) {
+            try {
+                records.put(id, value, this.fileLocks().getGeneration());
+            } catch (IOException e) {
+                reportIOError("cacheRecord", e);
+                e.printStackTrace();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Finds the line of a record with the {@link OffsetIndex}. Must be called while holding a file lock.
+     * @param type Type of the record.
+     * @param id ID of the record.
+     * @return Array with the line of the record (null if there is no such record), or null if the index can't be used
+     *         and the file must be scanned.
+     */
+    private String[] findIndexedLine(MappedRecordReader.RecordType type, int id) {
+        if (this.offsetIndex == null || this.storageMode != StorageMode.REWRITE) {
+            return null;
+        }
+        try {
+            String line = this.offsetIndex.findLine(type, id, this.fileLocks().getGeneration(), dataChannel());
+            DAOListener measured = this.listener;
+            if (measured != null && line != null) {
+                measured.fileRead(line.getBytes(StandardCharsets.UTF_8).length + 1, 1); // Only the record line is read
+            }
+            return new String[]{line};
+        } catch (IOException e) {
+            reportIOError("findIndexedLine", e);
+            e.printStackTrace();
+            return null; // Falls back to a scan of the file
+        }
+    }
+
+    /**
+     * Runs a write operation without result of the data file. See {@link #writeFile(Supplier, Object)}.
+     * @param action Write operation.
+     */
+    private void runWriteFile(Runnable action) {
+        writeFile(() -> {
+            action.run();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Reports that an interactive update was cancelled because the record was deleted or modified by another thread or
+     * process while the user was typing the new values.
+     * @param entity "Employee" or "Department".
+     * @param deleted True if the record no longer exists.
+     * @param <T> Type of the record.
+     * @return Always null.
+     */
+    private static <T> T updateConflict(String entity, boolean deleted) {
+        if (deleted) {
+            System.out.println(entity + " not found.");
+        } else {
+            System.err.println("ERROR: The " + entity.toLowerCase() + " was modified by another user, the update was cancelled");
+        }
+        return null;
+    }
+
+    /**
+     * Reports that an update in {@link StorageMode#APPEND_LOG} or {@link StorageMode#JOURNALED} mode was cancelled
+     * because the index of the data file could not be loaded, so it is unknown whether the record still exists.
+     * @param entity "employee", "department" or their plurals.
+     * @param <T> Type of the record.
+     * @return Always null.
+     */
+    private static <T> T indexUnavailable(String entity) {
+        System.err.println("ERROR: The data file could not be read, the " + entity + " could not be updated");
+        return null;
+    }
+
+    /**
+     * Scans the whole data file, in parallel if it is enabled.
+     * @param mapper {@link ParallelScanner.RecordMapper} applied to every record line, returning null for the lines
+     *               that must be skipped.
+     * @param <T> Type of the results.
+     * @return {@link ArrayList} with the non-null results, in file order.
+     * @throws IOException If the file can't be read.
+     */
+    private <T> List<T> scanRecords(ParallelScanner.RecordMapper<T> mapper) throws IOException {
+        FileEvents.Scan event = new FileEvents.Scan();
+        event.begin();
+        List<T> results;
+        long[] read;
+        if (this.parallelScanner != null) {
+            FileChannel channel = dataChannel();
+            DAOListener measured = this.listener;
+            if (measured == null && !event.isEnabled()) {
+                return this.parallelScanner.scan(channel, mapper);
+            }
+            LongAdder lines = new LongAdder(); // Chunks are parsed by several threads
+            results = this.parallelScanner.scan(channel, cursor -> {
+                lines.increment();
+                return mapper.map(cursor);
+            });
+            read = new long[]{lines.sum(), channel.size()};
+            if (measured != null) {
+                measured.fileRead(read[1], read[0]);
+            }
+        } else {
+            List<T> found = new ArrayList<>();
+            read = scanFile(cursor -> {
+                T result = mapper.map(cursor);
+                if (result != null) {
+                    found.add(result);
+                }
+                return true;
+            }, event.isEnabled());
+            results = found;
+        }
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.lines = read[0];
+            event.bytes = read[1];
+            event.records = results.size();
+            event.parallel = this.parallelScanner != null;
+            event.commit();
+        }
+        return results;
+    }
+
+    /**
+     * Scans the whole data file with the calling thread, through the shared channel. Must be called while holding a
+     * file lock. The bytes and lines read are reported to the listener, if there is one.
+     * @param visitor {@link MappedRecordReader.RecordVisitor} that receives every record line.
+     * @param measure True to count the bytes and lines read even without a listener, for a Flight Recorder event.
+     * @return Array with the number of lines parsed and the number of bytes read, both 0 if they were not counted.
+     * @throws IOException If the file can't be read.
+     */
+    private long[] scanFile(MappedRecordReader.RecordVisitor visitor, boolean measure) throws IOException {
+        FileChannel channel = dataChannel();
+        long[] read = new long[2]; // Lines parsed and end of the last one, scans may stop early
+        DAOListener measured = this.listener;
+        if (measured == null && !measure) {
+            MappedRecordReader.scan(channel, 0, channel.size(), visitor);
+            return read;
+        }
+        MappedRecordReader.scan(channel, 0, channel.size(), cursor -> {
+            read[0]++;
+            read[1] = cursor.getOffset() + cursor.getLength() + 1;
+            return visitor.visit(cursor);
+        });
+        read[1] = Math.min(read[1], channel.size());
+        if (measured != null) {
+            measured.fileRead(read[1], read[0]);
+        }
+        return read;
+    }
+
+    /**
+     * Commits the Flight Recorder event of a lookup by ID, if it is recorded.
+     * @param event Event begun before the lookup.
+     * @param type Type of the record.
+     * @param id ID of the record.
+     * @param found Record (or its line) found, null if there is no record with that ID.
+     * @param read Lines parsed and bytes read by the scan, or null if the persistent index was used.
+     */
+    private void commitLookup(FileEvents.Lookup event, MappedRecordReader.RecordType type, int id, Object found, long[] read) {
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.path = path.toString();
+        event.recordType = type.name();
+        event.id = id;
+        event.found = found != null;
+        event.indexed = read == null;
+        if (read == null) {
+            event.lines = found == null ? 0 : 1;
+            event.bytes = found == null ? 0 : found.toString().getBytes(StandardCharsets.UTF_8).length + 1;
+        } else {
+            event.lines = read[0];
+            event.bytes = read[1];
+        }
+        event.commit();
+    }
+
+    /**
+     * Reads the size of the data file, to measure a write.
+     * @return Size of the data file in bytes, or -1 if it can't be read.
+     */
+    private long fileSize() {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1; // The write reports it
+        }
+    }
+
+    /**
+     * Reports the bytes written by a write operation. The write itself tells how the file was written: in
+     * {@link StorageMode#REWRITE} mode a change of records ({@link #recordRewritten} or {@link #recordsRewritten})
+     * replaces the whole file, any other write only appends lines to it (or to the journal, which is not measured).
+     * @param measured Listener of the measurements, null if there is none.
+     * @param sizeBefore Size of the data file before the write, -1 if it couldn't be read.
+     * @param append Flight Recorder event of an append, committed if the file was appended to.
+     * @param rewrite Flight Recorder event of a rewrite, committed if the file was rewritten.
+     */
+    private void reportWrite(DAOListener measured, long sizeBefore, FileEvents.Append append, FileEvents.Rewrite rewrite) {
+        long size = fileSize();
+        if (size < 0) {
+            return;
+        }
+        if (this.rewrittenRecords > 0) {
+            if (measured != null) {
+                measured.fileWritten(size, true);
+            }
+            if (rewrite.shouldCommit()) {
+                rewrite.path = path.toString();
+                rewrite.cause = "write";
+                rewrite.bytes = size;
+                rewrite.records = this.rewrittenRecords;
+                rewrite.commit();
+            }
+        } else if (sizeBefore >= 0 && size > sizeBefore) {
+            if (measured != null) {
+                measured.fileWritten(size - sizeBefore, false);
+            }
+            if (append.shouldCommit()) {
+                append.path = path.toString();
+                append.bytes = size - sizeBefore;
+                append.lines = countLines(sizeBefore, size);
+                append.commit();
+            }
+        }
+    }
+
+    /**
+     * Counts the line breaks of a byte range of the data file, to report the lines of an append.
+     * @param start First byte of the range.
+     * @param end Byte after the last one of the range.
+     * @return Number of line breaks, or 0 if the file can't be read.
+     */
+    private long countLines(long start, long end) {
+        long lines = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (long position = start; position < end; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lines++;
+                    }
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            reportIOError("countLines", e);
+            e.printStackTrace();
+        }
+        return lines;
+    }
+
+    /**
+     * Reports a rewrite of the data file done outside of a write operation (a compaction or a checkpoint).
+     * @param event Flight Recorder event of the rewrite, begun before it.
+     * @param cause "compaction" or "checkpoint".
+     * @param records Lines removed by the compaction or journal entries applied by the checkpoint.
+     */
+    private void reportRewrite(FileEvents.Rewrite event, String cause, long records) {
+        DAOListener measured = this.listener;
+        long size = measured == null && !event.shouldCommit() ? -1 : fileSize();
+        if (size < 0) {
+            return;
+        }
+        if (measured != null) {
+            measured.fileWritten(size, true);
+        }
+        if (event.shouldCommit()) {
+            event.path = path.toString();
+            event.cause = cause;
+            event.bytes = size;
+            event.records = records;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reports an I/O error that an operation handles by itself (printing it and returning an empty result) to the
+     * listener, if there is one, so the error is counted even though the caller never sees it.
+     * @param operation Name of the method where the error happened.
+     * @param error The {@link IOException}.
+     */
+    private void reportIOError(String operation, IOException error) {
+        DAOListener measured = this.listener;
+        if (measured != null) {
+            measured.ioError(operation, error);
+        }
+    }
+
+    /**
+     * Gets the shared channel of the data file, opening it again if the file was written since it was opened. Must be
+     * called while holding a file lock, so no writer replaces the file while the channel is used.
+     * @return Open {@link FileChannel} of the current data file.
+     * @throws IOException If the file can't be opened.
+     */
+    private FileChannel dataChannel() throws IOException {
+        long generation = this.fileLocks().getGeneration();
+        synchronized (this.dataChannelLock) {
+            if (this.dataChannel == null || !this.dataChannel.isOpen() || this.dataChannelGeneration != generation) {
+                if (this.dataChannel != null) {
+                    this.dataChannel.close(); // Readers of the old generation are done, a writer was in between
+                }
+                this.dataChannel = FileChannel.open(path, StandardOpenOption.READ);
+                this.dataChannelGeneration = generation;
+            }
+            return this.dataChannel;
+        }
+    }
+
+    /**
+     * Gets the in-memory index, loading the file again if it was modified since the last load. Must be called while
+     * holding a file lock: a different generation means that another process wrote the file, even if its modification
+     * time and size look the same. When the file is followed and the caller holds the write lock, only the appended
+     * lines are parsed, unless {@link FileIndex#follow()} finds the file rewritten.
+     * @return The up-to-date {@link FileIndex}, or null if the cache mode is disabled or the file could not be read.
+     */
+    private FileIndex cachedIndex() {
+        if (this.index == null) {
+            return null;
+        }
+        try {
+            long generation = this.fileLocks().getGeneration();
+            DAOListener measured = this.listener;
+            FileEvents.CacheReload event = new FileEvents.CacheReload();
+            event.begin();
+            boolean measuring = measured != null || event.isEnabled();
+            long consumed = measuring ? this.index.getConsumed() : 0;
+            long lines = measuring ? this.index.getRecordLines() : 0;
+            boolean loaded;
+            if (this.tailFollowing && this.lock.isWriteLocked()) {
+                loaded = !this.index.follow(); // Exclusive access, only the appended lines are parsed
+                this.indexGeneration = generation;
+            } else if (generation != this.indexGeneration) {
+                this.index.load();
+                this.indexGeneration = generation;
+                loaded = true;
+            } else {
+                loaded = this.index.refresh();
+            }
+            if (measuring && (loaded || this.index.getConsumed() != consumed)) {
+                long bytes = loaded ? this.index.getConsumed() : this.index.getConsumed() - consumed;
+                long parsed = loaded ? this.index.getRecordLines() : this.index.getRecordLines() - lines;
+                if (measured != null) {
+                    measured.fileRead(bytes, parsed);
+                }
+                if (event.shouldCommit()) {
+                    event.path = path.toString();
+                    event.full = loaded;
+                    event.bytes = bytes;
+                    event.lines = parsed;
+                    event.records = this.index.getLiveRecords();
+                    event.commit();
+                }
+            }
+            return this.index;
+        } catch (IOException e) {
+            reportIOError("cachedIndex", e);
+            e.printStackTrace();
+            return null;
+        }
+    }
 
 
     /**
      * Retrieves all employees from the data storage file.
-     * This method reads the "empresa.txt" file line by line, looking for entries that start with "employee". Each found entry is parsed into an Employee object and added to a list of employees. This list is then returned.
+     * This method scans the "empresa.txt" file with a {@link MappedRecordReader}, looking for entries that start with "employee". Each found entry is parsed straight from the mapped bytes into an Employee object and added to a list of employees. This list is then returned.
      *
      * The method handles any IOExceptions that might occur during file reading, printing the stack trace to standard error if an exception is caught.
      *
@@ -84,20 +1568,19 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public List<Employee> findAllEmployees() {
-        List<Employee> employees = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("employee")) {
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    Employee emp = new Employee(Integer.parseInt(parts[0]), parts[1], parts[2], Integer.parseInt(parts[3]));
-                    employees.add(emp);
-                }
+        return readFile(() -> {
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.getEmployees();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return employees;
+            try {
+                return scanRecords(cursor -> cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE ? cursor.toEmployee() : null);
+            } catch (IOException e) {
+                reportIOError("findAllEmployees", e);
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }, new ArrayList<>());
     }
 
     /**
@@ -115,25 +1598,53 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Employee findEmployeeById(Object id) {
-        if (!(id instanceof Integer)) {
-            return null;
+        return readFile(() -> {
+            if (!(id instanceof Integer)) {
+                return null;
+            }
+            int searchId = (Integer) id;
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.getEmployee(searchId);
+            }
+            Employee cached = cachedRecord(this.employeeCache, searchId);
+            if (cached != null) {
+                return cached; // Hot employee, the file is not read
+            }
+            return cacheRecord(this.employeeCache, searchId, readEmployee(searchId));
+        }, null);
+    }
+
+    /**
+     * Reads an employee from the data file, with the persistent index if it is enabled or else with a scan. Must be
+     * called while holding a file lock.
+     * @param searchId Employee's ID.
+     * @return The {@link Employee}, or null if there is no employee with that ID or an error occurs.
+     */
+    private Employee readEmployee(int searchId) {
+        FileEvents.Lookup event = new FileEvents.Lookup();
+        event.begin();
+        String[] indexed = findIndexedLine(MappedRecordReader.RecordType.EMPLOYEE, searchId);
+        if (indexed != null) {
+            commitLookup(event, MappedRecordReader.RecordType.EMPLOYEE, searchId, indexed[0], null);
+            return indexed[0] == null ? null : RecordFormat.parseEmployee(indexed[0]); // One probe and one read
         }
-        Integer searchId = (Integer) id;
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("employee")) {
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    Integer employeeId = Integer.parseInt(parts[0]);
-                    if (employeeId == searchId) {
-                        return new Employee(employeeId, parts[1], parts[2], Integer.parseInt(parts[3]));
-                    }
+        Employee[] found = new Employee[1];
+        try {
+            // Only the ID is parsed for every line, the rest of the fields are only read for the matching employee
+            long[] read = scanFile(cursor -> {
+                if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE && cursor.getInt(0) == searchId) {
+                    found[0] = cursor.toEmployee();
+                    return false; // Stop the scan
                 }
-            }
+                return true;
+            }, event.isEnabled());
+            commitLookup(event, MappedRecordReader.RecordType.EMPLOYEE, searchId, found[0], read);
         } catch (IOException e) {
+            reportIOError("readEmployee", e);
             e.printStackTrace();
         }
-        return null;
+        return found[0];
     }
 
     /**
@@ -151,19 +1662,42 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public void addEmployee(Employee employee) {
-        try (FileWriter fw = new FileWriter(path, true); // Open the file with append
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            // Line format: employee(id,surname,job,department_id)
-            String employeeData = String.format("employee(%d,%s,%s,%d)",
-                    employee.getEmpno(),
-                    employee.getName(),
-                    employee.getPosition(),
-                    employee.getDepno());
-            out.println(employeeData); // Write the new employee info in the file
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        RecordFormat.checkEmployee(employee); // Rejected before anything is written
+        runWriteFile(() -> {
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode == StorageMode.JOURNALED && cache != null) {
+                try {
+                    appendToJournal(List.of(RecordFormat.formatEmployee(employee))); // The data file is written by a checkpoint
+                    cache.putEmployee(employee);
+                } catch (IOException e) {
+                    reportIOError("addEmployee", e);
+                    e.printStackTrace();
+                }
+                return;
+            }
+            synchronized (this.logLock) { // A running log compaction must not lose the appended line
+                try (FileWriter fw = new FileWriter(path.toFile(), true); // Open the file with append
+                     BufferedWriter bw = new BufferedWriter(fw);
+                     PrintWriter out = new PrintWriter(bw)) {
+                    // Line format: employee(id,surname,job,department_id)
+                    String employeeData = String.format("employee(%d,%s,%s,%d)",
+                            employee.getEmpno(),
+                            employee.getName(),
+                            employee.getPosition(),
+                            employee.getDepno());
+                    out.println(employeeData); // Write the new employee info in the file
+                    out.flush();
+                    if (cache != null) {
+                        cache.putEmployee(employee);
+                        cache.addRecordLines(1);
+                        cache.markSynced();
+                    }
+                } catch (IOException e) {
+                    reportIOError("addEmployee", e);
+                    e.printStackTrace();
+                }
+            }
+        });
     }
 
     /**
@@ -185,47 +1719,185 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
         }
 
         int empId = (Integer) id;
+        long readGeneration = getGeneration(); // Taken before reading the record, so any later write is noticed
         Employee employee = findEmployeeById(empId);
         if (employee == null) {
             System.out.println("Employee not found.");
             return null;
         }
+        String readVersion = RecordFormat.formatEmployee(employee); // Version the user is editing
 
-        System.out.println("Updating employee with ID: " + empId);
-        System.out.print("Last name (current: " + employee.getName() + "): ");
-        String surname = scanner.nextLine();
-        if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+        String surname;
+        String job;
+        String departmentId;
+        synchronized (this.scanner) { // The terminal is shared, one interactive update at a time
+            System.out.println("Updating employee with ID: " + empId);
+            System.out.print("Last name (current: " + employee.getName() + "): ");
+            surname = scanner.nextLine();
+            if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+            RecordFormat.checkText("last name", surname);
 
-        System.out.print("Job (current: " + employee.getPosition() + "): ");
-        String job = scanner.nextLine();
-        if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+            System.out.print("Job (current: " + employee.getPosition() + "): ");
+            job = scanner.nextLine();
+            if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+            RecordFormat.checkText("job", job);
 
-        System.out.print("Department ID (current: " + employee.getDepno() + "): ");
-        String departmentId = scanner.nextLine();
-        if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+            System.out.print("Department ID (current: " + employee.getDepno() + "): ");
+            departmentId = scanner.nextLine();
+            if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+        }
 
         // Update the object with new values
         employee.setName(surname);
         employee.setPosition(job);
-        try {
-            List<String> fileContent = new ArrayList<>(Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8));
-
-            for (int i = 0; i < fileContent.size(); i++) {
-                if (fileContent.get(i).startsWith("employee(" + empId + ",")) {
+        employee.setDepno(Integer.parseInt(departmentId));
+        // The write lock is only taken now, readers were not blocked while the user typed
+        return writeFile(() -> {
+            try {
+                FileIndex cache = cachedIndex();
+                boolean modified = this.fileLocks().getGeneration() != readGeneration; // Written by another thread or process
+                if (this.storageMode != StorageMode.REWRITE) {
+                    if (cache == null) {
+                        return indexUnavailable("employee");
+                    }
+                    Employee current = cache.getEmployee(empId); // Appending a new version of a deleted employee would bring it back
+                    if (current == null || (modified && !RecordFormat.formatEmployee(current).equals(readVersion))) {
+                        return updateConflict("Employee", current == null);
+                    }
+                    appendChange(RecordFormat.formatEmployee(employee), cache); // The new version supersedes the old line
+                } else {
                     String newLine = String.format("employee(%d,%s,%s,%d)", empId, surname, job, Integer.parseInt(departmentId));
-                    fileContent.set(i, newLine);
-                    break;
+                    boolean[] conflict = new boolean[1];
+                    // Streams the file into a temporary file changing only this line, then replaces the file at once
+                    String oldLine = RecordRewriter.rewrite(path, "employee(" + empId + ",", line -> {
+                        conflict[0] = modified && !RecordFormat.formatEmployee(RecordFormat.parseEmployee(line.strip())).equals(readVersion);
+                        return conflict[0] ? line : newLine; // Returning the current line leaves the file untouched
+                    });
+                    if (oldLine == null || conflict[0]) {
+                        return updateConflict("Employee", oldLine == null);
+                    }
+                    recordRewritten(MappedRecordReader.RecordType.EMPLOYEE, empId, false);
                 }
+                if (cache != null) {
+                    cache.putEmployee(employee);
+                    cache.markSynced();
+                    scheduleCompactionIfNeeded(cache);
+                }
+                System.out.println("The employee was successfully updated in the file.");
+            } catch (IOException e) {
+                reportIOError("updateEmployee", e);
+                System.err.println("An error occurred while writing to the file: " + e.getMessage());
+                return null;
             }
 
-            Files.write(Paths.get(path), fileContent, StandardCharsets.UTF_8);
-            System.out.println("The employee was successfully updated in the file.");
-        } catch (IOException e) {
-            System.err.println("An error occurred while writing to the file: " + e.getMessage());
-            return null;
+            return employee;
+        }, null);
+    }
+
+    /**
+     * Updates an employee with the given values, without asking for them. See {@link #updateEmployees(Collection)}.
+     * @param employee {@link Employee} with the ID of the employee to update and its new values.
+     * @return The given {@link Employee} if it was updated, or null if there is no employee with that ID or an error occurs.
+     */
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        List<Employee> updated = updateEmployees(List.of(employee));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
+
+    /**
+     * Updates many employees with the given values in a single write, without asking for them.
+     * In {@link StorageMode#REWRITE} mode the data file is rewritten once for the whole batch (see
+     * {@link RecordRewriter#rewriteAll}); in the other modes the new versions are appended with a single write.
+     * @param employees {@link Employee} objects with the ID of the employees to update and their new values.
+     * @return List of the updated employees (the given objects), in the order they were given. Employees whose ID
+     *         doesn't exist are skipped. If an error occurs nothing is updated and an empty list is returned.
+     */
+    @Override
+    public List<Employee> updateEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        return updateRecords(employees, MappedRecordReader.RecordType.EMPLOYEE, Employee::getEmpno, RecordFormat::formatEmployee);
+    }
+
+    /**
+     * Applies a batch of value-based updates of one record type. The caller must not hold the locks.
+     * @param records New versions of the records. If an ID appears more than once, the last version is stored.
+     * @param type {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+     * @param idOf Function that gets the ID of a record.
+     * @param formatter Function that formats a record as a data file line.
+     * @param <T> {@link Employee} or {@link Department}.
+     * @return List of the updated records. It is empty if an error occurs.
+     */
+    private <T> List<T> updateRecords(Collection<T> records, MappedRecordReader.RecordType type, ToIntFunction<T> idOf, Function<T, String> formatter) {
+        Map<Integer, T> changes = new LinkedHashMap<>();
+        for (T record : records) {
+            changes.remove(idOf.applyAsInt(record)); // The last version of an ID keeps its position
+            changes.put(idOf.applyAsInt(record), record);
         }
-
-        return employee;
+        if (changes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return writeFile(() -> {
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            List<T> updated = new ArrayList<>();
+            try {
+                if (this.storageMode != StorageMode.REWRITE) {
+                    if (cache == null) {
+                        indexUnavailable(type == MappedRecordReader.RecordType.EMPLOYEE ? "employees" : "departments");
+                        return updated;
+                    }
+                    List<String> lines = new ArrayList<>();
+                    for (T record : changes.values()) {
+                        int id = idOf.applyAsInt(record);
+                        // Appending a new version of a deleted record would bring it back
+                        if (type == MappedRecordReader.RecordType.EMPLOYEE ? cache.getEmployee(id) != null : cache.getDepartment(id) != null) {
+                            lines.add(formatter.apply(record));
+                            updated.add(record);
+                        }
+                    }
+                    if (!lines.isEmpty()) {
+                        appendChanges(lines, cache);
+                    }
+                } else if (changes.size() == 1) {
+                    T record = changes.values().iterator().next();
+                    int id = idOf.applyAsInt(record);
+                    String prefix = (type == MappedRecordReader.RecordType.EMPLOYEE ? RecordFormat.EMPLOYEE_PREFIX : RecordFormat.DEPARTMENT_PREFIX) + id + ",";
+                    String newLine = formatter.apply(record);
+                    if (RecordRewriter.rewrite(path, prefix, line -> newLine) != null) {
+                        recordRewritten(type, id, false); // A single change keeps the persistent index in sync
+                        updated.add(record);
+                    }
+                } else {
+                    Map<Integer, String> newLines = new HashMap<>();
+                    for (Map.Entry<Integer, T> change : changes.entrySet()) {
+                        newLines.put(change.getKey(), formatter.apply(change.getValue()));
+                    }
+                    Set<Integer> replaced = RecordRewriter.rewriteAll(path, type, newLines); // One pass over the file
+                    recordsRewritten(type, replaced);
+                    for (Map.Entry<Integer, T> change : changes.entrySet()) {
+                        if (replaced.contains(change.getKey())) {
+                            updated.add(change.getValue());
+                        }
+                    }
+                }
+                if (cache != null && !updated.isEmpty()) {
+                    for (T record : updated) {
+                        if (record instanceof Employee employee) {
+                            cache.putEmployee(employee);
+                        } else {
+                            cache.putDepartment((Department) record);
+                        }
+                    }
+                    cache.markSynced();
+                    scheduleCompactionIfNeeded(cache);
+                }
+            } catch (IOException e) {
+                reportIOError("updateRecords", e);
+                System.err.println("An error occurred while writing to the file: " + e.getMessage());
+                return new ArrayList<>();
+            }
+            return updated;
+        }, new ArrayList<>());
     }
 
     /**
@@ -239,52 +1911,57 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Employee deleteEmployee(Object id) {
-        if (!(id instanceof Integer)) {
-            System.out.println("Invalid ID");
-            return null;
-        }
+        return writeFile(() -> {
+            if (!(id instanceof Integer)) {
+                System.out.println("Invalid ID");
+                return null;
+            }
 
-        int empId = (Integer) id;
-        List<String> lines = new ArrayList<>();
-        Employee employeeToRemove = null;
-        boolean found = false;
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("employee(")) {
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    int employeeId = Integer.parseInt(parts[0]);
-                    if (employeeId == empId) {
-                        employeeToRemove = new Employee(employeeId, parts[1], parts[2], Integer.parseInt(parts[3]));
-                        found = true; // Mark that the employee was found and is to be removed
-                        continue; // Skip adding this line to 'lines'
-                    }
+            int empId = (Integer) id;
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode != StorageMode.REWRITE && cache != null) {
+                Employee employeeToRemove = cache.getEmployee(empId);
+                if (employeeToRemove == null) {
+                    System.out.println("Employee not found.");
+                    return null;
                 }
-                lines.add(line); // Add the line to be kept
+                try {
+                    appendChange(RecordFormat.formatTombstone(RecordFormat.EMPLOYEE_KIND, empId), cache); // Tombstone instead of a rewrite
+                    cache.removeEmployee(empId);
+                    cache.markSynced();
+                } catch (IOException e) {
+                    reportIOError("deleteEmployee", e);
+                    e.printStackTrace();
+                    return null;
+                }
+                scheduleCompactionIfNeeded(cache);
+                System.out.println("Employee has been deleted.");
+                return employeeToRemove;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        if (!found) {
-            System.out.println("Employee not found.");
-            return null;
-        }
-
-        // Write everything back, except the removed employee
-        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
-            for (String line : lines) {
-                out.println(line);
+            Employee employeeToRemove;
+            // Stream the file into a temporary file without the employee line, then move it over the data file
+            try {
+                String removedLine = RecordRewriter.rewrite(path, "employee(" + empId + ",", line -> null);
+                if (removedLine == null) {
+                    System.out.println("Employee not found.");
+                    return null;
+                }
+                employeeToRemove = RecordFormat.parseEmployee(removedLine.strip());
+                recordRewritten(MappedRecordReader.RecordType.EMPLOYEE, empId, true);
+                if (cache != null) {
+                    cache.removeEmployee(empId);
+                    cache.addRecordLines(-1);
+                    cache.markSynced();
+                }
+            } catch (IOException e) {
+                reportIOError("deleteEmployee", e);
+                e.printStackTrace();
+                return null;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
 
-        System.out.println("Employee has been deleted.");
-        return employeeToRemove;
+            System.out.println("Employee has been deleted.");
+            return employeeToRemove;
+        }, null);
     }
 
     /**
@@ -296,20 +1973,19 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public List<Department> findAllDepartments() {
-        List<Department> departments = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("department")) {
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    Department dept = new Department(Integer.parseInt(parts[0]), parts[1], parts[2]);
-                    departments.add(dept);
-                }
+        return readFile(() -> {
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.getDepartments();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return departments;
+            try {
+                return scanRecords(cursor -> cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT ? cursor.toDepartment() : null);
+            } catch (IOException e) {
+                reportIOError("findAllDepartments", e);
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }, new ArrayList<>());
     }
 
     /**
@@ -323,29 +1999,55 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Department findDepartmentById(Object id) {
-        // Check if the provided ID is an instance of Integer to ensure type safety.
-        if (!(id instanceof Integer)) {
-            return null; // Alternatively, handle the error appropriately.
-        }
-
-        int searchId = (Integer) id; // Cast the ID to an Integer.
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) { // Open the file for reading.
-            String line;
-            while ((line = reader.readLine()) != null) { // Read the file line by line.
-                if (line.startsWith("department")) { // Look for lines that represent departments.
-                    // Extract the department details enclosed in parentheses and split by comma.
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    int departmentId = Integer.parseInt(parts[0]); // Parse the department ID.
-                    if (departmentId == searchId) { // Check if the department ID matches the search ID.
-                        // Construct and return a Department object with the extracted details.
-                        return new Department(departmentId, parts[1], parts[2]);
-                    }
-                }
+        return readFile(() -> {
+            // Check if the provided ID is an instance of Integer to ensure type safety.
+            if (!(id instanceof Integer)) {
+                return null; // Alternatively, handle the error appropriately.
             }
+
+            int searchId = (Integer) id; // Cast the ID to an Integer.
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.getDepartment(searchId); // Served from memory, the file is not read.
+            }
+            Department cached = cachedRecord(this.departmentCache, searchId);
+            if (cached != null) {
+                return cached; // Hot department, the file is not read.
+            }
+            return cacheRecord(this.departmentCache, searchId, readDepartment(searchId));
+        }, null);
+    }
+
+    /**
+     * Reads a department from the data file, with the persistent index if it is enabled or else with a scan. Must be
+     * called while holding a file lock.
+     * @param searchId Department's ID.
+     * @return The {@link Department}, or null if there is no department with that ID or an error occurs.
+     */
+    private Department readDepartment(int searchId) {
+        FileEvents.Lookup event = new FileEvents.Lookup();
+        event.begin();
+        String[] indexed = findIndexedLine(MappedRecordReader.RecordType.DEPARTMENT, searchId);
+        if (indexed != null) { // Found with the persistent index, only the record line is read.
+            commitLookup(event, MappedRecordReader.RecordType.DEPARTMENT, searchId, indexed[0], null);
+            return indexed[0] == null ? null : RecordFormat.parseDepartment(indexed[0]);
+        }
+        Department[] found = new Department[1];
+        try {
+            long[] read = scanFile(cursor -> { // Map the file and visit every record.
+                // Look for department records and parse only their ID straight from the mapped bytes.
+                if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT && cursor.getInt(0) == searchId) {
+                    found[0] = cursor.toDepartment(); // Construct the Department object only for the match.
+                    return false; // Stop the scan.
+                }
+                return true;
+            }, event.isEnabled());
+            commitLookup(event, MappedRecordReader.RecordType.DEPARTMENT, searchId, found[0], read);
         } catch (IOException e) {
+            reportIOError("readDepartment", e);
             e.printStackTrace();
         }
-        return null;
+        return found[0];
     }
 
     /**
@@ -359,18 +2061,41 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public void addDepartment(Department department) {
-        try (FileWriter fw = new FileWriter(path, true); // Opens the file in append mode to ensure existing content is not overwritten
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            // Line format: department(id,name,city)
-            String departmentData = String.format("department(%d,%s,%s)",
-                    department.getDepno(),
-                    department.getName(),
-                    department.getLocation());
-            out.println(departmentData); // Writes the new department information into the file
-        } catch (IOException e) {
-            e.printStackTrace(); // Handles IOException by printing the stack trace
-        }
+        RecordFormat.checkDepartment(department); // Rejected before anything is written
+        runWriteFile(() -> {
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode == StorageMode.JOURNALED && cache != null) {
+                try {
+                    appendToJournal(List.of(RecordFormat.formatDepartment(department))); // The data file is written by a checkpoint
+                    cache.putDepartment(department);
+                } catch (IOException e) {
+                    reportIOError("addDepartment", e);
+                    e.printStackTrace();
+                }
+                return;
+            }
+            synchronized (this.logLock) { // A running log compaction must not lose the appended line
+                try (FileWriter fw = new FileWriter(path.toFile(), true); // Opens the file in append mode to ensure existing content is not overwritten
+                     BufferedWriter bw = new BufferedWriter(fw);
+                     PrintWriter out = new PrintWriter(bw)) {
+                    // Line format: department(id,name,city)
+                    String departmentData = String.format("department(%d,%s,%s)",
+                            department.getDepno(),
+                            department.getName(),
+                            department.getLocation());
+                    out.println(departmentData); // Writes the new department information into the file
+                    out.flush();
+                    if (cache != null) {
+                        cache.putDepartment(department);
+                        cache.addRecordLines(1);
+                        cache.markSynced();
+                    }
+                } catch (IOException e) {
+                    reportIOError("addDepartment", e);
+                    e.printStackTrace(); // Handles IOException by printing the stack trace
+                }
+            }
+        });
     }
 
     /**
@@ -388,44 +2113,97 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
         }
 
         int deptId = (Integer) id;
+        long readGeneration = getGeneration(); // Taken before reading the record, so any later write is noticed
         Department department = findDepartmentById(deptId); // Attempts to find the department by ID
         if (department == null) {
             System.out.println("Department not found."); // Indicates if the department was not found
             return null;
         }
+        String readVersion = RecordFormat.formatDepartment(department); // Version the user is editing
 
-        System.out.println("Updating department with ID: " + deptId); // Begins the update process
-        System.out.print("Name (current: " + department.getName() + "): "); // Prompts for a new name
-        String name = scanner.nextLine();
-        if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty"); // Ensures the new name is not empty
+        String name;
+        String city;
+        synchronized (this.scanner) { // The terminal is shared, one interactive update at a time
+            System.out.println("Updating department with ID: " + deptId); // Begins the update process
+            System.out.print("Name (current: " + department.getName() + "): "); // Prompts for a new name
+            name = scanner.nextLine();
+            if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty"); // Ensures the new name is not empty
+            RecordFormat.checkText("name", name);
 
-        System.out.print("City (current: " + department.getLocation() + "): "); // Prompts for a new city
-        String city = scanner.nextLine();
-        if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty"); // Ensures the new city is not empty
+            System.out.print("City (current: " + department.getLocation() + "): "); // Prompts for a new city
+            city = scanner.nextLine();
+            if (city.isEmpty()) throw new IllegalArgumentException("The city cannot be empty"); // Ensures the new city is not empty
+            RecordFormat.checkText("city", city);
+        }
 
         department.setName(name); // Updates the department's name
         department.setLocation(city); // Updates the department's city
 
-        // Implements the logic to write the updated Department object back to the file
-        try {
-            List<String> fileContent = new ArrayList<>(Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8));
-
-            for (int i = 0; i < fileContent.size(); i++) {
-                if (fileContent.get(i).startsWith("department(" + deptId + ",")) {
+        // Implements the logic to write the updated Department object back to the file, holding the write lock only now
+        return writeFile(() -> {
+            try {
+                FileIndex cache = cachedIndex();
+                boolean modified = this.fileLocks().getGeneration() != readGeneration; // Written by another thread or process
+                if (this.storageMode != StorageMode.REWRITE) {
+                    if (cache == null) {
+                        return indexUnavailable("department");
+                    }
+                    Department current = cache.getDepartment(deptId); // Appending a new version of a deleted department would bring it back
+                    if (current == null || (modified && !RecordFormat.formatDepartment(current).equals(readVersion))) {
+                        return updateConflict("Department", current == null);
+                    }
+                    appendChange(RecordFormat.formatDepartment(department), cache); // The new version supersedes the old line
+                } else {
                     String newLine = String.format("department(%d,%s,%s)", deptId, name, city); // Formats the updated department data
-                    fileContent.set(i, newLine); // Replaces the old department data with the updated data in the file content list
-                    break;
+                    boolean[] conflict = new boolean[1];
+                    // Streams the file into a temporary file replacing only this line, then moves it over the data file
+                    String oldLine = RecordRewriter.rewrite(path, "department(" + deptId + ",", line -> {
+                        conflict[0] = modified && !RecordFormat.formatDepartment(RecordFormat.parseDepartment(line.strip())).equals(readVersion);
+                        return conflict[0] ? line : newLine; // Returning the current line leaves the file untouched
+                    });
+                    if (oldLine == null || conflict[0]) {
+                        return updateConflict("Department", oldLine == null);
+                    }
+                    recordRewritten(MappedRecordReader.RecordType.DEPARTMENT, deptId, false);
+                }
+                if (cache != null) {
+                    cache.putDepartment(department); // Keeps the cached copy in line with the file
+                    cache.markSynced();
+                    scheduleCompactionIfNeeded(cache);
                 }
+                System.out.println("Department has been successfully updated in the file."); // Confirms the department update
+            } catch (IOException e) {
+                reportIOError("updateDepartment", e);
+                System.err.println("An error occurred while writing to the file: " + e.getMessage()); // Handles possible IOException
+                return null;
             }
 
-            Files.write(Paths.get(path), fileContent, StandardCharsets.UTF_8); // Writes the updated file content back to the file
-            System.out.println("Department has been successfully updated in the file."); // Confirms the department update
-        } catch (IOException e) {
-            System.err.println("An error occurred while writing to the file: " + e.getMessage()); // Handles possible IOException
-            return null;
-        }
+            return department; // Returns the updated department object
+        }, null);
+    }
+
+    /**
+     * Updates a department with the given values, without asking for them. See {@link #updateDepartments(Collection)}.
+     * @param department {@link Department} with the ID of the department to update and its new values.
+     * @return The given {@link Department} if it was updated, or null if there is no department with that ID or an error occurs.
+     */
+    @Override
+    public Department updateDepartment(Department department) {
+        List<Department> updated = updateDepartments(List.of(department));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
 
-        return department; // Returns the updated department object
+    /**
+     * Updates many departments with the given values in a single write, without asking for them. The data file is
+     * written once for the whole batch, as in {@link #updateEmployees(Collection)}.
+     * @param departments {@link Department} objects with the ID of the departments to update and their new values.
+     * @return List of the updated departments (the given objects), in the order they were given. Departments whose ID
+     *         doesn't exist are skipped. If an error occurs nothing is updated and an empty list is returned.
+     */
+    @Override
+    public List<Department> updateDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        return updateRecords(departments, MappedRecordReader.RecordType.DEPARTMENT, Department::getDepno, RecordFormat::formatDepartment);
     }
 
     /**
@@ -438,60 +2216,63 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public Department deleteDepartment(Object id) {
-        // Validate if the provided ID is an Integer, if not, return null
-        if (!(id instanceof Integer)) {
-            System.out.println("The provided ID is not valid.");
-            return null;
-        }
+        return writeFile(() -> {
+            // Validate if the provided ID is an Integer, if not, return null
+            if (!(id instanceof Integer)) {
+                System.out.println("The provided ID is not valid.");
+                return null;
+            }
 
-        int deptId = (Integer) id;
-        List<String> lines = new ArrayList<>();
-        Department departmentToRemove = null;
-        boolean found = false;
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Identify department lines and check if it matches the department to delete
-                if (line.startsWith("department(")) {
-                    String[] parts = line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
-                    int departmentId = Integer.parseInt(parts[0]);
-                    if (departmentId == deptId) {
-                        // Construct the department object to return and mark as found
-                        departmentToRemove = new Department(departmentId, parts[1], parts[2]);
-                        found = true; // This line should be skipped and not added back
-                        continue; // Skip this iteration, effectively not adding the department to be deleted
-                    }
+            int deptId = (Integer) id;
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode != StorageMode.REWRITE && cache != null) {
+                Department departmentToRemove = cache.getDepartment(deptId);
+                if (departmentToRemove == null) {
+                    System.out.println("Department not found.");
+                    return null;
                 }
-                lines.add(line); // Add the current line to be kept in the file
+                try {
+                    appendChange(RecordFormat.formatTombstone(RecordFormat.DEPARTMENT_KIND, deptId), cache); // Tombstone instead of a rewrite
+                    cache.removeDepartment(deptId);
+                    cache.markSynced();
+                } catch (IOException e) {
+                    reportIOError("deleteDepartment", e);
+                    e.printStackTrace();
+                    return null;
+                }
+                scheduleCompactionIfNeeded(cache);
+                System.out.println("Department has been successfully deleted.");
+                return departmentToRemove;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        if (!found) {
-            System.out.println("Department not found.");
-            return null;
-        }
-
-        // Rewrite the file without the deleted department
-        try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
-            for (String line : lines) {
-                out.println(line); // Write each line back to the file, excluding the removed department
+            Department departmentToRemove;
+            // Stream the file into a temporary file without the department line, then move it over the data file
+            try {
+                String removedLine = RecordRewriter.rewrite(path, "department(" + deptId + ",", line -> null);
+                if (removedLine == null) {
+                    System.out.println("Department not found.");
+                    return null;
+                }
+                departmentToRemove = RecordFormat.parseDepartment(removedLine.strip()); // The department object to return
+                recordRewritten(MappedRecordReader.RecordType.DEPARTMENT, deptId, true);
+                if (cache != null) {
+                    cache.removeDepartment(deptId);
+                    cache.addRecordLines(-1);
+                    cache.markSynced();
+                }
+            } catch (IOException e) {
+                reportIOError("deleteDepartment", e);
+                e.printStackTrace();
+                return null;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
 
-        System.out.println("Department has been successfully deleted.");
-        return departmentToRemove;
+            System.out.println("Department has been successfully deleted.");
+            return departmentToRemove;
+        }, null);
     }
 
     /**
      * Retrieves a list of employees who belong to a specific department.
-     * Validates the department ID before proceeding to ensure it's an integer. Then, it iterates through all employees,
+     * Validates the department ID before proceeding to ensure it's an integer. Then, it scans all employee records,
      * adding those to a list whose department ID matches the provided department ID.
      *
      * @param idDept The unique identifier of the department whose employees are to be found. Expected to be of type {@link Integer}.
@@ -499,38 +2280,344 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
      */
     @Override
     public List<Employee> findEmployeesByDept(Object idDept) {
-        // Validate that the provided department ID is an Integer
-        if (!(idDept instanceof Integer)) {
-            System.out.println("Invalid department ID");
-            return null;
+        return readFile(() -> {
+            // Validate that the provided department ID is an Integer
+            if (!(idDept instanceof Integer)) {
+                System.out.println("Invalid department ID");
+                return null;
+            }
+
+            int deptId = (Integer) idDept;
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.getEmployeesByDept(deptId); // Secondary index, only the department's employees are visited
+            }
+            try {
+                // Scan the file comparing the department ID of every employee, only the matching ones become objects.
+                return scanRecords(cursor ->
+                        cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE && cursor.getInt(3) == deptId ? cursor.toEmployee() : null);
+            } catch (IOException e) {
+                reportIOError("findEmployeesByDept", e);
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }, new ArrayList<>());
+    }
+
+
+    /**
+     * Retrieves the employees that meet a filter.
+     * With the cache disabled, the filter is checked on the bytes of every employee line while the file is scanned (in
+     * parallel if it is enabled), and only the matching lines are turned into {@link Employee} objects.
+     * With the cache enabled, the filter is checked on the columns of the cached table, comparing dictionary codes
+     * instead of texts (see {@link EmployeeTable#find(RecordFilter)}).
+     *
+     * @param filter Employee {@link RecordFilter}.
+     * @return A list of the matching employees. If none match or an error occurs, an empty list is returned.
+     * @throws IllegalArgumentException If the filter is not an employee filter.
+     */
+    @Override
+    public List<Employee> findEmployees(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.EMPLOYEE);
+        return readFile(() -> {
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                return cache.findEmployees(filter);
+            }
+            try {
+                return scanRecords(cursor -> filter.matches(cursor) ? cursor.toEmployee() : null);
+            } catch (IOException e) {
+                reportIOError("findEmployees", e);
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }, new ArrayList<>());
+    }
+
+    /**
+     * Retrieves the departments that meet a filter.
+     * With the cache disabled, the filter is checked on the bytes of every department line while the file is scanned,
+     * and only the matching lines are turned into {@link Department} objects.
+     *
+     * @param filter Department {@link RecordFilter}.
+     * @return A list of the matching departments. If none match or an error occurs, an empty list is returned.
+     * @throws IllegalArgumentException If the filter is not a department filter.
+     */
+    @Override
+    public List<Department> findDepartments(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.DEPARTMENT);
+        return readFile(() -> {
+            FileIndex cache = cachedIndex();
+            if (cache != null) {
+                List<Department> found;
+                try (Stream<Department> departments = cache.streamDepartments()) {
+                    found = departments.filter(filter::matches).collect(Collectors.toCollection(ArrayList::new));
+                }
+                return found;
+            }
+            try {
+                return scanRecords(cursor -> filter.matches(cursor) ? cursor.toDepartment() : null);
+            } catch (IOException e) {
+                reportIOError("findDepartments", e);
+                e.printStackTrace();
+                return new ArrayList<>();
+            }
+        }, new ArrayList<>());
+    }
+
+    /**
+     * Adds many employees to the data storage file in a single operation.
+     * Instead of opening the file once per employee like {@link #addEmployee(Employee)}, all the lines are written through
+     * a single {@link BatchAppender}, which reuses its buffers and forces the data to disk once for the whole batch.
+     *
+     * @param employees The {@link Employee} objects to append to the file.
+     */
+    @Override
+    public void addEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        runWriteFile(() -> {
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode == StorageMode.JOURNALED && cache != null) {
+                List<String> lines = new ArrayList<>(employees.size());
+                for (Employee employee : employees) {
+                    lines.add(RecordFormat.formatEmployee(employee));
+                }
+                try {
+                    appendToJournal(lines); // One journal entry for the whole batch
+                } catch (IOException e) {
+                    reportIOError("addEmployees", e);
+                    e.printStackTrace();
+                    return;
+                }
+                for (Employee employee : employees) {
+                    cache.putEmployee(employee);
+                }
+                return;
+            }
+            synchronized (this.logLock) { // A running log compaction must not lose the appended lines
+                try (BatchAppender out = new BatchAppender(path)) {
+                    for (Employee employee : employees) {
+                        out.append(employee);
+                    }
+                } catch (IOException e) {
+                    reportIOError("addEmployees", e);
+                    e.printStackTrace();
+                    return;
+                }
+                if (cache != null) {
+                    for (Employee employee : employees) {
+                        cache.putEmployee(employee);
+                    }
+                    cache.addRecordLines(employees.size());
+                    markSynced(cache);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds many departments to the data storage file in a single operation.
+     * All the lines are written through a single {@link BatchAppender}, which reuses its buffers and forces the data to
+     * disk once for the whole batch.
+     *
+     * @param departments The {@link Department} objects to append to the file.
+     */
+    @Override
+    public void addDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        runWriteFile(() -> {
+            FileIndex cache = cachedIndex(); // Make sure the index is up-to-date before writing
+            if (this.storageMode == StorageMode.JOURNALED && cache != null) {
+                List<String> lines = new ArrayList<>(departments.size());
+                for (Department department : departments) {
+                    lines.add(RecordFormat.formatDepartment(department));
+                }
+                try {
+                    appendToJournal(lines); // One journal entry for the whole batch
+                } catch (IOException e) {
+                    reportIOError("addDepartments", e);
+                    e.printStackTrace();
+                    return;
+                }
+                for (Department department : departments) {
+                    cache.putDepartment(department);
+                }
+                return;
+            }
+            synchronized (this.logLock) { // A running log compaction must not lose the appended lines
+                try (BatchAppender out = new BatchAppender(path)) {
+                    for (Department department : departments) {
+                        out.append(department);
+                    }
+                } catch (IOException e) {
+                    reportIOError("addDepartments", e);
+                    e.printStackTrace();
+                    return;
+                }
+                if (cache != null) {
+                    for (Department department : departments) {
+                        cache.putDepartment(department);
+                    }
+                    cache.addRecordLines(departments.size());
+                    markSynced(cache);
+                }
+            }
+        });
+    }
+
+    /**
+     * Streams all employees of the data storage file.
+     * The file is read through a {@link MappedRecordReader.RecordIterator} while the stream is consumed, so the first
+     * employees are available at once and memory doesn't depend on the file size. No lock is held while the stream is
+     * open: it shows the file as it was when it was opened, and closing the stream (or consuming it fully) closes the file.
+     * In cache mode the stream is served from the in-memory {@link FileIndex}.
+     *
+     * @return Lazy {@link Stream} of {@link Employee} objects. If the file can't be opened, an empty stream is returned.
+     */
+    @Override
+    public Stream<Employee> streamEmployees() {
+        Stream<Employee> cached = readFile(() -> {
+            FileIndex cache = cachedIndex();
+            return cache == null ? null : cache.streamEmployees();
+        }, Stream.empty());
+        if (cached != null) {
+            return cached;
         }
+        return streamRecords(MappedRecordReader.RecordType.EMPLOYEE, MappedRecordReader.Cursor::toEmployee);
+    }
 
-        int deptId = (Integer) idDept;
-        // Fetch all employees
-        List<Employee> allEmployees = findAllEmployees();
-        // Prepare a list to hold employees belonging to the specified department
-        List<Employee> employeesByDept = new ArrayList<>();
+    /**
+     * Streams all departments of the data storage file.
+     * The file is read while the stream is consumed, as it was when the stream was opened, without holding any lock.
+     * Closing the stream (or consuming it fully) closes the file.
+     * In cache mode the stream is served from the in-memory {@link FileIndex}.
+     *
+     * @return Lazy {@link Stream} of {@link Department} objects. If the file can't be opened, an empty stream is returned.
+     */
+    @Override
+    public Stream<Department> streamDepartments() {
+        Stream<Department> cached = readFile(() -> {
+            FileIndex cache = cachedIndex();
+            return cache == null ? null : cache.streamDepartments();
+        }, Stream.empty());
+        if (cached != null) {
+            return cached;
+        }
+        return streamRecords(MappedRecordReader.RecordType.DEPARTMENT, MappedRecordReader.Cursor::toDepartment);
+    }
 
-        // Iterate through all employees to find those who belong to the specified department
-        for (Employee emp : allEmployees) {
-            if (emp.getDepno() == deptId) {
-                // If an employee belongs to the department, add them to the list
-                employeesByDept.add(emp);
+    /**
+     * Creates a lazy stream of the records of one type of the data file.
+     * The file is opened with its own channel while holding the locks, which are released at once. Writers append after
+     * the end the stream reads up to or replace the file with an atomic rename, so the stream keeps reading the file as it
+     * was when it was opened, and the DAO can be written while the stream is open, even by the thread that consumes it.
+     * @param type Type of the records to stream.
+     * @param mapper Function that creates the object from the cursor of a record.
+     * @param <T> Type of the streamed objects.
+     * @return {@link Stream} that reads the file while it is consumed and closes its channel when the stream is closed
+     *         or fully consumed.
+     */
+    private <T> Stream<T> streamRecords(MappedRecordReader.RecordType type, Function<MappedRecordReader.Cursor, T> mapper) {
+        MappedRecordReader.RecordIterator records = readFile(() -> {
+            try {
+                return MappedRecordReader.open(path); // Not the shared channel, it is closed once the file is rewritten
+            } catch (IOException e) {
+                reportIOError("streamRecords", e);
+                e.printStackTrace();
+                return null;
+            }
+        }, null);
+        if (records == null) {
+            return Stream.empty();
+        }
+        AtomicBoolean released = new AtomicBoolean(false);
+        DAOListener measured = this.listener;
+        FileEvents.Scan event = new FileEvents.Scan();
+        event.begin(); // The scan lasts until the stream ends
+        long[] read = new long[3]; // Lines parsed, end of the last one and records returned, reported when the stream ends
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                if (measured != null) {
+                    measured.fileRead(read[1], read[0]);
+                }
+                if (event.shouldCommit()) {
+                    event.path = path.toString();
+                    event.lines = read[0];
+                    event.bytes = read[1];
+                    event.records = read[2];
+                    event.commit();
+                }
+                try {
+                    records.close();
+                } catch (IOException e) {
+                    reportIOError("streamRecords", e);
+                    e.printStackTrace();
+                }
+            }
+        };
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (released.get()) {
+                    return false;
+                }
+                try {
+                    while (records.next()) { // Parse only until the next record of the requested type
+                        read[0]++;
+                        read[1] = records.cursor().getOffset() + records.cursor().getLength() + 1;
+                        if (records.cursor().getType() == type) {
+                            read[2]++;
+                            action.accept(mapper.apply(records.cursor()));
+                            return true;
+                        }
+                    }
+                    release.run(); // Fully consumed, the file is closed without waiting for close()
+                    return false;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(release);
+    }
+
+    /**
+     * Remembers the current state of the data file in the index after a write, printing the error if it fails.
+     * @param cache Index of the file.
+     */
+    private void markSynced(FileIndex cache) {
+        try {
+            cache.markSynced();
+        } catch (IOException e) {
+            reportIOError("markSynced", e);
+            e.printStackTrace();
         }
-        // Return the list of employees found for the specified department
-        return employeesByDept;
     }
 
+    /**
+     * Gets the generation of the data file, a counter stored in the lock file that every write of any process increases.
+     * @return Current generation, or -1 if the lock file can't be read.
+     */
+    @Override
+    public long getGeneration() {
+        try {
+            return this.fileLocks().getGeneration();
+        } catch (IOException e) {
+            reportIOError("getGeneration", e);
+            e.printStackTrace();
+            return -1;
+        }
+    }
 
     @Override
     public boolean checkFileExists() {
         try {
-            // Check if the file exists using the predefined path variable
-            connectionFlag = Files.exists(Paths.get(path));
+            // Check if the file exists using the path of this DAO
+            connectionFlag = Files.exists(path);
 
             if (connectionFlag) {
-                System.out.println("The database file empresa.txt exists.");
+                System.out.println("The database file " + path.getFileName() + " exists.");
+                recoverJournal();
             } else {
                 System.out.println("The file does not exist, connectionFlag is set to false.");
             }
@@ -540,14 +2627,76 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
             return false; // Return false if an exception is caught
         }
     }
+    /**
+     * Applies the changes that a crashed process left in the journal of the data file, so no acknowledged write is lost
+     * whatever the current storage mode is.
+     */
+    private void recoverJournal() {
+        Path journalFile = WriteAheadJournal.journalPath(path);
+        runWithWriteLock(() -> {
+            try {
+                if (this.journal != null) {
+                    checkpoint();
+                } else if (Files.exists(journalFile) && Files.size(journalFile) > 0) {
+                    long recovered;
+                    synchronized (this.checkpointLock) {
+                        try (WriteAheadJournal wal = new WriteAheadJournal(path)) {
+                            recovered = wal.checkpoint(this.fileLocks(), null);
+                        }
+                    }
+                    if (recovered > 0) {
+                        System.out.println(recovered + " changes were recovered from the journal.");
+                    }
+                }
+            } catch (IOException e) {
+                reportIOError("recoverJournal", e);
+                System.err.println("ERROR: The journal could not be recovered: " + e.getMessage());
+            }
+        });
+    }
+
     @Override
     public void closeConnection() {
+        runWithWriteLock(() -> {
+            this.stopTailWatcher(); // Started again if the DAO is used later
+            this.stopCompactions(); // A running log compaction is allowed to finish
+            if (this.journal != null) {
+                try {
+                    this.stopCheckpoints();
+                    checkpoint(); // The data file is left up-to-date for the other storage modes
+                } catch (IOException e) {
+                    reportIOError("closeConnection", e);
+                    System.err.println("ERROR: The journal could not be checkpointed: " + e.getMessage());
+                }
+            }
+            if (this.offsetIndex != null) {
+                try {
+                    this.offsetIndex.close(); // Opened again if the DAO is used later
+                } catch (IOException e) {
+                    reportIOError("closeConnection", e);
+                    e.printStackTrace();
+                }
+            }
+            try {
+                synchronized (this.dataChannelLock) {
+                    if (this.dataChannel != null) {
+                        this.dataChannel.close(); // Opened again if the DAO is used later
+                        this.dataChannel = null;
+                    }
+                }
+                this.fileLocks().closeIdle();
+            } catch (IOException e) {
+                reportIOError("closeConnection", e);
+                e.printStackTrace();
+            }
+        });
         try {
             if (reader != null) {
                 reader.close(); // Close the BufferedReader or other input stream
                 System.out.printf("%s- Database connection closed -%s\n", GREEN_FONT, RESET);
             }
         } catch (IOException e) {
+            reportIOError("closeConnection", e);
             System.err.println("ERROR: An error occurred while closing file resources: " + e.getMessage());
         }
     }
@@ -559,7 +2708,7 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
         try {
             while (this.executionFlag) {
                 System.out.printf("%s%s- WELCOME TO THE COMPANY -%s\n", "\u001B[46m", BLACK_FONT, RESET);
-                System.out.println("Select an option:" + "\n\t1) List all Employees" + "\n\t2) Find Employee by its ID" + "\n\t3) Add new Employee" + "\n\t4) Update Employee" + "\n\t5) Delete Employee" + "\n\t6) List all Departments" + "\n\t7) Find Department by its ID" + "\n\t8) Add new Department" + "\n\t9) Update Department" + "\n\t10) Delete Department" + "\n\t11) Find Employees by Department" + "\n\t0) Exit program");
+                System.out.println("Select an option:" + "\n\t1) List all Employees" + "\n\t2) Find Employee by its ID" + "\n\t3) Add new Employee" + "\n\t4) Update Employee" + "\n\t5) Delete Employee" + "\n\t6) List all Departments" + "\n\t7) Find Department by its ID" + "\n\t8) Add new Department" + "\n\t9) Update Department" + "\n\t10) Delete Department" + "\n\t11) Find Employees by Department" + "\n\t12) Bulk import from file" + "\n\t0) Exit program");
                 System.out.print(USER_INPUT);
                 String optStr = reader.readLine(); // Read user input and check its value for bad inputs
                 if (optStr.isEmpty()) {
@@ -582,6 +2731,7 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
                     case 9 -> executeUpdateDepartment();
                     case 10 -> executeDeleteDepartment();
                     case 11 -> executeFindEmployeesByDept();
+                    case 12 -> executeBulkImport();
                     case 0 -> this.executionFlag = false;
                     default -> System.err.println("Please provide a valid option");
                 }
@@ -604,17 +2754,19 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
     public void executeFindAllEmployees() {
         if (this.connectionFlag) {
             String row = "+" + "-".repeat(7) + "+" + "-".repeat(16) + "+" + "-".repeat(16) + "+" + "-".repeat(7) + "+";
-            List<Employee> employees = this.findAllEmployees(); // Get the Employees list
-            if (employees != null) { // Check if the returned list is not null
+            try (Stream<Employee> employees = this.streamEmployees()) { // Rows are printed while the file is read
                 System.out.println(row);
                 System.out.printf("| %-5s | %-14s | %-14s | %-5s |\n", "EMPNO", "NOMBRE", "PUESTO", "DEPNO");
                 System.out.println(row);
-                for (Employee e : employees) {
+                long[] count = new long[1];
+                employees.forEach(e -> {
                     System.out.printf("| %-5s | %-14s | %-14s | %-5s |\n", e.getEmpno(), e.getName(), e.getPosition(), e.getDepno());
-                }
+                    count[0]++;
+                });
                 System.out.println(row);
-            } else {
-                System.out.println("There are currently no Employees stored");
+                if (count[0] == 0) {
+                    System.out.println("There are currently no Employees stored");
+                }
             }
         } else {
             System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
@@ -948,4 +3100,74 @@ public class FileDAO implements IDAO, Menu, FileHandlerInterface{
             System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
         }
     }
+
+    // Implementation from Menu interface
+    @Override
+    public void executeBulkImport() {
+        if (this.connectionFlag) {
+            BufferedReader reader = new BufferedReader(this.isr); // To read user input
+            try {
+                System.out.println("Insert the path of the file to import:");
+                System.out.print(USER_INPUT);
+                String input = reader.readLine();
+                if (input.isEmpty() || !Files.isRegularFile(Paths.get(input))) { // Check if the file exists
+                    System.err.println("ERROR: Please provide the path of an existing file");
+                    return;
+                }
+                // IDs already stored, records with any of them are skipped
+                HashSet<Integer> employeeIds = new HashSet<>();
+                HashSet<Integer> departmentIds = new HashSet<>();
+                for (Employee e : findAllEmployees()) {
+                    employeeIds.add(e.getEmpno());
+                }
+                for (Department d : findAllDepartments()) {
+                    departmentIds.add(d.getDepno());
+                }
+                List<Employee> newEmployees = new ArrayList<>();
+                List<Department> newDepartments = new ArrayList<>();
+                int[] skipped = new int[2]; // Records with an existing ID and invalid records
+                MappedRecordReader.scan(Paths.get(input), cursor -> {
+                    try {
+                        if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE) {
+                            Employee employee = cursor.toEmployee();
+                            RecordFormat.checkEmployee(employee);
+                            if (employeeIds.add(employee.getEmpno())) {
+                                newEmployees.add(employee);
+                            } else {
+                                skipped[0]++;
+                            }
+                        } else if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT) {
+                            Department department = cursor.toDepartment();
+                            RecordFormat.checkDepartment(department);
+                            if (departmentIds.add(department.getDepno())) {
+                                newDepartments.add(department);
+                            } else {
+                                skipped[0]++;
+                            }
+                        }
+                    } catch (IllegalArgumentException e) { // Also a NumberFormatException of a malformed ID
+                        System.err.println("ERROR: Invalid record at offset " + cursor.getOffset() + ": " + e.getMessage());
+                        skipped[1]++;
+                    }
+                    return true;
+                });
+                // Execute IDAO methods, departments first so the new employees can belong to them
+                this.addDepartments(newDepartments);
+                this.addEmployees(newEmployees);
+                System.out.printf("%s%d Departments and %d Employees imported successfully!%s\n", GREEN_FONT, newDepartments.size(), newEmployees.size(), RESET);
+                if (skipped[0] > 0) {
+                    System.out.println(skipped[0] + " records were skipped because their ID already exists");
+                }
+                if (skipped[1] > 0) {
+                    System.out.println(skipped[1] + " records were skipped because they are not valid");
+                }
+            } catch (IOException ioe) {
+                System.err.println("ERROR: IOException error reported: " + ioe.getMessage());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("ERROR: The file could not be imported: " + iae.getMessage());
+            }
+        } else {
+            System.err.println("ERROR: You must first try to connect to the database with the method .connectDB()");
+        }
+    }
 }
@@ -0,0 +1,290 @@
+package cesur.accesodatos.file;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Registry of the data files of many tenants (companies) served by the same JVM, with one {@link FileDAO} per tenant.
+ * The DAO of a tenant is created the first time it is used and kept open afterwards, with its open channels and its
+ * warm caches, so the requests of an active tenant don't pay for opening the file nor for loading its indexes again.
+ *
+ * The number of open tenants is bounded: when a new tenant is opened past the limit, the least recently used tenants
+ * that are not running an operation are closed (see {@link FileDAO#closeConnection()}) and their DAO is dropped, which
+ * releases its file handles and its memory. Tenants that were not used for a while are closed too, by a background
+ * thread. A closed tenant is opened again by its next operation.
+ *
+ * Operations run through {@link #withTenant(String, Function)}, which marks the tenant as in use so it is never closed
+ * while an operation holds its DAO. Thread-safe.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class FileDAOPool implements AutoCloseable {
+    /**
+     * DEFAULT_MAX_OPEN_TENANTS -> Default maximum number of open tenants.
+     */
+    static final int DEFAULT_MAX_OPEN_TENANTS = 64;
+    /**
+     * DEFAULT_IDLE_TIMEOUT_MILLIS -> Default time without operations after which a tenant is closed (5 minutes).
+     */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of open tenants.
+     */
+    private final int maxOpenTenants;
+    /**
+     * Time without operations after which a tenant is closed, 0 or less to only close tenants over the limit.
+     */
+    private final long idleTimeoutMillis;
+    /**
+     * Function that configures a new DAO (cache mode, storage mode...) before its first operation.
+     */
+    private final Consumer<FileDAO> configurer;
+    /**
+     * Path of the data file of every registered tenant.
+     */
+    private final ConcurrentMap<String, Path> paths = new ConcurrentHashMap<>();
+    /**
+     * Open tenants by their name. The access order of the {@link LinkedHashMap} puts the least recently used tenant
+     * first. Guarded by the pool monitor.
+     */
+    private final LinkedHashMap<String, Tenant> open = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Background thread that closes the idle tenants. It is created the first time a tenant is opened.
+     */
+    private ScheduledExecutorService evictionExecutor;
+
+    /**
+     * Creates a pool with the default limits and without configuration of the DAOs.
+     */
+    public FileDAOPool() {
+        this(DEFAULT_MAX_OPEN_TENANTS, DEFAULT_IDLE_TIMEOUT_MILLIS, dao -> { });
+    }
+
+    /**
+     * Creates a pool.
+     * @param maxOpenTenants Maximum number of open tenants. Tenants in use are never closed, so it may be exceeded
+     *                       while more tenants than that run operations at the same time.
+     * @param idleTimeoutMillis Time without operations after which a tenant is closed, 0 or less to only close tenants
+     *                          over the limit.
+     * @param configurer Function that configures a new DAO before its first operation, for example enabling its cache.
+     */
+    public FileDAOPool(int maxOpenTenants, long idleTimeoutMillis, Consumer<FileDAO> configurer) {
+        this.maxOpenTenants = Math.max(1, maxOpenTenants);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.configurer = configurer;
+    }
+
+    /**
+     * Registers the data file of a tenant. The file is not opened until the tenant is used.
+     * @param tenant Name of the tenant.
+     * @param file Path of its data file.
+     * @throws IllegalStateException If the tenant is already registered with another file.
+     */
+    public void register(String tenant, Path file) {
+        Path previous = paths.putIfAbsent(tenant, file);
+        if (previous != null && !previous.equals(file)) {
+            throw new IllegalStateException("The tenant " + tenant + " is already registered with " + previous);
+        }
+    }
+
+    /**
+     * Removes a tenant from the registry, closing it if it is open and not in use (otherwise it is closed by the
+     * eviction once its operations end).
+     * @param tenant Name of the tenant.
+     */
+    public void unregister(String tenant) {
+        paths.remove(tenant);
+        Tenant closed = null;
+        synchronized (this) {
+            Tenant current = open.get(tenant);
+            if (current != null && current.inUse == 0) {
+                closed = open.remove(tenant);
+            }
+        }
+        if (closed != null) {
+            closed.dao.closeConnection();
+        }
+    }
+
+    /**
+     * Runs an operation with the DAO of a tenant, opening the tenant if it is not open. The tenant is not closed while
+     * the operation runs.
+     * @param tenant Name of a registered tenant.
+     * @param operation Operation that gets the {@link FileDAO} of the tenant. It must not keep the DAO afterwards.
+     * @param <T> Type of the result.
+     * @return Result of the operation.
+     * @throws IllegalArgumentException If the tenant is not registered.
+     */
+    public <T> T withTenant(String tenant, Function<FileDAO, T> operation) {
+        Tenant current = acquire(tenant);
+        try {
+            synchronized (current) { // Only the first operation configures the DAO, the rest wait for it
+                if (!current.configured) {
+                    configurer.accept(current.dao);
+                    current.configured = true;
+                }
+            }
+            return operation.apply(current.dao);
+        } finally {
+            synchronized (this) {
+                current.inUse--;
+                current.lastUsed = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of open tenants.
+     * @return Number of tenants with an open DAO.
+     */
+    public synchronized int getOpenCount() {
+        return open.size();
+    }
+
+    /**
+     * Closes the tenants that are not in use and were not used for longer than the idle timeout. Called periodically
+     * by the background thread.
+     */
+    public void evictIdle() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        List<Tenant> closed = new ArrayList<>();
+        long limit = System.currentTimeMillis() - idleTimeoutMillis;
+        synchronized (this) {
+            Iterator<Tenant> tenants = open.values().iterator();
+            while (tenants.hasNext()) {
+                Tenant tenant = tenants.next();
+                if (tenant.inUse == 0 && tenant.lastUsed < limit) {
+                    tenants.remove();
+                    closed.add(tenant);
+                }
+            }
+        }
+        close(closed);
+    }
+
+    /**
+     * Closes all the open tenants that are not in use and stops the background thread. The pool can still be used
+     * afterwards, tenants are opened again when they are used.
+     */
+    @Override
+    public void close() {
+        List<Tenant> closed = new ArrayList<>();
+        synchronized (this) {
+            if (evictionExecutor != null) {
+                evictionExecutor.shutdownNow();
+                evictionExecutor = null;
+            }
+            Iterator<Tenant> tenants = open.values().iterator();
+            while (tenants.hasNext()) {
+                Tenant tenant = tenants.next();
+                if (tenant.inUse == 0) {
+                    tenants.remove();
+                    closed.add(tenant);
+                }
+            }
+        }
+        close(closed);
+    }
+
+    /**
+     * Marks a tenant as in use, opening it if needed. When a tenant is opened past the limit, the least recently used
+     * tenants that are not in use are closed.
+     * @param name Name of the tenant.
+     * @return The open {@link Tenant}.
+     * @throws IllegalArgumentException If the tenant is not registered.
+     */
+    private Tenant acquire(String name) {
+        List<Tenant> closed = new ArrayList<>();
+        Tenant tenant;
+        synchronized (this) {
+            tenant = open.get(name);
+            if (tenant == null) {
+                Path file = paths.get(name);
+                if (file == null) {
+                    throw new IllegalArgumentException("Unknown tenant: " + name);
+                }
+                tenant = new Tenant(new FileDAO(file.toString())); // No file is opened until its first operation
+                open.put(name, tenant);
+                Iterator<Map.Entry<String, Tenant>> eldest = open.entrySet().iterator();
+                while (open.size() > maxOpenTenants && eldest.hasNext()) {
+                    Tenant candidate = eldest.next().getValue();
+                    if (candidate != tenant && candidate.inUse == 0) {
+                        eldest.remove();
+                        closed.add(candidate);
+                    }
+                }
+                startEviction();
+            }
+            tenant.inUse++;
+            tenant.lastUsed = System.currentTimeMillis();
+        }
+        close(closed); // Outside the pool monitor, a close may have to wait for a checkpoint
+        return tenant;
+    }
+
+    /**
+     * Starts the background thread that closes the idle tenants, if it is not running. Called holding the pool monitor.
+     */
+    private void startEviction() {
+        if (evictionExecutor != null || idleTimeoutMillis <= 0) {
+            return;
+        }
+        evictionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "FileDAOPool-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictionExecutor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the DAOs of tenants removed from the pool.
+     * @param tenants Closed tenants.
+     */
+    private static void close(List<Tenant> tenants) {
+        for (Tenant tenant : tenants) {
+            tenant.dao.closeConnection();
+        }
+    }
+
+    /**
+     * Open tenant of the pool.
+     */
+    private static final class Tenant {
+        /**
+         * DAO of the tenant's data file.
+         */
+        private final FileDAO dao;
+        /**
+         * Flag indicating if the configurer already ran on the DAO. Guarded by the tenant monitor.
+         */
+        private boolean configured;
+        /**
+         * Number of operations running with the DAO. Guarded by the pool monitor.
+         */
+        private int inUse;
+        /**
+         * Time of the end of the last operation, in milliseconds. Guarded by the pool monitor.
+         */
+        private long lastUsed;
+
+        private Tenant(FileDAO dao) {
+            this.dao = dao;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package cesur.accesodatos.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the I/O of {@link FileDAO} on its data file. They are recorded by any recording
+ * (for example "jcmd &lt;pid&gt; JFR.start"), under the "Componentes-File" category, so a latency spike can be matched
+ * with the scan, lookup, append, rewrite or cache reload that caused it.
+ *
+ * Every event has the duration of the I/O, the path of the data file and its byte and record counts. While no
+ * recording is running, creating and beginning an event costs almost nothing and the counts are not computed.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class FileEvents {
+    /**
+     * CATEGORY -> Category of the events in the recordings.
+     */
+    static final String CATEGORY = "Componentes-File";
+
+    private FileEvents() {
+    }
+
+    /**
+     * Scan of the whole data file (searches, listings and streams without the cache mode).
+     */
+    @Name("cesur.accesodatos.file.FileScan")
+    @Label("File Scan")
+    @Category(CATEGORY)
+    @Description("Scan of the whole data file")
+    @StackTrace(false)
+    public static final class Scan extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytes;
+        @Label("Lines Parsed")
+        public long lines;
+        @Label("Records Returned")
+        public long records;
+        @Label("Parallel")
+        public boolean parallel;
+    }
+
+    /**
+     * Lookup of one record by its ID in the data file, with the persistent index or with a scan that stops at the record.
+     */
+    @Name("cesur.accesodatos.file.FileLookup")
+    @Label("File Lookup")
+    @Category(CATEGORY)
+    @Description("Lookup of one record by its ID in the data file")
+    @StackTrace(false)
+    public static final class Lookup extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Record Type")
+        public String recordType;
+        @Label("ID")
+        public int id;
+        @Label("Found")
+        public boolean found;
+        @Label("Persistent Index")
+        public boolean indexed;
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytes;
+        @Label("Lines Parsed")
+        public long lines;
+    }
+
+    /**
+     * Lines appended to the data file by a write.
+     */
+    @Name("cesur.accesodatos.file.FileAppend")
+    @Label("File Append")
+    @Category(CATEGORY)
+    @Description("Lines appended to the data file")
+    @StackTrace(false)
+    public static final class Append extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytes;
+        @Label("Lines Written")
+        public long lines;
+    }
+
+    /**
+     * Data file written again as a whole and moved into place: a change in {@link StorageMode#REWRITE} mode, a log
+     * compaction or a checkpoint of the journal.
+     */
+    @Name("cesur.accesodatos.file.FileRewrite")
+    @Label("File Rewrite")
+    @Category(CATEGORY)
+    @Description("Data file written again as a whole")
+    public static final class Rewrite extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Cause")
+        @Description("write, compaction or checkpoint")
+        public String cause;
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytes;
+        @Label("Records Changed")
+        @Description("Records changed by the write, lines removed by the compaction or entries applied by the checkpoint")
+        public long records;
+    }
+
+    /**
+     * Load of the in-memory {@link FileIndex}: the whole file, or only the lines appended to it when it is followed.
+     */
+    @Name("cesur.accesodatos.file.CacheReload")
+    @Label("Cache Reload")
+    @Category(CATEGORY)
+    @Description("Load of the in-memory index of the data file")
+    @StackTrace(false)
+    public static final class CacheReload extends Event {
+        @Label("Path")
+        public String path;
+        @Label("Full Reload")
+        @Description("False if only the appended lines were parsed")
+        public boolean full;
+        @Label("Bytes Read")
+        @DataAmount
+        public long bytes;
+        @Label("Lines Parsed")
+        public long lines;
+        @Label("Live Records")
+        public long records;
+    }
+}
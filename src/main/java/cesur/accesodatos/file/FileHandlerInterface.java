@@ -16,4 +16,10 @@ public interface FileHandlerInterface {
      * Closes the file resource if it is open.
      */
     public void closeConnection(); // The name is the same as the components that use a remote database but since we use the same menu, I have considered calling it the same so as not to have to change anything.
+    /**
+     * Method to get the generation of the storage, a counter increased by every write of any process that uses it.
+     * Two different values mean that the storage was modified in between.
+     * @return Current generation, or -1 if it can't be read.
+     */
+    public long getGeneration();
 }
@@ -0,0 +1,517 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * In-memory, id-keyed copy of the data file.
+ * The file is parsed once (with a {@link MappedRecordReader}) and every {@link Employee} and {@link Department} is kept by its ID, so lookups
+ * don't need to read the file again. Employees are stored in a columnar {@link EmployeeTable}, which keeps millions of
+ * rows with a few ints each instead of one object per employee. The texts of the employees are dictionary codes, and the names and
+ * cities of the departments are interned in a {@link StringDictionary}, so every repeated value is stored (and decoded while loading) once.
+ * The last modification time and size of the file are remembered, and the
+ * content is loaded again when any of them changes (for example, when the file is edited by hand).
+ * A secondary index keeps the employee rows of every department, so employees by department are found without
+ * going through the whole table.
+ * If a record appears more than once the last line wins, and "tombstone(...)" lines remove the record, so the
+ * index also understands files written in {@link StorageMode#APPEND_LOG} mode. In {@link StorageMode#JOURNALED} mode the
+ * changes of the {@link WriteAheadJournal} that are not checkpointed yet are applied after the file on every load.
+ *
+ * The index remembers how many bytes of the file it consumed, so {@link #follow()} only parses the lines appended
+ * after them (for example by an external tool) instead of the whole file. A file that was truncated, replaced (all the
+ * rewrites move a new file into place) or changed in place is loaded again.
+ *
+ * Objects handed out by the index are copies (or new views of the employee rows), so callers can modify them without
+ * corrupting the cache.
+ * This class does not write the file, {@link FileDAO} writes through to the file and then updates the index.
+ *
+ * Read methods may be called from several threads at the same time, also while another thread runs {@link #refresh()}:
+ * a reload builds new {@link Tables} and publishes them at once, so a reader always sees one consistent version.
+ * The methods that change the index (put, remove, follow) need exclusive access, {@link FileDAO} calls them while
+ * holding its write lock.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class FileIndex {
+    /**
+     * Path of the data file that is indexed.
+     */
+    private final Path file;
+    /**
+     * Current content of the index. Replaced as a whole on every load.
+     */
+    private volatile Tables tables = new Tables();
+    /**
+     * Last modification time (in milliseconds) of the file when it was last loaded or written.
+     */
+    private long lastModified = -1;
+    /**
+     * Size (in bytes) of the file when it was last loaded or written.
+     */
+    private long size = -1;
+    /**
+     * Number of record lines (including old versions and tombstones) in the file. Used to know how much of an
+     * append-only log is garbage.
+     */
+    private long recordLines;
+    /**
+     * Journal applied after the file on every load, null if the file is not journaled.
+     */
+    private WriteAheadJournal journal;
+    /**
+     * TAIL_MARK_BYTES -> Number of bytes before the consumed offset that are remembered to detect a file changed in place.
+     */
+    static final int TAIL_MARK_BYTES = 64;
+    /**
+     * Offset of the first byte of the file that is not in the index yet, -1 if the index was never loaded.
+     */
+    private long consumed = -1;
+    /**
+     * Key (inode) of the file when it was last loaded or written. A different key means the file was replaced.
+     */
+    private Object fileKey;
+    /**
+     * Last bytes before the consumed offset, null if appended lines are not followed.
+     */
+    private byte[] tailMark;
+    /**
+     * Flag indicating if the appended lines are followed with {@link #follow()}, so the last consumed bytes are kept.
+     */
+    private boolean following;
+
+    /**
+     * Creates an empty index for the given file. Nothing is read until {@link #refresh()} is called.
+     * @param file Path of the data file.
+     */
+    public FileIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets the journal whose changes are applied after the file on every load. The index is not loaded again, the
+     * owner of the index must make sure it already has the changes of the journal.
+     * @param journal {@link WriteAheadJournal} of the file, or null if the file is not journaled.
+     */
+    public synchronized void setJournal(WriteAheadJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Enables or disables the tracking of the last consumed bytes that {@link #follow()} needs to parse only the
+     * appended lines. Without it {@link #follow()} loads the whole file when it grows.
+     * If the last consumed bytes of a loaded index can't be read, the next {@link #follow()} loads the whole file.
+     * @param following True to follow the appended lines.
+     */
+    public synchronized void setFollowing(boolean following) {
+        this.following = following;
+        this.tailMark = null;
+        if (following && consumed >= 0) { // Otherwise read by the first load
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.tailMark = readMark(channel, consumed);
+            } catch (IOException e) {
+                this.tailMark = null; // The mark won't match, so the file is loaded again
+            }
+        }
+    }
+
+    /**
+     * Checks if the modification time and size of the file are the ones of the last load or write.
+     * @return True if the file didn't change since it was last loaded or written.
+     * @throws IOException If the file attributes can't be read.
+     */
+    public synchronized boolean isSynced() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return attributes.lastModifiedTime().toMillis() == lastModified && attributes.size() == size;
+    }
+
+    /**
+     * Loads the file again only if its modification time or size changed since the last load.
+     * @return True if the file was loaded.
+     * @throws IOException If the file can't be read.
+     */
+    public synchronized boolean refresh() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.lastModifiedTime().toMillis() != lastModified || attributes.size() != size) {
+            load();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses the whole file and replaces the content of the index.
+     * @throws IOException If the file can't be read.
+     */
+    public synchronized void load() throws IOException {
+        Tables loaded = new Tables();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long[] newRecordLines = new long[1];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = attributes.size(); // Lines appended after reading the attributes are left for the next refresh
+            MappedRecordReader.scan(channel, 0, end, cursor -> {
+                apply(loaded, cursor);
+                newRecordLines[0]++;
+                return true;
+            });
+            this.tailMark = following ? readMark(channel, end) : null;
+        }
+        if (journal != null) {
+            journal.replay(line -> apply(loaded, line));
+        }
+        this.tables = loaded;
+        this.recordLines = newRecordLines[0];
+        this.lastModified = attributes.lastModifiedTime().toMillis();
+        this.size = attributes.size();
+        this.consumed = attributes.size();
+        this.fileKey = attributes.fileKey();
+    }
+
+    /**
+     * Brings the index up to date with the lines appended to the file since it was last loaded or written, parsing only
+     * the appended bytes. Only complete lines are parsed, a line that is still being written is parsed once its line
+     * break is appended. The whole file is loaded instead if it was never loaded, if it was truncated, replaced or
+     * changed in place, or if the file is journaled (the journal must be applied after the whole file).
+     * Needs exclusive access, like the other methods that change the index.
+     * @return True if only the appended lines were parsed (or nothing changed), false if the whole file was loaded.
+     * @throws IOException If the file can't be read.
+     */
+    public synchronized boolean follow() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (modified == lastModified && attributes.size() == size) {
+            return true;
+        }
+        if (consumed < 0 || journal != null || !following || attributes.size() <= size
+                || !Objects.equals(attributes.fileKey(), fileKey)) {
+            load(); // Never loaded, truncated, rewritten or replaced
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (!Arrays.equals(readMark(channel, consumed), tailMark)) {
+                load(); // Changed in place, the consumed bytes are not the ones in the index anymore
+                return false;
+            }
+            long end = lastLineEnd(channel, consumed, attributes.size());
+            if (end > consumed) {
+                Tables current = tables;
+                long[] newRecordLines = new long[1];
+                MappedRecordReader.scan(channel, consumed, end, cursor -> {
+                    apply(current, cursor);
+                    newRecordLines[0]++;
+                    return true;
+                });
+                this.recordLines += newRecordLines[0];
+                this.consumed = end;
+                this.tailMark = readMark(channel, end);
+            }
+        }
+        this.lastModified = modified;
+        this.size = attributes.size();
+        return true;
+    }
+
+    /**
+     * Remembers the current modification time and size of the file. Must be called after the owner of the index
+     * writes the file and updates the index, so its own writes don't trigger a full reload.
+     * If the index was never loaded nothing is done, so the next {@link #refresh()} still loads the whole file.
+     * @throws IOException If the file attributes can't be read.
+     */
+    public synchronized void markSynced() throws IOException {
+        if (size < 0) {
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        this.lastModified = attributes.lastModifiedTime().toMillis();
+        this.size = attributes.size();
+        this.consumed = attributes.size();
+        this.fileKey = attributes.fileKey();
+        if (following) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                this.tailMark = readMark(channel, consumed);
+            }
+        }
+    }
+
+    /**
+     * Counts record lines appended to the file by the owner of the index (new versions or tombstones).
+     * @param lines Number of appended record lines.
+     */
+    public synchronized void addRecordLines(int lines) {
+        this.recordLines += lines;
+    }
+
+    /**
+     * Gets the number of bytes of the file that are in the index.
+     * @return Offset of the first byte that is not in the index yet, 0 if the index was never loaded.
+     */
+    public synchronized long getConsumed() {
+        return Math.max(0, consumed);
+    }
+
+    /**
+     * Gets the number of record lines (including old versions and tombstones) of the file that are in the index.
+     * @return Number of record lines.
+     */
+    public synchronized long getRecordLines() {
+        return recordLines;
+    }
+
+    /**
+     * Gets the number of record lines of the file that are not the current version of a live record
+     * (old versions and tombstones). In {@link StorageMode#REWRITE} mode it is normally 0.
+     * @return Number of garbage record lines.
+     */
+    public synchronized long getDeadRecords() {
+        return Math.max(0, recordLines - getLiveRecords());
+    }
+
+    /**
+     * Gets the number of live records (employees plus departments) in the index.
+     * @return Number of live records.
+     */
+    public int getLiveRecords() {
+        Tables current = tables;
+        return current.employees.size() + current.departments.size();
+    }
+
+    /**
+     * Gets an {@link Employee} by its ID.
+     * @param id Employee's ID.
+     * @return Copy of the cached {@link Employee} or null if there is no Employee with that ID.
+     */
+    public Employee getEmployee(int id) {
+        return tables.employees.get(id); // A new object is created from the row
+    }
+
+    /**
+     * Gets a {@link Department} by its ID.
+     * @param id Department's ID.
+     * @return Copy of the cached {@link Department} or null if there is no Department with that ID.
+     */
+    public Department getDepartment(int id) {
+        Department department = tables.departments.get(id);
+        return department == null ? null : RecordFormat.copy(department);
+    }
+
+    /**
+     * Gets all cached employees in file order.
+     * @return New list with a copy of all the cached {@link Employee} objects.
+     */
+    public List<Employee> getEmployees() {
+        return tables.employees.list();
+    }
+
+    /**
+     * Streams all cached employees in file order. Only the columns are copied when the method is called, the objects
+     * are created while the stream is consumed.
+     * @return {@link Stream} with a copy of every cached {@link Employee}.
+     */
+    public Stream<Employee> streamEmployees() {
+        return tables.employees.stream();
+    }
+
+    /**
+     * Streams all cached departments in file order.
+     * @return {@link Stream} with a copy of every cached {@link Department}.
+     */
+    public Stream<Department> streamDepartments() {
+        return new ArrayList<>(tables.departments.values()).stream().map(RecordFormat::copy);
+    }
+
+    /**
+     * Gets the employees of a department using the secondary index. The cost depends on the number of employees
+     * of the department, not on the size of the whole table.
+     * @param depno Department's ID.
+     * @return New list with a copy of the cached {@link Employee} objects of the department. The list could be empty.
+     */
+    public List<Employee> getEmployeesByDept(int depno) {
+        return tables.employees.listByDept(depno);
+    }
+
+    /**
+     * Gets the cached employees that meet a filter, checking it on the columns of the table (see
+     * {@link EmployeeTable#find(RecordFilter)}).
+     * @param filter Employee {@link RecordFilter}.
+     * @return New list with a copy of the matching cached {@link Employee} objects, in file order.
+     */
+    public List<Employee> findEmployees(RecordFilter filter) {
+        return tables.employees.find(filter);
+    }
+
+    /**
+     * Gets all cached departments in file order.
+     * @return New list with a copy of all the cached {@link Department} objects.
+     */
+    public List<Department> getDepartments() {
+        Map<Integer, Department> departments = tables.departments;
+        List<Department> result = new ArrayList<>(departments.size());
+        for (Department department : departments.values()) {
+            result.add(RecordFormat.copy(department));
+        }
+        return result;
+    }
+
+    /**
+     * Adds or replaces an {@link Employee} in the index.
+     * @param employee {@link Employee} written to the file.
+     */
+    public void putEmployee(Employee employee) {
+        tables.employees.put(employee); // Only the values are kept, the object is not referenced
+    }
+
+    /**
+     * Adds or replaces a {@link Department} in the index.
+     * @param department {@link Department} written to the file.
+     */
+    public void putDepartment(Department department) {
+        Tables current = tables;
+        current.departments.put(department.getDepno(), intern(current, department));
+    }
+
+    /**
+     * Removes an {@link Employee} from the index.
+     * @param id Employee's ID.
+     * @return The removed {@link Employee} or null if it was not in the index.
+     */
+    public Employee removeEmployee(int id) {
+        return tables.employees.remove(id);
+    }
+
+    /**
+     * Removes a {@link Department} from the index.
+     * @param id Department's ID.
+     * @return The removed {@link Department} or null if it was not in the index.
+     */
+    public Department removeDepartment(int id) {
+        return tables.departments.remove(id);
+    }
+
+    /**
+     * Applies a record or tombstone line of the file to the tables.
+     * @param loaded Tables being loaded or followed.
+     * @param cursor {@link MappedRecordReader.Cursor} positioned on the line.
+     */
+    private static void apply(Tables loaded, MappedRecordReader.Cursor cursor) {
+        switch (cursor.getType()) {
+            case EMPLOYEE -> loaded.employees.put(cursor); // No Employee object, known texts are not decoded
+            case DEPARTMENT -> {
+                int depno = cursor.getInt(0);
+                loaded.departments.put(depno, new Department(depno, cursor.getString(1, loaded.departmentTexts), cursor.getString(2, loaded.departmentTexts)));
+            }
+            case TOMBSTONE -> {
+                int id = cursor.getInt(1);
+                if (cursor.getTombstoneKind() == MappedRecordReader.RecordType.EMPLOYEE) {
+                    loaded.employees.remove(id);
+                } else {
+                    loaded.departments.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the last bytes before an offset of the file, which are compared later to detect a file changed in place.
+     * @param channel Open {@link FileChannel} of the file.
+     * @param end Offset after the last byte to read.
+     * @return Up to {@link #TAIL_MARK_BYTES} bytes.
+     * @throws IOException If the file can't be read.
+     */
+    private static byte[] readMark(FileChannel channel, long end) throws IOException {
+        ByteBuffer mark = ByteBuffer.allocate((int) Math.min(TAIL_MARK_BYTES, end));
+        long start = end - mark.capacity();
+        while (mark.hasRemaining()) {
+            if (channel.read(mark, start + mark.position()) < 0) {
+                break; // Truncated meanwhile, the mark won't match the next time
+            }
+        }
+        return Arrays.copyOf(mark.array(), mark.position());
+    }
+
+    /**
+     * Finds the end of the last complete line of a byte range of the file.
+     * @param channel Open {@link FileChannel} of the file.
+     * @param start First byte of the range, the beginning of a line.
+     * @param end Byte after the last one of the range.
+     * @return Offset after the last line break of the range, or start if the range has no line break.
+     * @throws IOException If the file can't be read.
+     */
+    private static long lastLineEnd(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(8192);
+        for (long chunkEnd = end; chunkEnd > start; chunkEnd -= chunk.capacity()) {
+            long chunkStart = Math.max(start, chunkEnd - chunk.capacity());
+            chunk.clear().limit((int) (chunkEnd - chunkStart));
+            while (chunk.hasRemaining() && channel.read(chunk, chunkStart + chunk.position()) >= 0) {
+                // Reads the whole chunk
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') {
+                    return chunkStart + i + 1;
+                }
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Applies a record or tombstone line of the journal to the tables being loaded.
+     * @param loaded Tables being loaded.
+     * @param line Record or tombstone line.
+     */
+    private static void apply(Tables loaded, String line) {
+        if (line.startsWith(RecordFormat.EMPLOYEE_PREFIX)) {
+            loaded.employees.put(RecordFormat.parseEmployee(line));
+        } else if (line.startsWith(RecordFormat.DEPARTMENT_PREFIX)) {
+            Department department = RecordFormat.parseDepartment(line);
+            loaded.departments.put(department.getDepno(), intern(loaded, department));
+        } else if (line.startsWith(RecordFormat.TOMBSTONE_PREFIX)) {
+            String[] key = RecordFormat.recordKey(line).split(",");
+            int id = Integer.parseInt(key[1]);
+            if (key[0].equals(RecordFormat.EMPLOYEE_KIND)) {
+                loaded.employees.remove(id);
+            } else {
+                loaded.departments.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of a department whose texts are the shared Strings of the dictionary of the tables.
+     * @param current Tables that will keep the department.
+     * @param department {@link Department} to copy.
+     * @return New {@link Department}.
+     */
+    private static Department intern(Tables current, Department department) {
+        return new Department(department.getDepno(), current.departmentTexts.intern(department.getName()),
+                current.departmentTexts.intern(department.getLocation()));
+    }
+
+    /**
+     * Tables of one version of the index. They are replaced together on every load.
+     */
+    private static final class Tables {
+        /**
+         * Employees in the order of the file, with their secondary index by department.
+         */
+        final EmployeeTable employees = new EmployeeTable();
+        /**
+         * Departments by their ID. A {@link LinkedHashMap} keeps the order of the file.
+         */
+        final Map<Integer, Department> departments = new LinkedHashMap<>();
+        /**
+         * Shared Strings of the names and cities of the departments.
+         */
+        final StringDictionary departmentTexts = new StringDictionary();
+    }
+}
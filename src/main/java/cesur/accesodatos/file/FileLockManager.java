@@ -0,0 +1,325 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Coordinates the access to a data file between processes.
+ * Every data file gets a sidecar lock file ("empresa.txt.lock") that is locked with {@link FileChannel#lock}: readers
+ * take a shared lock and writers an exclusive one, so a process never reads a file that another process is rewriting.
+ * The data file itself is never locked, because it is replaced by some writes.
+ *
+ * The lock file also stores a generation counter (8 bytes) that every writer increases. A process that remembers the
+ * generation it read can tell if another process wrote the file since then, without reading the data file again.
+ *
+ * File locks belong to the whole JVM and can't overlap inside it, so there is one manager per lock file in the JVM
+ * (see {@link #forFile(Path)}): shared locks are counted and only the first reader takes the file lock, and writers of
+ * the same JVM wait for the readers and for each other before taking the exclusive lock. The file lock is waited for
+ * outside the monitor of the manager, so a process that holds the file for long doesn't block the other methods.
+ * {@link #closeIdle()} removes an idle manager from the JVM, and a reference kept to it uses the manager that replaced it.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class FileLockManager {
+    /**
+     * LOCK_SUFFIX -> Suffix added to the data file name to get the lock file name.
+     */
+    static final String LOCK_SUFFIX = ".lock";
+    /**
+     * Managers of the JVM by the absolute path of their lock file.
+     */
+    private static final ConcurrentMap<Path, FileLockManager> MANAGERS = new ConcurrentHashMap<>();
+
+    /**
+     * Path of the lock file.
+     */
+    private final Path lockFile;
+    /**
+     * Channel of the lock file, opened the first time a lock is needed.
+     */
+    private FileChannel channel;
+    /**
+     * File lock held for the JVM, null when no thread holds a lock.
+     */
+    private FileLock processLock;
+    /**
+     * Number of shared locks held in the JVM.
+     */
+    private int readers;
+    /**
+     * Flag indicating if a thread of the JVM holds the exclusive lock.
+     */
+    private boolean writer;
+    /**
+     * Flag indicating if a thread is waiting for the file lock. The other threads wait for it instead of locking the
+     * file too.
+     */
+    private boolean acquiring;
+    /**
+     * Flag indicating if {@link #closeIdle()} removed the manager from the JVM. A retired manager is never used again,
+     * its methods are forwarded to the current manager of the lock file.
+     */
+    private boolean retired;
+    /**
+     * Reused buffer for the generation counter.
+     */
+    private final ByteBuffer generationBuffer = ByteBuffer.allocate(Long.BYTES);
+
+    /**
+     * Managers are obtained with {@link #forFile(Path)}.
+     * @param lockFile Path of the lock file.
+     */
+    private FileLockManager(Path lockFile) {
+        this.lockFile = lockFile;
+    }
+
+    /**
+     * Gets the manager of a data file, shared by all the DAOs of the JVM that use the file.
+     * @param dataFile Path of the data file.
+     * @return The {@link FileLockManager} of the file.
+     */
+    public static FileLockManager forFile(Path dataFile) {
+        Path lockFile = dataFile.toAbsolutePath().normalize().resolveSibling(dataFile.getFileName() + LOCK_SUFFIX);
+        return MANAGERS.computeIfAbsent(lockFile, FileLockManager::new);
+    }
+
+    /**
+     * Gets the current manager of the lock file, used instead of this one once it is retired.
+     * @return The {@link FileLockManager} registered for the lock file.
+     */
+    private FileLockManager current() {
+        return MANAGERS.computeIfAbsent(lockFile, FileLockManager::new);
+    }
+
+    /**
+     * Takes a shared lock. Several readers (of this and other processes) can hold it at the same time, but not while a
+     * writer holds the exclusive lock.
+     * @return {@link Lock} that must be closed.
+     * @throws IOException If the lock file can't be opened or locked.
+     */
+    public Lock lockShared() throws IOException {
+        FileChannel lockChannel;
+        synchronized (this) {
+            waitWhile(() -> !retired && (writer || acquiring));
+            if (retired) {
+                lockChannel = null;
+            } else if (readers > 0) {
+                readers++; // The file lock is already held for the JVM
+                return new Lock(false);
+            } else {
+                lockChannel = channel();
+                acquiring = true;
+            }
+        }
+        return lockChannel == null ? current().lockShared() : acquire(lockChannel, false);
+    }
+
+    /**
+     * Takes the exclusive lock, waiting for the readers and writers of this and other processes.
+     * @return {@link Lock} that must be closed.
+     * @throws IOException If the lock file can't be opened or locked.
+     */
+    public Lock lockExclusive() throws IOException {
+        FileChannel lockChannel;
+        synchronized (this) {
+            waitWhile(() -> !retired && (writer || readers > 0 || acquiring));
+            if (retired) {
+                lockChannel = null;
+            } else {
+                lockChannel = channel();
+                acquiring = true;
+            }
+        }
+        return lockChannel == null ? current().lockExclusive() : acquire(lockChannel, true);
+    }
+
+    /**
+     * Waits for the file lock without holding the monitor, because another process may hold the file for long, and
+     * records it once it is taken. Only called by the thread that set {@link #acquiring}.
+     * @param lockChannel Channel of the lock file.
+     * @param exclusive True for the exclusive lock.
+     * @return {@link Lock} that must be closed.
+     * @throws IOException If the lock file can't be locked.
+     */
+    private Lock acquire(FileChannel lockChannel, boolean exclusive) throws IOException {
+        FileLock acquired = null;
+        try {
+            acquired = lockChannel.lock(0, Long.MAX_VALUE, !exclusive);
+        } finally {
+            synchronized (this) {
+                acquiring = false;
+                if (acquired != null) {
+                    processLock = acquired;
+                    if (exclusive) {
+                        writer = true;
+                    } else {
+                        readers++;
+                    }
+                }
+                notifyAll();
+            }
+        }
+        return new Lock(exclusive);
+    }
+
+    /**
+     * Reads the generation counter. It should be called while holding a lock, so no writer changes it meanwhile.
+     * @return Current generation, 0 if no writer has increased it yet.
+     * @throws IOException If the lock file can't be read.
+     */
+    public long getGeneration() throws IOException {
+        synchronized (this) {
+            if (!retired) {
+                return readGeneration();
+            }
+        }
+        return current().getGeneration();
+    }
+
+    /**
+     * Reads the generation counter from the lock file. The caller must hold the monitor.
+     * @return Current generation, 0 if no writer has increased it yet.
+     * @throws IOException If the lock file can't be read.
+     */
+    private long readGeneration() throws IOException {
+        generationBuffer.clear();
+        FileChannel lockChannel = channel();
+        while (generationBuffer.hasRemaining()) {
+            if (lockChannel.read(generationBuffer, generationBuffer.position()) < 0) {
+                return 0; // New lock file
+            }
+        }
+        return generationBuffer.getLong(0);
+    }
+
+    /**
+     * Closes the channel of the lock file and removes the manager from the JVM if no thread of the JVM holds or waits
+     * for a lock, so an idle data file keeps neither its lock file open nor its manager (a pool of many data files
+     * would keep one per file ever opened). The next lock creates a new manager, see {@link #forFile(Path)}.
+     * @throws IOException If the channel can't be closed.
+     */
+    public synchronized void closeIdle() throws IOException {
+        if (retired || processLock != null || readers > 0 || writer || acquiring) {
+            return;
+        }
+        retired = true;
+        MANAGERS.remove(lockFile, this);
+        notifyAll(); // Threads woken after the last lock was released go to the new manager
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Releases a lock, releasing the file lock when no thread of the JVM holds a lock anymore.
+     * @param exclusive True for the exclusive lock.
+     * @throws IOException If the file lock can't be released.
+     */
+    private synchronized void release(boolean exclusive) throws IOException {
+        if (exclusive) {
+            writer = false;
+        } else if (--readers > 0) {
+            return;
+        }
+        try {
+            processLock.release();
+        } finally {
+            processLock = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Increases the generation counter. Only called by the holder of the exclusive lock.
+     * @return New generation.
+     * @throws IOException If the lock file can't be written.
+     */
+    private synchronized long increaseGeneration() throws IOException {
+        long generation = readGeneration() + 1;
+        generationBuffer.clear();
+        generationBuffer.putLong(0, generation);
+        while (generationBuffer.hasRemaining()) {
+            channel.write(generationBuffer, generationBuffer.position());
+        }
+        return generation;
+    }
+
+    /**
+     * Gets the channel of the lock file, opening (and creating) it the first time.
+     * @return Open {@link FileChannel} of the lock file.
+     * @throws IOException If the file can't be opened.
+     */
+    private FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(lockFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    /**
+     * Waits on the manager monitor while a condition is true.
+     * @param condition Condition to wait for.
+     * @throws IOException If the thread is interrupted.
+     */
+    private void waitWhile(BooleanSupplier condition) throws IOException {
+        while (condition.getAsBoolean()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the lock of " + lockFile, e);
+            }
+        }
+    }
+
+    /**
+     * Lock held on the data file. Closing it releases the lock.
+     */
+    public final class Lock implements AutoCloseable {
+        /**
+         * Flag indicating if it is the exclusive lock.
+         */
+        private final boolean exclusive;
+        /**
+         * Flag indicating if the lock was already released.
+         */
+        private boolean released;
+
+        private Lock(boolean exclusive) {
+            this.exclusive = exclusive;
+        }
+
+        /**
+         * Records a write: increases the generation counter, so other processes know the file changed.
+         * @return New generation.
+         * @throws IOException If the lock file can't be written.
+         * @throws IllegalStateException If it is not the exclusive lock or it was released.
+         */
+        public long commit() throws IOException {
+            if (!exclusive || released) {
+                throw new IllegalStateException("Only the holder of the exclusive lock can commit a write");
+            }
+            return increaseGeneration();
+        }
+
+        /**
+         * Releases the lock. Calling it more than once has no effect.
+         * @throws IOException If the file lock can't be released.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!released) {
+                released = true;
+                release(exclusive);
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package cesur.accesodatos.file;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Data operation related interface. This interface is meant to have all needed methods to
@@ -33,6 +35,19 @@ public interface IDAO {
      * @return Updated {@link Employee} object. Null values are not possible to be returned since the object existence must be checked before calling.
      */
     public Employee updateEmployee(Object id);
+    /**
+     * Method to update an existing {@link Employee} with the given values, without asking for them.
+     * @param employee {@link Employee} object with the ID of the employee to update and all its new attributes set.
+     * @return Updated {@link Employee} object, or null if there is no employee with that ID.
+     */
+    public Employee updateEmployee(Employee employee);
+    /**
+     * Method to update many existing {@link Employee}s with the given values in a single operation.
+     * If the same ID appears more than once, the last values are stored.
+     * @param employees {@link Employee} objects with the ID of the employees to update and all their new attributes set.
+     * @return List of the updated {@link Employee} objects. Employees whose ID doesn't exist are not updated nor returned.
+     */
+    public List<Employee> updateEmployees(Collection<Employee> employees);
     /**
      * Method to delete an existing {@link Employee} from the storage system.
      * @param id Employee's ID (Integer value).
@@ -62,6 +77,19 @@ public interface IDAO {
      * @return Updated {@link Department} object. Null values are not possible to be returned since the object existence must be checked before calling.
      */
     public Department updateDepartment(Object id);
+    /**
+     * Method to update an existing {@link Department} with the given values, without asking for them.
+     * @param department {@link Department} object with the ID of the department to update and all its new attributes set.
+     * @return Updated {@link Department} object, or null if there is no department with that ID.
+     */
+    public Department updateDepartment(Department department);
+    /**
+     * Method to update many existing {@link Department}s with the given values in a single operation.
+     * If the same ID appears more than once, the last values are stored.
+     * @param departments {@link Department} objects with the ID of the departments to update and all their new attributes set.
+     * @return List of the updated {@link Department} objects. Departments whose ID doesn't exist are not updated nor returned.
+     */
+    public List<Department> updateDepartments(Collection<Department> departments);
     /**
      * Method to delete an existing {@link Department} from the storage system.
      * @param id Department's ID (Integer value).
@@ -74,4 +102,43 @@ public interface IDAO {
      * @return List of {@link Employee} objects that have the depno attribute with the given ID. The list could be empty.
      */
     public List<Employee> findEmployeesByDept(Object idDept);
+    /**
+     * Method to add many new {@link Employee}s to the storage system in a single operation.
+     * @param employees {@link Employee} objects with all attributes set.
+     */
+    public void addEmployees(Collection<Employee> employees);
+    /**
+     * Method to add many new {@link Department}s to the storage system in a single operation.
+     * @param departments {@link Department} objects with all attributes set.
+     */
+    public void addDepartments(Collection<Department> departments);
+    /**
+     * Method to get all {@link Employee}s from the storage system as a lazy {@link Stream}.
+     * Records are read while the stream is consumed, so the first ones are available at once and memory doesn't grow with
+     * the size of the storage. The stream must be closed (for example with try-with-resources) to release the storage.
+     * @return {@link Stream} of {@link Employee} objects. The stream could be empty.
+     */
+    public Stream<Employee> streamEmployees();
+    /**
+     * Method to get all {@link Department}s from the storage system as a lazy {@link Stream}.
+     * The stream must be closed (for example with try-with-resources) to release the storage.
+     * @return {@link Stream} of {@link Department} objects. The stream could be empty.
+     */
+    public Stream<Department> streamDepartments();
+    /**
+     * Method to get the {@link Employee}s that meet a filter.
+     * The filter is checked while the records are read, so records that don't match are never turned into objects.
+     * @param filter Employee {@link RecordFilter}.
+     * @return List of matching {@link Employee} objects. The list could be empty.
+     * @throws IllegalArgumentException If the filter is not an employee filter.
+     */
+    public List<Employee> findEmployees(RecordFilter filter);
+    /**
+     * Method to get the {@link Department}s that meet a filter.
+     * The filter is checked while the records are read, so records that don't match are never turned into objects.
+     * @param filter Department {@link RecordFilter}.
+     * @return List of matching {@link Department} objects. The list could be empty.
+     * @throws IllegalArgumentException If the filter is not a department filter.
+     */
+    public List<Department> findDepartments(RecordFilter filter);
 }
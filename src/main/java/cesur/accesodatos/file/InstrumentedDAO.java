@@ -0,0 +1,231 @@
+package cesur.accesodatos.file;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+
+/**
+ * {@link IDAO} and {@link FileHandlerInterface} that measures every call of another DAO ({@link FileDAO},
+ * {@link BinaryFileDAO} or {@link ShardedFileDAO}) and reports it to a {@link DAOListener}: its duration, the number of
+ * records returned and the exception it threw, if any. The wrapped DAO does the work, so the results are the same.
+ * Wrapping is the way to enable the measurements: a DAO that is not wrapped pays nothing for them.
+ *
+ * The measurements of the data file itself (bytes, lines, rewrites and cache accesses) are reported by a
+ * {@link FileDAO} with {@link FileDAO#setListener(DAOListener)}, usually with the same listener.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class InstrumentedDAO implements IDAO, FileHandlerInterface {
+    /**
+     * DAO that runs the operations.
+     */
+    private final IDAO dao;
+    /**
+     * The same DAO, as a {@link FileHandlerInterface}.
+     */
+    private final FileHandlerInterface handler;
+    /**
+     * Listener that receives the measurements.
+     */
+    private final DAOListener listener;
+
+    /**
+     * Creates a measured DAO.
+     * @param dao DAO that runs the operations.
+     * @param listener {@link DAOListener} that receives the measurements, for example a {@link DAOMetrics}.
+     * @param <D> Type of the DAO.
+     */
+    public <D extends IDAO & FileHandlerInterface> InstrumentedDAO(D dao, DAOListener listener) {
+        this.dao = dao;
+        this.handler = dao;
+        this.listener = listener;
+    }
+
+    @Override
+    public List<Employee> findAllEmployees() {
+        return measure("findAllEmployees", dao::findAllEmployees, List::size);
+    }
+
+    @Override
+    public Employee findEmployeeById(Object id) {
+        return measure("findEmployeeById", () -> dao.findEmployeeById(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public void addEmployee(Employee employee) {
+        run("addEmployee", () -> dao.addEmployee(employee), 1);
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        return measure("updateEmployee", () -> dao.updateEmployee(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        return measure("updateEmployee", () -> dao.updateEmployee(employee), InstrumentedDAO::count);
+    }
+
+    @Override
+    public List<Employee> updateEmployees(Collection<Employee> employees) {
+        return measure("updateEmployees", () -> dao.updateEmployees(employees), List::size);
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        return measure("deleteEmployee", () -> dao.deleteEmployee(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        return measure("findAllDepartments", dao::findAllDepartments, List::size);
+    }
+
+    @Override
+    public Department findDepartmentById(Object id) {
+        return measure("findDepartmentById", () -> dao.findDepartmentById(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public void addDepartment(Department department) {
+        run("addDepartment", () -> dao.addDepartment(department), 1);
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        return measure("updateDepartment", () -> dao.updateDepartment(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        return measure("updateDepartment", () -> dao.updateDepartment(department), InstrumentedDAO::count);
+    }
+
+    @Override
+    public List<Department> updateDepartments(Collection<Department> departments) {
+        return measure("updateDepartments", () -> dao.updateDepartments(departments), List::size);
+    }
+
+    @Override
+    public Department deleteDepartment(Object id) {
+        return measure("deleteDepartment", () -> dao.deleteDepartment(id), InstrumentedDAO::count);
+    }
+
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        return measure("findEmployeesByDept", () -> dao.findEmployeesByDept(idDept), List::size);
+    }
+
+    @Override
+    public void addEmployees(Collection<Employee> employees) {
+        run("addEmployees", () -> dao.addEmployees(employees), employees.size());
+    }
+
+    @Override
+    public void addDepartments(Collection<Department> departments) {
+        run("addDepartments", () -> dao.addDepartments(departments), departments.size());
+    }
+
+    @Override
+    public Stream<Employee> streamEmployees() {
+        return measureStream("streamEmployees", dao::streamEmployees);
+    }
+
+    @Override
+    public Stream<Department> streamDepartments() {
+        return measureStream("streamDepartments", dao::streamDepartments);
+    }
+
+    @Override
+    public List<Employee> findEmployees(RecordFilter filter) {
+        return measure("findEmployees", () -> dao.findEmployees(filter), List::size);
+    }
+
+    @Override
+    public List<Department> findDepartments(RecordFilter filter) {
+        return measure("findDepartments", () -> dao.findDepartments(filter), List::size);
+    }
+
+    @Override
+    public boolean checkFileExists() {
+        return measure("checkFileExists", handler::checkFileExists, exists -> 0);
+    }
+
+    @Override
+    public void closeConnection() {
+        run("closeConnection", handler::closeConnection, 0);
+    }
+
+    @Override
+    public long getGeneration() {
+        return measure("getGeneration", handler::getGeneration, generation -> 0);
+    }
+
+    /**
+     * Runs an operation with result and reports its measurements.
+     * @param operation Name of the operation.
+     * @param call Call to the wrapped DAO.
+     * @param records Function that counts the records of the result.
+     * @param <T> Type of the result.
+     * @return Result of the call.
+     */
+    private <T> T measure(String operation, Supplier<T> call, ToIntFunction<T> records) {
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            listener.operationCompleted(operation, System.nanoTime() - start, 0, e);
+            throw e;
+        }
+        listener.operationCompleted(operation, System.nanoTime() - start, result == null ? 0 : records.applyAsInt(result), null);
+        return result;
+    }
+
+    /**
+     * Runs an operation without result and reports its measurements.
+     * @param operation Name of the operation.
+     * @param call Call to the wrapped DAO.
+     * @param records Number of records stored by the operation.
+     */
+    private void run(String operation, Runnable call, int records) {
+        measure(operation, () -> {
+            call.run();
+            return records;
+        }, stored -> stored);
+    }
+
+    /**
+     * Opens a stream of the wrapped DAO whose measurements are reported when it is closed: the time since it was opened
+     * and the number of records consumed. A stream that is never closed is not reported.
+     * @param operation Name of the operation.
+     * @param call Call to the wrapped DAO that opens the stream.
+     * @param <T> Type of the records.
+     * @return Measured {@link Stream}.
+     */
+    private <T> Stream<T> measureStream(String operation, Supplier<Stream<T>> call) {
+        long start = System.nanoTime();
+        Stream<T> stream;
+        try {
+            stream = call.get();
+        } catch (RuntimeException | Error e) {
+            listener.operationCompleted(operation, System.nanoTime() - start, 0, e);
+            throw e;
+        }
+        AtomicInteger consumed = new AtomicInteger();
+        return stream.peek(record -> consumed.incrementAndGet())
+                .onClose(() -> listener.operationCompleted(operation, System.nanoTime() - start, consumed.get(), null));
+    }
+
+    /**
+     * Counts a single record.
+     * @param record Record returned by an operation.
+     * @return 1, null results are not counted.
+     */
+    private static int count(Object record) {
+        return 1;
+    }
+}
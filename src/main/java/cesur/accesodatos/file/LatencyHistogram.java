@@ -0,0 +1,145 @@
+package cesur.accesodatos.file;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies (or any other non-negative values) with a fixed relative precision, in the style of
+ * HdrHistogram: values are counted in buckets whose width grows with the magnitude of the value, so every value is
+ * known within about 3% from a nanosecond to hours, with a fixed amount of memory (about 15 KB) and without allocating
+ * on {@link #record(long)}.
+ *
+ * Every power of two is split in {@link #SUB_BUCKETS} buckets of the same width; values under {@link #SUB_BUCKETS} are
+ * counted exactly. Percentiles return the highest value of the bucket that contains them.
+ *
+ * Values may be recorded from several threads at the same time without locks. The statistics read while values are
+ * being recorded may miss the latest ones.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class LatencyHistogram {
+    /**
+     * SUB_BUCKET_BITS -> Number of bits after the highest one that select the bucket of a value.
+     */
+    static final int SUB_BUCKET_BITS = 5;
+    /**
+     * SUB_BUCKETS -> Number of buckets of every power of two (32, so values are within 1/32 of their bucket).
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Counts of the buckets. The last bucket is the one of {@link Long#MAX_VALUE}.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    /**
+     * Number of recorded values.
+     */
+    private final LongAdder count = new LongAdder();
+    /**
+     * Sum of the recorded values, used for the mean.
+     */
+    private final LongAdder sum = new LongAdder();
+    /**
+     * Highest recorded value.
+     */
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Records a value.
+     * @param value Value to record, negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long recorded = Math.max(0, value);
+        counts.incrementAndGet(index(recorded));
+        count.increment();
+        sum.add(recorded);
+        max.accumulate(recorded);
+    }
+
+    /**
+     * Gets the number of recorded values.
+     * @return Number of values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the highest recorded value.
+     * @return Highest value, 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values.
+     * @return Mean, 0 if nothing was recorded.
+     */
+    public double getMean() {
+        long values = count.sum();
+        return values == 0 ? 0 : (double) sum.sum() / values;
+    }
+
+    /**
+     * Gets the value under which a percentage of the recorded values are.
+     * @param percentile Percentage between 0 and 100, for example 99.9.
+     * @return Highest value of the bucket of the percentile (never above {@link #getMax()}), 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long values = count.sum();
+        if (values == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * values));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax(); // Values recorded while counting
+    }
+
+    /**
+     * Removes all the recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Gets the bucket of a value.
+     * @param value Non-negative value.
+     * @return Index of its bucket.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value; // Exact buckets
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value); // Position of the highest bit
+        int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the highest value counted in a bucket.
+     * @param index Index of the bucket.
+     * @return Highest value of the bucket.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (1L << magnitude) | ((long) (index % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS));
+        return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,258 @@
+package cesur.accesodatos.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compaction of data files written in {@link StorageMode#APPEND_LOG} mode.
+ * Only the last version of every live record is kept, old versions and tombstones are removed. Comment lines
+ * are kept in their place.
+ *
+ * The compaction works on a snapshot of the file (its size when the compaction starts, taken while no writer is
+ * appending and cut at the last complete line) without blocking writers.
+ * Only the final step, copying the lines appended in the meantime and replacing the file, is done while holding
+ * the exclusive file lock (so writers of other processes wait too) and the lock shared with the writers. If the file
+ * was replaced or changed in place since the snapshot (for example, another process rewrote it), the compaction is
+ * abandoned and the file is left as it is.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class LogCompactor {
+
+    /**
+     * SNAPSHOT_MARK_BYTES -> Number of bytes before the end of the snapshot compared in the final step, to detect a
+     * file changed in place when the file key is not available.
+     */
+    static final int SNAPSHOT_MARK_BYTES = 64;
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private LogCompactor() {
+    }
+
+    /**
+     * Compacts the given log file.
+     * @param file Path of the data file.
+     * @param writeLock Object that every writer of the file synchronizes on while appending.
+     * @param locks {@link FileLockManager} of the file. The exclusive lock must be taken before the writeLock, like
+     *              writers do.
+     * @return Number of record lines removed from the file, 0 if the compaction was abandoned because the file was
+     *         replaced meanwhile.
+     * @throws IOException If the file can't be read or replaced.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    public static long compact(Path file, Object writeLock, FileLockManager locks) throws IOException {
+        long snapshotSize;
+        Object snapshotKey;
+        long snapshotGeneration;
+        byte[] snapshotMark;
+        try (FileLockManager.Lock ignored = locks.lockShared()) {
+            synchronized (writeLock) { // No writer of this JVM nor of another process is appending
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                snapshotKey = attributes.fileKey();
+                snapshotGeneration = locks.getGeneration();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    // Programs that append without the locks may be in the middle of a line
+                    snapshotSize = lastLineEnd(channel, attributes.size());
+                    snapshotMark = readMark(channel, snapshotSize);
+                }
+            }
+        }
+
+        // First pass: line number of the last occurrence of every record
+        Map<String, Long> lastLine = new HashMap<>();
+        try (BufferedReader reader = snapshotReader(file, snapshotSize)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                String key = RecordFormat.recordKey(line);
+                if (key != null) {
+                    lastLine.put(key, lineNumber);
+                }
+                lineNumber++;
+            }
+        }
+
+        // Second pass: write only comments and the last version of live records
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        String separator = RecordRewriter.lineSeparator(file); // The compacted file keeps its line separator
+        long removed = 0;
+        try (BufferedReader reader = snapshotReader(file, snapshotSize);
+             BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                String key = RecordFormat.recordKey(line);
+                boolean keep = key == null
+                        || (lastLine.get(key) == lineNumber && !line.startsWith(RecordFormat.TOMBSTONE_PREFIX));
+                if (keep) {
+                    out.write(line);
+                    out.write(separator);
+                } else {
+                    removed++;
+                }
+                lineNumber++;
+            }
+        }
+
+        // Final step: copy what was appended during the compaction and replace the file
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            synchronized (writeLock) {
+                if (!isSameFile(file, locks, snapshotKey, snapshotGeneration, snapshotSize, snapshotMark)) {
+                    Files.deleteIfExists(temp); // Replaced or rewritten meanwhile, the compacted copy is stale
+                    return 0;
+                }
+                try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                     OutputStream out = Files.newOutputStream(temp, StandardOpenOption.APPEND)) {
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long position = snapshotSize;
+                    while (position < source.size()) {
+                        position += source.transferTo(position, source.size() - position, target);
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            fileLock.commit(); // The line counts changed, caches of other processes must load the file again
+        }
+        return removed;
+    }
+
+    /**
+     * Checks that the data file is still the one of the snapshot, with the snapshot unchanged and maybe some lines
+     * appended. Must be called while holding the exclusive file lock.
+     * @param file Path of the data file.
+     * @param locks {@link FileLockManager} of the file.
+     * @param key File key (inode) of the snapshot, it may be null if the file system doesn't have them.
+     * @param generation Generation of the file when the snapshot was taken.
+     * @param size Size of the snapshot.
+     * @param mark Last bytes of the snapshot.
+     * @return True if the compacted copy can replace the file.
+     * @throws IOException If the file can't be read.
+     */
+    private static boolean isSameFile(Path file, FileLockManager locks, Object key, long generation, long size, byte[] mark) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!Objects.equals(attributes.fileKey(), key) || attributes.size() < size) {
+            return false;
+        }
+        if (locks.getGeneration() == generation) {
+            return true; // Nobody that uses the locks wrote the file
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return Arrays.equals(readMark(channel, size), mark); // Only appended, or changed in place
+        }
+    }
+
+    /**
+     * Finds the end of the last complete line of the file.
+     * @param channel Open {@link FileChannel} of the file.
+     * @param size Size of the file.
+     * @return Offset after the last line break, or 0 if the file has none.
+     * @throws IOException If the file can't be read.
+     */
+    private static long lastLineEnd(FileChannel channel, long size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(8192);
+        for (long chunkEnd = size; chunkEnd > 0; chunkEnd -= chunk.capacity()) {
+            long chunkStart = Math.max(0, chunkEnd - chunk.capacity());
+            chunk.clear().limit((int) (chunkEnd - chunkStart));
+            while (chunk.hasRemaining() && channel.read(chunk, chunkStart + chunk.position()) >= 0) {
+                // Reads the whole chunk
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') {
+                    return chunkStart + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the last bytes before an offset of the file.
+     * @param channel Open {@link FileChannel} of the file.
+     * @param end Offset after the last byte to read.
+     * @return Up to {@link #SNAPSHOT_MARK_BYTES} bytes.
+     * @throws IOException If the file can't be read.
+     */
+    private static byte[] readMark(FileChannel channel, long end) throws IOException {
+        ByteBuffer mark = ByteBuffer.allocate((int) Math.min(SNAPSHOT_MARK_BYTES, end));
+        long start = end - mark.capacity();
+        while (mark.hasRemaining() && channel.read(mark, start + mark.position()) >= 0) {
+            // Reads the whole mark
+        }
+        return Arrays.copyOf(mark.array(), mark.position());
+    }
+
+    /**
+     * Opens a reader of the first bytes of the file, ignoring what is appended after the snapshot was taken.
+     * @param file Path of the data file.
+     * @param limit Number of bytes to read.
+     * @return {@link BufferedReader} of the snapshot.
+     * @throws IOException If the file can't be opened.
+     */
+    private static BufferedReader snapshotReader(Path file, long limit) throws IOException {
+        return new BufferedReader(new InputStreamReader(new LimitedInputStream(Files.newInputStream(file), limit), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * {@link InputStream} that ends after a fixed number of bytes.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        /**
+         * Bytes that can still be read.
+         */
+        private long remaining;
+
+        /**
+         * @param in Wrapped {@link InputStream}.
+         * @param limit Number of bytes that can be read.
+         */
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package cesur.accesodatos.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Zero-copy reader of the data file.
+ * The file is mapped in memory with {@link FileChannel#map} and every line is parsed straight from the
+ * {@link MappedByteBuffer}: the record type, the field boundaries and the numeric IDs are read from the bytes without
+ * creating intermediate Strings. Only the fields requested through the {@link Cursor} are turned into objects, so
+ * lines that are not needed (comments, other record types, records that don't match a search) cost no allocations.
+ *
+ * Big files are mapped in windows of {@link #WINDOW_SIZE} bytes that always end at a line break.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class MappedRecordReader {
+    /**
+     * WINDOW_SIZE -> Maximum number of bytes mapped at the same time (256 MB).
+     */
+    static final long WINDOW_SIZE = 1L << 28;
+    /**
+     * Maximum number of fields of a record (employees have 4).
+     */
+    private static final int MAX_FIELDS = 4;
+    /**
+     * LOW_CARDINALITY_LIMIT -> Maximum number of distinct values interned by every cursor for the columns that repeat
+     * a few values (job, department name and city).
+     */
+    static final int LOW_CARDINALITY_LIMIT = 4096;
+    /**
+     * UTF-8 bytes of the record prefixes, compared directly with the mapped bytes.
+     */
+    private static final byte[] EMPLOYEE_PREFIX = RecordFormat.EMPLOYEE_PREFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEPARTMENT_PREFIX = RecordFormat.DEPARTMENT_PREFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOMBSTONE_PREFIX = RecordFormat.TOMBSTONE_PREFIX.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPLOYEE_KIND = RecordFormat.EMPLOYEE_KIND.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Types of record lines.
+     */
+    public enum RecordType {
+        /**
+         * "employee(id,surname,job,department_id)" line.
+         */
+        EMPLOYEE,
+        /**
+         * "department(id,name,city)" line.
+         */
+        DEPARTMENT,
+        /**
+         * "tombstone(kind,id)" line, written in {@link StorageMode#APPEND_LOG} mode.
+         */
+        TOMBSTONE
+    }
+
+    /**
+     * Callback that receives every record line of the file.
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * Method called for every record line. The {@link Cursor} is reused for the next line, so it must not be
+         * kept after the method returns.
+         * @param cursor {@link Cursor} positioned on the record.
+         * @return True to continue with the next record, false to stop the scan.
+         */
+        boolean visit(Cursor cursor);
+    }
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private MappedRecordReader() {
+    }
+
+    /**
+     * Scans the whole file.
+     * @param file Path of the data file.
+     * @param visitor {@link RecordVisitor} that receives every record line.
+     * @return False if the visitor stopped the scan, true otherwise.
+     * @throws IOException If the file can't be read.
+     */
+    public static boolean scan(Path file, RecordVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return scan(channel, 0, channel.size(), visitor);
+        }
+    }
+
+    /**
+     * Scans a byte range of the file. The range must start at the beginning of a line.
+     * @param channel Open {@link FileChannel} of the data file.
+     * @param start First byte of the range.
+     * @param end Byte after the last one of the range.
+     * @param visitor {@link RecordVisitor} that receives every record line.
+     * @return False if the visitor stopped the scan, true otherwise.
+     * @throws IOException If the file can't be mapped or a line is longer than {@link #WINDOW_SIZE}.
+     */
+    public static boolean scan(FileChannel channel, long start, long end, RecordVisitor visitor) throws IOException {
+        RecordIterator records = new RecordIterator(channel, start, end, false);
+        while (records.next()) {
+            if (!visitor.visit(records.cursor())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a pull-based iterator over all the records of the file. Unlike {@link #scan(Path, RecordVisitor)}, the caller
+     * decides when the next record is parsed, which allows lazy streams. The iterator must be closed.
+     * @param file Path of the data file.
+     * @return Open {@link RecordIterator}.
+     * @throws IOException If the file can't be opened.
+     */
+    public static RecordIterator open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return new RecordIterator(channel, 0, channel.size(), true);
+    }
+
+    /**
+     * Opens a pull-based iterator over all the records of an open channel, like {@link #open(Path)}. The channel is not
+     * closed with the iterator.
+     * @param channel Open {@link FileChannel} of the data file.
+     * @return Open {@link RecordIterator}.
+     * @throws IOException If the size of the file can't be read.
+     */
+    public static RecordIterator open(FileChannel channel) throws IOException {
+        return new RecordIterator(channel, 0, channel.size(), false);
+    }
+
+    /**
+     * Checks if the bytes of the buffer at a position are equal to a prefix.
+     * @param buffer Buffer with the line.
+     * @param from Position of the buffer where the comparison starts.
+     * @param to Limit of the line.
+     * @param prefix Expected bytes.
+     * @return True if the buffer has the prefix at that position.
+     */
+    private static boolean startsWith(ByteBuffer buffer, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * View of the current record line. It only stores positions in the mapped buffer, the values are read on demand.
+     */
+    public static final class Cursor {
+        /**
+         * Mapped window that contains the line.
+         */
+        private ByteBuffer buffer;
+        /**
+         * File offset of the first byte of the window.
+         */
+        private long base;
+        /**
+         * Start and end (exclusive) of the current line in the window, without the line break.
+         */
+        private int lineStart;
+        private int lineEnd;
+        /**
+         * Type of the current record.
+         */
+        private RecordType type;
+        /**
+         * Start and end (exclusive) of every field in the window.
+         */
+        private final int[] fieldStart = new int[MAX_FIELDS];
+        private final int[] fieldEnd = new int[MAX_FIELDS];
+        /**
+         * Number of fields of the current record.
+         */
+        private int fieldCount;
+        /**
+         * Reused array used to decode Strings.
+         */
+        private byte[] scratch = new byte[64];
+        /**
+         * Dictionary of the low-cardinality columns (job, department name and city), so every distinct value is decoded
+         * once per scan and all its records share the same String.
+         */
+        private final StringDictionary lowCardinality = new StringDictionary(LOW_CARDINALITY_LIMIT);
+
+        /**
+         * Cursors are only created by {@link MappedRecordReader}.
+         */
+        private Cursor() {
+        }
+
+        /**
+         * Finds the record type and the field boundaries of a line.
+         * @param start Start of the line in the window.
+         * @param end End of the line in the window (position of the line break or the end of the data).
+         * @return True if it is a valid record line, false for comments, empty lines or malformed records.
+         */
+        private boolean parse(int start, int end) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            int fieldsFrom;
+            int expected;
+            if (startsWith(buffer, start, end, EMPLOYEE_PREFIX)) {
+                type = RecordType.EMPLOYEE;
+                fieldsFrom = start + EMPLOYEE_PREFIX.length;
+                expected = 4;
+            } else if (startsWith(buffer, start, end, DEPARTMENT_PREFIX)) {
+                type = RecordType.DEPARTMENT;
+                fieldsFrom = start + DEPARTMENT_PREFIX.length;
+                expected = 3;
+            } else if (startsWith(buffer, start, end, TOMBSTONE_PREFIX)) {
+                type = RecordType.TOMBSTONE;
+                fieldsFrom = start + TOMBSTONE_PREFIX.length;
+                expected = 2;
+            } else {
+                return false;
+            }
+            fieldCount = 0;
+            int fieldFrom = fieldsFrom;
+            for (int i = fieldsFrom; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == ',' || b == ')') {
+                    if (fieldCount < MAX_FIELDS) {
+                        fieldStart[fieldCount] = fieldFrom;
+                        fieldEnd[fieldCount] = i;
+                    }
+                    fieldCount++;
+                    fieldFrom = i + 1;
+                    if (b == ')') {
+                        break;
+                    }
+                }
+            }
+            lineStart = start;
+            lineEnd = end;
+            return fieldCount == expected;
+        }
+
+        /**
+         * Gets the type of the current record.
+         * @return {@link RecordType} of the line.
+         */
+        public RecordType getType() {
+            return type;
+        }
+
+        /**
+         * Gets the kind of record deleted by the current tombstone.
+         * @return {@link RecordType#EMPLOYEE} or {@link RecordType#DEPARTMENT}.
+         */
+        public RecordType getTombstoneKind() {
+            return fieldEquals(0, EMPLOYEE_KIND) ? RecordType.EMPLOYEE : RecordType.DEPARTMENT;
+        }
+
+        /**
+         * Gets the number of fields of the current record.
+         * @return Number of fields.
+         */
+        public int getFieldCount() {
+            return fieldCount;
+        }
+
+        /**
+         * Gets the offset of the current line in the file.
+         * @return Offset of the first byte of the line.
+         */
+        public long getOffset() {
+            return base + lineStart;
+        }
+
+        /**
+         * Gets the length of the current line in bytes, without the line break.
+         * @return Length of the line.
+         */
+        public int getLength() {
+            return lineEnd - lineStart;
+        }
+
+        /**
+         * Parses a numeric field straight from the bytes, without creating a String.
+         * @param field Index of the field.
+         * @return Value of the field.
+         * @throws NumberFormatException If the field is not an integer or it doesn't fit in an int, like
+         *                               {@link Integer#parseInt(String)}.
+         */
+        public int getInt(int field) {
+            int from = fieldStart[field];
+            int to = fieldEnd[field];
+            boolean negative = from < to && buffer.get(from) == '-';
+            if (negative) {
+                from++;
+            }
+            if (from >= to) {
+                throw new NumberFormatException("Numeric field without digits at offset " + (base + from));
+            }
+            long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+            long value = 0; // Accumulated in a long, so an overflow of the int is detected
+            for (int i = from; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Invalid numeric field at offset " + (base + i));
+                }
+                value = value * 10 + digit;
+                if (value > limit) {
+                    throw new NumberFormatException("Numeric field out of the int range at offset " + (base + fieldStart[field]));
+                }
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        /**
+         * Decodes a text field as a UTF-8 String. This is the only method that creates a String.
+         * @param field Index of the field.
+         * @return Value of the field.
+         */
+        public String getString(int field) {
+            int length = fieldEnd[field] - fieldStart[field];
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(fieldStart[field], scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Gets the dictionary code of a text field, comparing the bytes of the line with the values of the dictionary.
+         * A String is only created when the value is new.
+         * @param field Index of the field.
+         * @param dictionary {@link StringDictionary} of the column. The value is added to it if it is new.
+         * @return Code of the value, or -1 if it is new and the dictionary is full.
+         */
+        public int getCode(int field, StringDictionary dictionary) {
+            return dictionary.encode(buffer, fieldStart[field], fieldEnd[field]);
+        }
+
+        /**
+         * Gets a text field as the shared String of a dictionary, so repeated values are not decoded again.
+         * @param field Index of the field.
+         * @param dictionary {@link StringDictionary} of the column. The value is added to it if it is new.
+         * @return Value of the field. It is a new String only if the value is new and the dictionary is full.
+         */
+        public String getString(int field, StringDictionary dictionary) {
+            int code = getCode(field, dictionary);
+            return code < 0 ? getString(field) : dictionary.decode(code);
+        }
+
+        /**
+         * Compares a field with the given UTF-8 bytes without decoding it.
+         * @param field Index of the field.
+         * @param value Expected bytes.
+         * @return True if the field has exactly those bytes.
+         */
+        public boolean fieldEquals(int field, byte[] value) {
+            return fieldEnd[field] - fieldStart[field] == value.length && startsWith(buffer, fieldStart[field], fieldEnd[field], value);
+        }
+
+        /**
+         * Checks if a field starts with the given UTF-8 bytes without decoding it.
+         * @param field Index of the field.
+         * @param prefix Expected bytes.
+         * @return True if the field starts with those bytes.
+         */
+        public boolean fieldStartsWith(int field, byte[] prefix) {
+            return startsWith(buffer, fieldStart[field], fieldEnd[field], prefix);
+        }
+
+        /**
+         * Creates an {@link Employee} with the fields of the current record. Must only be called on employee records.
+         * The job is interned in the dictionary of the cursor, so the employees of one scan share its Strings.
+         * @return New {@link Employee}.
+         */
+        public Employee toEmployee() {
+            return new Employee(getInt(0), getString(1), getString(2, lowCardinality), getInt(3));
+        }
+
+        /**
+         * Creates a {@link Department} with the fields of the current record. Must only be called on department records.
+         * The name and the city are interned in the dictionary of the cursor.
+         * @return New {@link Department}.
+         */
+        public Department toDepartment() {
+            return new Department(getInt(0), getString(1, lowCardinality), getString(2, lowCardinality));
+        }
+    }
+
+    /**
+     * Pull-based iterator over the records of a byte range of the file. Windows of the file are mapped when they are
+     * reached, and every call to {@link #next()} parses only up to the next record line.
+     */
+    public static final class RecordIterator implements Closeable {
+        /**
+         * Channel of the data file.
+         */
+        private final FileChannel channel;
+        /**
+         * Flag indicating if the channel must be closed with the iterator.
+         */
+        private final boolean ownsChannel;
+        /**
+         * File offset of the current window.
+         */
+        private long position;
+        /**
+         * Byte after the last one of the range.
+         */
+        private final long end;
+        /**
+         * Current mapped window, null before the first window and after the last one.
+         */
+        private MappedByteBuffer buffer;
+        /**
+         * Number of usable bytes of the current window (it always ends at a line break or at the end of the range).
+         */
+        private int limit;
+        /**
+         * Start of the next line to parse in the current window.
+         */
+        private int lineStart;
+        /**
+         * Reused cursor positioned on the current record.
+         */
+        private final Cursor cursor = new Cursor();
+
+        /**
+         * @param channel Open channel of the data file.
+         * @param start First byte of the range. It must be the beginning of a line.
+         * @param end Byte after the last one of the range.
+         * @param ownsChannel True to close the channel with the iterator.
+         */
+        RecordIterator(FileChannel channel, long start, long end, boolean ownsChannel) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.ownsChannel = ownsChannel;
+        }
+
+        /**
+         * Moves the cursor to the next record line, skipping comments and other lines.
+         * @return True if there is a record, false at the end of the range.
+         * @throws IOException If the file can't be mapped or a line is longer than {@link #WINDOW_SIZE}.
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (buffer == null || lineStart >= limit) {
+                    if (buffer != null) {
+                        position += limit;
+                        buffer = null;
+                    }
+                    if (position >= end) {
+                        return false;
+                    }
+                    mapWindow();
+                }
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                boolean record = cursor.parse(lineStart, lineEnd);
+                lineStart = lineEnd + 1;
+                if (record) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Gets the cursor positioned on the current record. It is reused, so it must not be kept after calling {@link #next()}.
+         * @return The {@link Cursor}.
+         */
+        public Cursor cursor() {
+            return cursor;
+        }
+
+        /**
+         * Maps the window that starts at the current position.
+         * @throws IOException If the file can't be mapped or a line is longer than {@link #WINDOW_SIZE}.
+         */
+        private void mapWindow() throws IOException {
+            long length = Math.min(WINDOW_SIZE, end - position);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            limit = (int) length;
+            if (position + length < end) { // The window ends in the middle of the range, stop at its last line break
+                int last = limit - 1;
+                while (last >= 0 && buffer.get(last) != '\n') {
+                    last--;
+                }
+                if (last < 0) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at offset " + position);
+                }
+                limit = last + 1;
+            }
+            cursor.buffer = buffer;
+            cursor.base = position;
+            lineStart = 0;
+        }
+
+        /**
+         * Releases the mapped window and closes the channel if it was opened by {@link MappedRecordReader#open(Path)}.
+         * @throws IOException If the channel can't be closed.
+         */
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            if (ownsChannel) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -84,4 +84,10 @@ public interface Menu {
      * If the returned list is empty, a message notifying it will be shown.
      */
     public void executeFindEmployeesByDept();
+    /**
+     * Method to import many {@link Employee}s and {@link Department}s from a text file.
+     * This method asks the user for the path of a file with the same line format as the data file, skips the records whose ID
+     * already exists and executes the {@link IDAO}'s batch methods with the rest.
+     */
+    public void executeBulkImport();
 }
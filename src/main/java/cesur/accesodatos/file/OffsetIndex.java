@@ -0,0 +1,506 @@
+package cesur.accesodatos.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent hash index of the data file, stored in a sidecar file ("empresa.txt.idx").
+ * It maps the ID of every employee and department to the byte offset of its line, so a lookup costs one probe of the
+ * index file plus one positioned read of the data file, and memory doesn't depend on the size of the dataset.
+ *
+ * The index file has a header and a table of fixed-size slots with linear probing:
+ * header [magic (int)][capacity (int)][used slots (int)][unused (int)][generation (long)][data file size (long)],
+ * slot [offset (long)][id (int)][kind (int)]. Kind 0 is an empty slot and offset -1 a deleted record.
+ * The header remembers the generation (see {@link FileLockManager}) and the size of the data file the index matches;
+ * if any of them changed (another process, a compaction, a hand edit) the index is rebuilt from the data file before
+ * it is used. The owner of the index keeps it in sync with its own writes through {@link #indexAppended(long, long)}
+ * and {@link #recordRewritten(MappedRecordReader.RecordType, int, long, long)}.
+ *
+ * It follows {@link StorageMode#REWRITE} semantics: the first line of a record wins and tombstones are not indexed.
+ * Lookups may run in parallel; rebuilds and changes need exclusive access and are serialized by an internal lock.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class OffsetIndex implements Closeable {
+    /**
+     * INDEX_SUFFIX -> Suffix added to the data file name to get the index file name.
+     */
+    static final String INDEX_SUFFIX = ".idx";
+    /**
+     * MAGIC -> First bytes of every index file ("EIDX").
+     */
+    static final int MAGIC = 0x45494458;
+    /**
+     * HEADER_SIZE -> Bytes of the header.
+     */
+    static final int HEADER_SIZE = 32;
+    /**
+     * SLOT_SIZE -> Bytes of every slot.
+     */
+    static final int SLOT_SIZE = 16;
+    /**
+     * MIN_CAPACITY -> Minimum number of slots of the table.
+     */
+    static final int MIN_CAPACITY = 1024;
+    /**
+     * Slot kinds of every record type.
+     */
+    private static final int EMPTY = 0;
+    private static final int EMPLOYEE = 1;
+    private static final int DEPARTMENT = 2;
+    /**
+     * READ_SIZE -> Bytes read from the data file on the first try of a lookup, enough for a normal record line.
+     */
+    private static final int READ_SIZE = 256;
+
+    /**
+     * Path of the data file.
+     */
+    private final Path dataFile;
+    /**
+     * Path of the index file.
+     */
+    private final Path indexFile;
+    /**
+     * Lock that lets lookups run in parallel and gives rebuilds and changes exclusive access.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Channel of the index file, null until the index is first used.
+     */
+    private FileChannel channel;
+    /**
+     * Number of slots of the table.
+     */
+    private int capacity;
+    /**
+     * Number of used slots (including deleted records).
+     */
+    private int used;
+    /**
+     * Generation of the data file the index matches.
+     */
+    private long generation = -1;
+    /**
+     * Size of the data file the index matches.
+     */
+    private long dataSize = -1;
+
+    /**
+     * Creates the index of a data file. Nothing is read until the index is used.
+     * @param dataFile Path of the data file.
+     */
+    public OffsetIndex(Path dataFile) {
+        this.dataFile = dataFile;
+        this.indexFile = dataFile.resolveSibling(dataFile.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Finds the line of a record. The index is rebuilt first if it doesn't match the data file. Must be called while
+     * holding a file lock.
+     * @param type {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+     * @param id ID of the record.
+     * @param currentGeneration Current generation of the data file.
+     * @param data Open channel of the data file the line is read from, it is not closed.
+     * @return The line of the record (without line separator), or null if there is no such record.
+     * @throws IOException If the files can't be read or the index can't be rebuilt.
+     */
+    public String findLine(MappedRecordReader.RecordType type, int id, long currentGeneration, FileChannel data) throws IOException {
+        String prefix = (type == MappedRecordReader.RecordType.EMPLOYEE ? RecordFormat.EMPLOYEE_PREFIX : RecordFormat.DEPARTMENT_PREFIX) + id + ",";
+        for (int attempt = 0; ; attempt++) {
+            ensureCurrent(currentGeneration, attempt > 0);
+            lock.readLock().lock();
+            try {
+                long offset = probe(channel, capacity, kind(type), id)[1];
+                if (offset < 0) {
+                    return null;
+                }
+                String line = readLine(data, offset);
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (attempt > 0) {
+                throw new IOException("The index " + indexFile + " doesn't match the data file");
+            }
+            // The data file changed without a new generation (a hand edit), the index is rebuilt once
+        }
+    }
+
+    /**
+     * Checks if the index matches the data file, so it can be updated with the changes of a write.
+     * @param currentGeneration Current generation of the data file.
+     * @return True if the index is loaded and matches the data file.
+     * @throws IOException If the size of the data file can't be read.
+     */
+    public boolean isCurrent(long currentGeneration) throws IOException {
+        lock.readLock().lock();
+        try {
+            return channel != null && generation == currentGeneration && dataSize == Files.size(dataFile);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the record lines appended to the data file by a write. Must be called while holding the exclusive file
+     * lock and only if the index was current before the write (see {@link #isCurrent(long)}).
+     * @param from Size of the data file before the write.
+     * @param newGeneration Generation committed by the write.
+     * @throws IOException If the files can't be read or written.
+     */
+    public void indexAppended(long from, long newGeneration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long size = Files.size(dataFile);
+            if (size > from) {
+                try (FileChannel data = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                    IOException[] failed = new IOException[1];
+                    MappedRecordReader.scan(data, from, size, cursor -> {
+                        try {
+                            put(cursor);
+                            return true;
+                        } catch (IOException e) {
+                            failed[0] = e;
+                            return false;
+                        }
+                    });
+                    if (failed[0] != null) {
+                        throw failed[0];
+                    }
+                }
+            }
+            if (used > capacity / 2) {
+                rebuild(newGeneration); // Keeps probes short
+            } else {
+                writeHeader(channel, newGeneration, size);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the index after a record line was changed or removed in place: the offsets of the following lines are
+     * moved by the difference of sizes. Must be called while holding the exclusive file lock and only if the index was
+     * current before the write.
+     * @param type Type of the rewritten record.
+     * @param id ID of the rewritten record.
+     * @param deleted True if the line was removed.
+     * @param sizeBefore Size of the data file before the write.
+     * @param newGeneration Generation committed by the write.
+     * @throws IOException If the files can't be read or written.
+     */
+    public void recordRewritten(MappedRecordReader.RecordType type, int id, boolean deleted, long sizeBefore, long newGeneration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long size = Files.size(dataFile);
+            long[] found = probe(channel, capacity, kind(type), id);
+            if (found[1] < 0) {
+                rebuild(newGeneration); // The record was not indexed, the index can't be trusted
+                return;
+            }
+            if (deleted) {
+                writeSlot(channel, found[0], -1, id, kind(type));
+            }
+            long delta = size - sizeBefore;
+            if (delta != 0) {
+                shift(found[1], delta);
+            }
+            writeHeader(channel, newGeneration, size);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the index from the data file. The new index is written into a temporary file that replaces the index
+     * file at once, so other processes never read a half-built index. Must be called while holding a file lock.
+     * @param currentGeneration Current generation of the data file.
+     * @throws IOException If the files can't be read or written.
+     */
+    public void rebuild(long currentGeneration) throws IOException {
+        lock.writeLock().lock();
+        try {
+            long size = Files.size(dataFile);
+            long[] records = new long[1];
+            MappedRecordReader.scan(dataFile, cursor -> {
+                records[0]++;
+                return true;
+            });
+            int newCapacity = MIN_CAPACITY;
+            while (newCapacity < records[0] * 3 && newCapacity < (1 << 30)) {
+                newCapacity <<= 1;
+            }
+            // Next to the index file, so a relative path without parent (like "empresa.txt") works; the file lock
+            // held by the caller keeps other processes from rebuilding into the same temporary file
+            Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+            try {
+                FileChannel built = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    built.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) newCapacity * SLOT_SIZE - 1); // Empty table
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    channel = built;
+                    capacity = newCapacity;
+                    used = 0;
+                    IOException[] failed = new IOException[1];
+                    MappedRecordReader.scan(dataFile, cursor -> {
+                        try {
+                            put(cursor);
+                            return true;
+                        } catch (IOException e) {
+                            failed[0] = e;
+                            return false;
+                        }
+                    });
+                    if (failed[0] != null) {
+                        throw failed[0];
+                    }
+                    writeHeader(built, currentGeneration, size);
+                    built.force(true);
+                } catch (IOException e) {
+                    built.close();
+                    channel = null;
+                    throw e;
+                }
+                Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes sure the index matches the data file: the index file is opened again (another process may have rebuilt
+     * it) and rebuilt if it still doesn't match.
+     * @param currentGeneration Current generation of the data file.
+     * @param force True to rebuild the index even if it looks current.
+     * @throws IOException If the files can't be read or written.
+     */
+    private void ensureCurrent(long currentGeneration, boolean force) throws IOException {
+        if (!force && isCurrent(currentGeneration)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            long size = Files.size(dataFile);
+            if (!force && channel != null && generation == currentGeneration && dataSize == size) {
+                return; // Another thread brought it up to date
+            }
+            if (!force && Files.exists(indexFile)) {
+                if (channel != null) {
+                    channel.close();
+                }
+                channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if (header.getInt(0) == MAGIC && header.getLong(16) == currentGeneration && header.getLong(24) == size) {
+                    capacity = header.getInt(4);
+                    used = header.getInt(8);
+                    generation = currentGeneration;
+                    dataSize = size;
+                    return;
+                }
+            }
+            rebuild(currentGeneration);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes a record line, unless the record is already indexed (the first line of a record wins).
+     * @param cursor {@link MappedRecordReader.Cursor} positioned on the line.
+     * @throws IOException If the index can't be written.
+     */
+    private void put(MappedRecordReader.Cursor cursor) throws IOException {
+        if (cursor.getType() == MappedRecordReader.RecordType.TOMBSTONE) {
+            return;
+        }
+        int kind = kind(cursor.getType());
+        int id = cursor.getInt(0);
+        long[] found = probe(channel, capacity, kind, id);
+        if (found[1] >= 0) {
+            return;
+        }
+        if (found[2] == EMPTY) {
+            used++;
+        }
+        writeSlot(channel, found[0], cursor.getOffset(), id, kind);
+    }
+
+    /**
+     * Looks for the slot of a record with linear probing.
+     * @param table Channel of the index file.
+     * @param slots Number of slots of the table.
+     * @param kind Kind of the record.
+     * @param id ID of the record.
+     * @return Array with the position of the slot (of the record, or the empty slot where it would go), the offset of
+     *         the record (-1 if it is not indexed or deleted) and the kind stored in the slot.
+     * @throws IOException If the index can't be read.
+     */
+    private static long[] probe(FileChannel table, int slots, int kind, int id) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        int mask = slots - 1;
+        int h = id * 0x9E3779B9 ^ kind;
+        h ^= h >>> 16;
+        for (int i = 0, n = h & mask; i < slots; i++, n = (n + 1) & mask) {
+            long position = HEADER_SIZE + (long) n * SLOT_SIZE;
+            slot.clear();
+            readFully(table, slot, position);
+            int slotKind = slot.getInt(12);
+            if (slotKind == EMPTY) {
+                return new long[]{position, -1, EMPTY};
+            }
+            if (slotKind == kind && slot.getInt(8) == id) {
+                return new long[]{position, slot.getLong(0), slotKind};
+            }
+        }
+        throw new IOException("The index table is full");
+    }
+
+    /**
+     * Adds a difference to the offsets of all the records after a position, reading the table in big blocks.
+     * @param after Offset of the changed line, only the records after it are moved.
+     * @param delta Bytes to add.
+     * @throws IOException If the index can't be read or written.
+     */
+    private void shift(long after, long delta) throws IOException {
+        ByteBuffer block = ByteBuffer.allocateDirect(BatchAppender.BUFFER_SIZE);
+        long end = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        for (long position = HEADER_SIZE; position < end; position += block.capacity()) {
+            block.clear().limit((int) Math.min(block.capacity(), end - position));
+            readFully(channel, block, position);
+            boolean changed = false;
+            for (int i = 0; i < block.limit(); i += SLOT_SIZE) {
+                long offset = block.getLong(i);
+                if (block.getInt(i + 12) != EMPTY && offset > after) {
+                    block.putLong(i, offset + delta);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                block.flip();
+                while (block.hasRemaining()) {
+                    channel.write(block, position + block.position());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the line of the data file that starts at an offset.
+     * @param data Open channel of the data file.
+     * @param offset Offset of the line.
+     * @return Line without line separator.
+     * @throws IOException If the data file can't be read.
+     */
+    private static String readLine(FileChannel data, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        while (true) {
+            int read = data.read(buffer, offset + buffer.position());
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < buffer.position(); i++) {
+                if (bytes[i] == '\n' || bytes[i] == '\r') {
+                    return new String(bytes, 0, i, StandardCharsets.UTF_8);
+                }
+            }
+            if (read < 0) {
+                return new String(bytes, 0, buffer.position(), StandardCharsets.UTF_8); // Last line
+            }
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            }
+        }
+    }
+
+    /**
+     * Writes the header of an index file and remembers the state it describes.
+     * @param table Channel of the index file.
+     * @param newGeneration Generation of the data file the index matches.
+     * @param size Size of the data file the index matches.
+     * @throws IOException If the index can't be written.
+     */
+    private void writeHeader(FileChannel table, long newGeneration, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(capacity).putInt(used).putInt(0).putLong(newGeneration).putLong(size).flip();
+        while (header.hasRemaining()) {
+            table.write(header, header.position());
+        }
+        generation = newGeneration;
+        dataSize = size;
+    }
+
+    /**
+     * Writes a slot of the table.
+     * @param table Channel of the index file.
+     * @param position Position of the slot.
+     * @param offset Offset of the record, -1 if it was deleted.
+     * @param id ID of the record.
+     * @param kind Kind of the record.
+     * @throws IOException If the index can't be written.
+     */
+    private static void writeSlot(FileChannel table, long position, long offset, int id, int kind) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+        slot.putLong(offset).putInt(id).putInt(kind).flip();
+        while (slot.hasRemaining()) {
+            table.write(slot, position + slot.position());
+        }
+    }
+
+    /**
+     * Reads bytes of a file until the buffer is full. Missing bytes of a sparse table read as zeros.
+     * @param file Channel to read.
+     * @param buffer Buffer to fill.
+     * @param position Position of the file to read from.
+     * @throws IOException If the file ends before the buffer is full.
+     */
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the index file");
+            }
+        }
+    }
+
+    /**
+     * Gets the slot kind of a record type.
+     * @param type {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+     * @return Slot kind.
+     */
+    private static int kind(MappedRecordReader.RecordType type) {
+        return type == MappedRecordReader.RecordType.EMPLOYEE ? EMPLOYEE : DEPARTMENT;
+    }
+
+    /**
+     * Closes the index file. The file stays on disk and is used again if it still matches the data file.
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Parallel reader of the data file.
+ * The file is split into byte ranges (chunks) that always start at the beginning of a line, and every chunk is parsed
+ * by a {@link MappedRecordReader} on a {@link ForkJoinPool}, so a full scan of a big file uses all the cores instead of
+ * one. Each chunk collects its own results, which are appended in file order as the chunks are joined.
+ *
+ * Files smaller than two chunks of {@link #MIN_CHUNK_SIZE} bytes are scanned in the calling thread, because splitting
+ * them costs more than it saves.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ParallelScanner {
+    /**
+     * MIN_CHUNK_SIZE -> Minimum number of bytes of a chunk (1 MB).
+     */
+    static final long MIN_CHUNK_SIZE = 1L << 20;
+    /**
+     * CHUNKS_PER_THREAD -> Number of chunks per thread of the pool, so threads that finish early can take more work.
+     */
+    static final int CHUNKS_PER_THREAD = 4;
+    /**
+     * Pool where the chunks are parsed.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Function that turns a record line into a result.
+     * @param <T> Type of the results.
+     */
+    @FunctionalInterface
+    public interface RecordMapper<T> {
+        /**
+         * Method called for every record line of a chunk. It may be called from several threads at the same time, one
+         * {@link MappedRecordReader.Cursor} per chunk, so it must not change shared state.
+         * @param cursor {@link MappedRecordReader.Cursor} positioned on the record. It must not be kept.
+         * @return The result for the record, or null to skip it.
+         */
+        T map(MappedRecordReader.Cursor cursor);
+    }
+
+    /**
+     * Creates a scanner that uses the common {@link ForkJoinPool}.
+     */
+    public ParallelScanner() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a scanner that uses the given pool.
+     * @param pool {@link ForkJoinPool} where the chunks are parsed.
+     */
+    public ParallelScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Scans the whole file in parallel.
+     * @param file Path of the data file.
+     * @param mapper {@link RecordMapper} applied to every record line.
+     * @param <T> Type of the results.
+     * @return {@link ArrayList} with the non-null results of the mapper, in file order.
+     * @throws IOException If the file can't be read.
+     */
+    public <T> List<T> scan(Path file, RecordMapper<T> mapper) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return scan(channel, mapper);
+        }
+    }
+
+    /**
+     * Scans the whole file of an open channel in parallel. The channel is shared by the chunks and it is not closed.
+     * @param channel Open {@link FileChannel} of the data file.
+     * @param mapper {@link RecordMapper} applied to every record line.
+     * @param <T> Type of the results.
+     * @return {@link ArrayList} with the non-null results of the mapper, in file order.
+     * @throws IOException If the file can't be read.
+     */
+    public <T> List<T> scan(FileChannel channel, RecordMapper<T> mapper) throws IOException {
+        try {
+            long[] bounds = split(channel, pool.getParallelism() * CHUNKS_PER_THREAD);
+            if (bounds.length == 2) {
+                return new ChunkTask<>(channel, bounds[0], bounds[1], mapper).compute();
+            }
+            List<ChunkTask<T>> tasks = new ArrayList<>(bounds.length - 1);
+            for (int i = 0; i < bounds.length - 1; i++) {
+                tasks.add(new ChunkTask<>(channel, bounds[i], bounds[i + 1], mapper));
+            }
+            return merge(tasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Runs the chunks and appends their results in file order. The results of every chunk are dropped by its task once
+     * they are appended, so they are not kept twice until the end of the scan.
+     * @param tasks Chunk tasks, in file order.
+     * @param <T> Type of the results.
+     * @return Merged results.
+     * @throws IOException If a chunk can't be read.
+     */
+    private <T> List<T> merge(List<ChunkTask<T>> tasks) throws IOException {
+        for (ChunkTask<T> task : tasks) {
+            pool.execute(task);
+        }
+        List<T> results = new ArrayList<>();
+        for (ChunkTask<T> task : tasks) {
+            results.addAll(join(task));
+            task.clear();
+        }
+        return results;
+    }
+
+    /**
+     * Waits for a chunk, unwrapping the exception it threw.
+     * @param task Chunk task.
+     * @param <T> Type of the results.
+     * @return Results of the chunk.
+     * @throws IOException If the chunk can't be read.
+     */
+    private static <T> List<T> join(ChunkTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning the file", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Splits the file into chunks that start at the beginning of a line.
+     * @param channel Open channel of the data file.
+     * @param maxChunks Maximum number of chunks.
+     * @return Boundaries of the chunks: chunk i goes from bounds[i] to bounds[i + 1] (exclusive).
+     * @throws IOException If the file can't be read.
+     */
+    static long[] split(FileChannel channel, int maxChunks) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, Math.min(maxChunks, size / MIN_CHUNK_SIZE));
+        long[] bounds = new long[chunks + 1];
+        int count = 1; // bounds[0] = 0
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < chunks; i++) {
+            long from = Math.max(size * i / chunks, bounds[count - 1]);
+            long boundary = nextLineStart(channel, from, size, probe);
+            if (boundary > bounds[count - 1] && boundary < size) {
+                bounds[count++] = boundary;
+            }
+        }
+        bounds[count++] = size;
+        return count == bounds.length ? bounds : Arrays.copyOf(bounds, count);
+    }
+
+    /**
+     * Finds the first line that starts at or after a position.
+     * @param channel Open channel of the data file.
+     * @param from Position where the search starts.
+     * @param size Size of the file.
+     * @param probe Reused buffer.
+     * @return Offset of the byte after the first line break found at or after {@code from - 1}, or the size of the file.
+     * @throws IOException If the file can't be read.
+     */
+    private static long nextLineStart(FileChannel channel, long from, long size, ByteBuffer probe) throws IOException {
+        if (from <= 0) {
+            return 0;
+        }
+        long position = from - 1; // If the previous byte is a line break, the position is already a line start
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Task that parses one chunk of the file.
+     * @param <T> Type of the results.
+     */
+    private static final class ChunkTask<T> extends RecursiveTask<List<T>> {
+        /**
+         * Tasks are {@link java.io.Serializable} because every {@link java.util.concurrent.ForkJoinTask} is, but they
+         * are never serialized, so their fields are transient.
+         */
+        private static final long serialVersionUID = 1L;
+        private final transient FileChannel channel;
+        private final long start;
+        private final long end;
+        private final transient RecordMapper<T> mapper;
+
+        ChunkTask(FileChannel channel, long start, long end, RecordMapper<T> mapper) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.mapper = mapper;
+        }
+
+        @Override
+        protected List<T> compute() {
+            List<T> results = new ArrayList<>();
+            try {
+                MappedRecordReader.scan(channel, start, end, cursor -> {
+                    T result = mapper.map(cursor);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                    return true;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return results;
+        }
+
+        /**
+         * Drops the results of the chunk, once they are merged.
+         */
+        void clear() {
+            setRawResult(null);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cesur.accesodatos.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Size-bounded cache of records by their ID, used by {@link FileDAO} in front of the lookups by ID when the cache mode
+ * is disabled. Only the hot records are kept, so the lookups of a skewed workload rarely read the data file, while the
+ * memory used stays bounded for files too large for a {@link FileIndex}.
+ *
+ * The cache is bounded by a number of entries and by an estimated size in bytes, and evicts the least recently used
+ * record first. Only existing records are cached.
+ * Its content is valid for one generation of the data file (see {@link FileLockManager}): a lookup with another
+ * generation empties it, so changes of other processes are never hidden. The owner invalidates the records it changes
+ * and then moves the cache to the generation of its own write with {@link #advance(long, long)}.
+ *
+ * Objects are copied when they are stored and when they are handed out, so callers can modify them. Thread-safe.
+ *
+ * @param <V> Type of the records.
+ * @author Marc Albert Seguí Olmos
+ */
+public class RecordCache<V> {
+    /**
+     * ENTRY_OVERHEAD -> Estimated bytes of a cache entry without the Strings of the record (map entry, boxed key and
+     * record object).
+     */
+    static final long ENTRY_OVERHEAD = 96;
+    /**
+     * STRING_OVERHEAD -> Estimated bytes of a String without its characters.
+     */
+    static final long STRING_OVERHEAD = 40;
+
+    /**
+     * Maximum number of entries, 0 or less for no limit.
+     */
+    private final int maxEntries;
+    /**
+     * Maximum estimated size in bytes, 0 or less for no limit.
+     */
+    private final long maxBytes;
+    /**
+     * Function that estimates the size of a record in bytes.
+     */
+    private final ToLongFunction<V> weigher;
+    /**
+     * Function that creates a detached copy of a record.
+     */
+    private final UnaryOperator<V> copier;
+    /**
+     * Records by their ID. The access order of the {@link LinkedHashMap} puts the least recently used record first.
+     */
+    private final LinkedHashMap<Integer, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Estimated size of the cached records in bytes.
+     */
+    private long bytes;
+    /**
+     * Generation of the data file the content is valid for, -1 before the first lookup.
+     */
+    private long generation = -1;
+    /**
+     * Counters of lookups that found the record, lookups that didn't find it and evicted records.
+     */
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an empty cache.
+     * @param maxEntries Maximum number of records, 0 or less for no limit.
+     * @param maxBytes Maximum estimated size of the records in bytes, 0 or less for no limit.
+     * @param weigher Function that estimates the size of a record in bytes.
+     * @param copier Function that creates a detached copy of a record.
+     */
+    public RecordCache(int maxEntries, long maxBytes, ToLongFunction<V> weigher, UnaryOperator<V> copier) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+        this.copier = copier;
+    }
+
+    /**
+     * Creates an empty cache of employees.
+     * @param maxEntries Maximum number of employees, 0 or less for no limit.
+     * @param maxBytes Maximum estimated size of the employees in bytes, 0 or less for no limit.
+     * @return New {@link RecordCache}.
+     */
+    public static RecordCache<Employee> forEmployees(int maxEntries, long maxBytes) {
+        return new RecordCache<>(maxEntries, maxBytes,
+                employee -> ENTRY_OVERHEAD + stringSize(employee.getName()) + stringSize(employee.getPosition()), RecordFormat::copy);
+    }
+
+    /**
+     * Creates an empty cache of departments.
+     * @param maxEntries Maximum number of departments, 0 or less for no limit.
+     * @param maxBytes Maximum estimated size of the departments in bytes, 0 or less for no limit.
+     * @return New {@link RecordCache}.
+     */
+    public static RecordCache<Department> forDepartments(int maxEntries, long maxBytes) {
+        return new RecordCache<>(maxEntries, maxBytes,
+                department -> ENTRY_OVERHEAD + stringSize(department.getName()) + stringSize(department.getLocation()), RecordFormat::copy);
+    }
+
+    /**
+     * Gets a record.
+     * @param id ID of the record.
+     * @param generation Current generation of the data file. If it is not the generation of the content, the cache is
+     *                   emptied first.
+     * @return Copy of the cached record, or null if it is not cached.
+     */
+    public synchronized V get(int id, long generation) {
+        if (generation != this.generation) {
+            clear();
+            this.generation = generation;
+        }
+        V value = entries.get(id);
+        if (value == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copier.apply(value);
+    }
+
+    /**
+     * Stores a record read from the data file, evicting the least recently used records if a limit is exceeded.
+     * @param id ID of the record.
+     * @param value Record read from the file. A copy is stored.
+     * @param generation Generation of the data file the record was read at. If it is not the generation of the content,
+     *                   the record is not stored.
+     */
+    public synchronized void put(int id, V value, long generation) {
+        if (generation != this.generation) {
+            return; // Read from another version of the file
+        }
+        V copy = copier.apply(value);
+        V old = entries.put(id, copy);
+        if (old != null) {
+            bytes -= weigher.applyAsLong(old);
+        }
+        bytes += weigher.applyAsLong(copy);
+        Iterator<V> eldest = entries.values().iterator();
+        while ((maxEntries > 0 && entries.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes && entries.size() > 1)) {
+            bytes -= weigher.applyAsLong(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes a record, because it was changed or deleted.
+     * @param id ID of the record.
+     */
+    public synchronized void invalidate(int id) {
+        V old = entries.remove(id);
+        if (old != null) {
+            bytes -= weigher.applyAsLong(old);
+        }
+    }
+
+    /**
+     * Moves the content to the generation committed by a write of the owner, which already invalidated the records
+     * it changed. Nothing is done if the content was not valid for the generation before the write.
+     * @param from Generation before the write.
+     * @param to Generation committed by the write.
+     */
+    public synchronized void advance(long from, long to) {
+        if (this.generation == from) {
+            this.generation = to;
+        }
+    }
+
+    /**
+     * Removes all the records. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Gets the counters and the current size of the cache.
+     * @return {@link Stats} of the cache.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, entries.size(), bytes);
+    }
+
+    /**
+     * Estimates the size of a String in bytes.
+     * @param value String, it may be null.
+     * @return Estimated bytes.
+     */
+    private static long stringSize(String value) {
+        return value == null ? 0 : STRING_OVERHEAD + value.length();
+    }
+
+    /**
+     * Counters and size of a {@link RecordCache}.
+     * @param hits Lookups that found the record.
+     * @param misses Lookups that didn't find the record.
+     * @param evictions Records evicted because a limit was exceeded.
+     * @param entries Number of cached records.
+     * @param bytes Estimated size of the cached records in bytes.
+     */
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+    }
+}
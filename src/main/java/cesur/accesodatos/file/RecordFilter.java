@@ -0,0 +1,402 @@
+package cesur.accesodatos.file;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Filter of {@link Employee} or {@link Department} records, used by {@link IDAO#findEmployees(RecordFilter)} and
+ * {@link IDAO#findDepartments(RecordFilter)}.
+ * A filter is a list of conditions on the fields of one record type (equality, prefix or numeric range) that must all
+ * be true. Filters can be checked on objects and also on a {@link MappedRecordReader.Cursor}: in that case numbers are
+ * parsed and texts are compared straight from the bytes of the line, so records that don't match never become objects.
+ * On dictionary-encoded columns (see {@link EmployeeTable}) the text conditions are solved once against the values of
+ * the dictionary, and the rows are checked with int comparisons of their codes.
+ *
+ * Example: {@code RecordFilter.eq(Field.EMPLOYEE_POSITION, "Vendedor").and(RecordFilter.range(Field.EMPLOYEE_DEPNO, 20, 30))}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class RecordFilter {
+
+    /**
+     * Fields that can be filtered, with their record type and their position in the record line.
+     */
+    public enum Field {
+        EMPLOYEE_ID(MappedRecordReader.RecordType.EMPLOYEE, 0, true),
+        EMPLOYEE_NAME(MappedRecordReader.RecordType.EMPLOYEE, 1, false),
+        EMPLOYEE_POSITION(MappedRecordReader.RecordType.EMPLOYEE, 2, false),
+        EMPLOYEE_DEPNO(MappedRecordReader.RecordType.EMPLOYEE, 3, true),
+        DEPARTMENT_ID(MappedRecordReader.RecordType.DEPARTMENT, 0, true),
+        DEPARTMENT_NAME(MappedRecordReader.RecordType.DEPARTMENT, 1, false),
+        DEPARTMENT_LOCATION(MappedRecordReader.RecordType.DEPARTMENT, 2, false);
+
+        /**
+         * Type of the records that have the field.
+         */
+        private final MappedRecordReader.RecordType type;
+        /**
+         * Index of the field in the record line.
+         */
+        private final int column;
+        /**
+         * Flag indicating if the field is an integer.
+         */
+        private final boolean numeric;
+
+        Field(MappedRecordReader.RecordType type, int column, boolean numeric) {
+            this.type = type;
+            this.column = column;
+            this.numeric = numeric;
+        }
+
+        /**
+         * Gets the type of the records that have the field.
+         * @return {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+         */
+        public MappedRecordReader.RecordType getType() {
+            return type;
+        }
+
+        /**
+         * Method to check if the field is an integer.
+         * @return True for IDs, false for texts.
+         */
+        public boolean isNumeric() {
+            return numeric;
+        }
+    }
+
+    /**
+     * Kinds of conditions.
+     */
+    private enum Operator {
+        EQUALS, PREFIX, RANGE
+    }
+
+    /**
+     * Single condition on a field.
+     */
+    private static final class Condition {
+        private final Field field;
+        private final Operator operator;
+        /**
+         * Value for text conditions, and its UTF-8 bytes for the comparisons on the cursor.
+         */
+        private final String text;
+        private final byte[] bytes;
+        /**
+         * Inclusive bounds for numeric conditions (both are the value for equality).
+         */
+        private final int min;
+        private final int max;
+
+        Condition(Field field, Operator operator, String text, int min, int max) {
+            this.field = field;
+            this.operator = operator;
+            this.text = text;
+            this.bytes = text == null ? null : text.getBytes(StandardCharsets.UTF_8);
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Checks the condition on the current record of a cursor, which must have the type of the field.
+         * @param cursor {@link MappedRecordReader.Cursor} positioned on the record.
+         * @return True if the record meets the condition.
+         */
+        boolean matches(MappedRecordReader.Cursor cursor) {
+            if (field.numeric) {
+                int value = cursor.getInt(field.column);
+                return value >= min && value <= max;
+            }
+            return operator == Operator.PREFIX ? cursor.fieldStartsWith(field.column, bytes) : cursor.fieldEquals(field.column, bytes);
+        }
+
+        /**
+         * Checks the condition on a value of the field.
+         * @param value Integer or String value of the field.
+         * @return True if the value meets the condition.
+         */
+        boolean matches(Object value) {
+            if (value == null) {
+                return false;
+            }
+            if (field.numeric) {
+                int number = (Integer) value;
+                return number >= min && number <= max;
+            }
+            return operator == Operator.PREFIX ? ((String) value).startsWith(text) : value.equals(text);
+        }
+    }
+
+    /**
+     * Type of the records the filter applies to.
+     */
+    private final MappedRecordReader.RecordType type;
+    /**
+     * Conditions that must all be true.
+     */
+    private final List<Condition> conditions;
+
+    /**
+     * Filters are created with the static factory methods.
+     * @param type Type of the records.
+     * @param conditions Conditions of the filter.
+     */
+    private RecordFilter(MappedRecordReader.RecordType type, List<Condition> conditions) {
+        this.type = type;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Creates a filter of the records whose numeric field is equal to a value.
+     * @param field Numeric {@link Field}.
+     * @param value Expected value.
+     * @return New {@link RecordFilter}.
+     * @throws IllegalArgumentException If the field is not numeric.
+     */
+    public static RecordFilter eq(Field field, int value) {
+        return range(field, value, value);
+    }
+
+    /**
+     * Creates a filter of the records whose text field is equal to a value (case-sensitive).
+     * @param field Text {@link Field}.
+     * @param value Expected value.
+     * @return New {@link RecordFilter}.
+     * @throws IllegalArgumentException If the field is numeric.
+     */
+    public static RecordFilter eq(Field field, String value) {
+        return text(field, Operator.EQUALS, value);
+    }
+
+    /**
+     * Creates a filter of the records whose text field starts with a value (case-sensitive).
+     * @param field Text {@link Field}.
+     * @param prefix Expected prefix.
+     * @return New {@link RecordFilter}.
+     * @throws IllegalArgumentException If the field is numeric.
+     */
+    public static RecordFilter prefix(Field field, String prefix) {
+        return text(field, Operator.PREFIX, prefix);
+    }
+
+    /**
+     * Creates a filter of the records whose numeric field is between two values.
+     * @param field Numeric {@link Field}.
+     * @param min Minimum value (inclusive).
+     * @param max Maximum value (inclusive).
+     * @return New {@link RecordFilter}.
+     * @throws IllegalArgumentException If the field is not numeric.
+     */
+    public static RecordFilter range(Field field, int min, int max) {
+        if (!field.numeric) {
+            throw new IllegalArgumentException("The field " + field + " is not numeric");
+        }
+        return new RecordFilter(field.type, List.of(new Condition(field, Operator.RANGE, null, min, max)));
+    }
+
+    /**
+     * Creates a filter with a condition on a text field.
+     * @param field Text {@link Field}.
+     * @param operator {@link Operator#EQUALS} or {@link Operator#PREFIX}.
+     * @param value Value of the condition.
+     * @return New {@link RecordFilter}.
+     */
+    private static RecordFilter text(Field field, Operator operator, String value) {
+        if (field.numeric) {
+            throw new IllegalArgumentException("The field " + field + " is numeric");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("The value can't be null");
+        }
+        return new RecordFilter(field.type, List.of(new Condition(field, operator, value, 0, 0)));
+    }
+
+    /**
+     * Combines this filter with another one, so both must be true.
+     * @param other {@link RecordFilter} on the same record type.
+     * @return New {@link RecordFilter} with the conditions of both filters.
+     * @throws IllegalArgumentException If the filters are on different record types.
+     */
+    public RecordFilter and(RecordFilter other) {
+        if (other.type != this.type) {
+            throw new IllegalArgumentException("Filters on " + this.type + " and " + other.type + " records can't be combined");
+        }
+        List<Condition> all = new ArrayList<>(this.conditions);
+        all.addAll(other.conditions);
+        return new RecordFilter(this.type, Collections.unmodifiableList(all));
+    }
+
+    /**
+     * Gets the type of the records the filter applies to.
+     * @return {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+     */
+    public MappedRecordReader.RecordType getType() {
+        return type;
+    }
+
+    /**
+     * Checks that the filter applies to the expected record type.
+     * @param expected Expected record type.
+     * @throws IllegalArgumentException If the filter applies to another record type.
+     */
+    public void checkType(MappedRecordReader.RecordType expected) {
+        if (type != expected) {
+            throw new IllegalArgumentException("Expected a filter of " + expected + " records but got one of " + type + " records");
+        }
+    }
+
+    /**
+     * Checks the filter on the current record of a cursor, without creating objects.
+     * Records of other types (including tombstones) never match.
+     * @param cursor {@link MappedRecordReader.Cursor} positioned on the record.
+     * @return True if the record has the type of the filter and meets all the conditions.
+     */
+    public boolean matches(MappedRecordReader.Cursor cursor) {
+        if (cursor.getType() != type) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            if (!condition.matches(cursor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the filter on an employee.
+     * @param employee {@link Employee} to check.
+     * @return True if it is an employee filter and the employee meets all the conditions.
+     */
+    public boolean matches(Employee employee) {
+        if (type != MappedRecordReader.RecordType.EMPLOYEE) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            Object value = switch (condition.field) {
+                case EMPLOYEE_ID -> employee.getEmpno();
+                case EMPLOYEE_NAME -> employee.getName();
+                case EMPLOYEE_POSITION -> employee.getPosition();
+                default -> employee.getDepno();
+            };
+            if (!condition.matches(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the filter on a department.
+     * @param department {@link Department} to check.
+     * @return True if it is a department filter and the department meets all the conditions.
+     */
+    public boolean matches(Department department) {
+        if (type != MappedRecordReader.RecordType.DEPARTMENT) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            Object value = switch (condition.field) {
+                case DEPARTMENT_ID -> department.getDepno();
+                case DEPARTMENT_NAME -> department.getName();
+                default -> department.getLocation();
+            };
+            if (!condition.matches(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the bounds that a numeric field must meet, joining all the conditions on that field.
+     * @param field Numeric {@link Field}.
+     * @return Array with the minimum and maximum values (inclusive), or null if the filter has no condition on the
+     *         field. The minimum is greater than the maximum if no value can meet the conditions.
+     */
+    int[] bounds(Field field) {
+        int[] bounds = null;
+        for (Condition condition : conditions) {
+            if (condition.field == field) {
+                if (bounds == null) {
+                    bounds = new int[]{condition.min, condition.max};
+                } else {
+                    bounds[0] = Math.max(bounds[0], condition.min);
+                    bounds[1] = Math.min(bounds[1], condition.max);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Compiles the conditions on a dictionary-encoded text field into a test of dictionary codes.
+     * An equality becomes a comparison with the code of the value (which is looked up once), and prefixes are checked
+     * once per distinct value of the dictionary instead of once per row.
+     * @param field Text {@link Field}.
+     * @param dictionary {@link StringDictionary} of the column. It is not changed.
+     * @return {@link IntPredicate} that gets a code of the dictionary, or null if the filter has no condition on the field.
+     */
+    IntPredicate codeMatcher(Field field, StringDictionary dictionary) {
+        int expected = -2; // Code that meets all the equalities, -2 if there is none and -1 if no code meets them
+        boolean prefixes = false;
+        for (Condition condition : conditions) {
+            if (condition.field == field) {
+                if (condition.operator == Operator.PREFIX) {
+                    prefixes = true;
+                } else {
+                    int code = dictionary.find(condition.text);
+                    expected = expected == -2 || expected == code ? code : -1;
+                }
+            }
+        }
+        if (expected == -1) {
+            return code -> false;
+        }
+        if (!prefixes) {
+            int target = expected;
+            return target == -2 ? null : code -> code == target;
+        }
+        boolean[] matching = new boolean[dictionary.size()];
+        String[] values = dictionary.snapshot();
+        for (int code = 0; code < matching.length; code++) {
+            matching[code] = expected == -2 || expected == code;
+            for (int i = 0; i < conditions.size() && matching[code]; i++) {
+                Condition condition = conditions.get(i);
+                matching[code] = condition.field != field || condition.matches(values[code]);
+            }
+        }
+        return code -> matching[code];
+    }
+
+    /**
+     * Compiles the conditions on a text field stored as plain Strings (not dictionary-encoded) into a test of its values.
+     * @param field Text {@link Field}.
+     * @return {@link Predicate} that gets a value of the field, or null if the filter has no condition on the field.
+     */
+    Predicate<String> textMatcher(Field field) {
+        List<Condition> onField = new ArrayList<>();
+        for (Condition condition : conditions) {
+            if (condition.field == field) {
+                onField.add(condition);
+            }
+        }
+        if (onField.isEmpty()) {
+            return null;
+        }
+        return value -> {
+            for (Condition condition : onField) {
+                if (!condition.matches(value)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+}
@@ -0,0 +1,190 @@
+package cesur.accesodatos.file;
+
+/**
+ * Helper class that knows the line format of the data file.
+ * Employees are stored as "employee(id,surname,job,department_id)" and departments as "department(id,name,city)".
+ * Lines starting with "--" are comments and are ignored by every parser.
+ * In {@link StorageMode#APPEND_LOG} mode (and in the {@link WriteAheadJournal}) deleted records are marked with "tombstone(employee,id)" or
+ * "tombstone(department,id)" lines.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class RecordFormat {
+    /**
+     * Prefix of every line that stores an {@link Employee}.
+     */
+    public static final String EMPLOYEE_PREFIX = "employee(";
+    /**
+     * Prefix of every line that stores a {@link Department}.
+     */
+    public static final String DEPARTMENT_PREFIX = "department(";
+    /**
+     * Prefix of every line that marks a deleted record in {@link StorageMode#APPEND_LOG} mode.
+     */
+    public static final String TOMBSTONE_PREFIX = "tombstone(";
+    /**
+     * Record kind used in tombstones of employees.
+     */
+    public static final String EMPLOYEE_KIND = "employee";
+    /**
+     * Record kind used in tombstones of departments.
+     */
+    public static final String DEPARTMENT_KIND = "department";
+    /**
+     * RESERVED_CHARACTERS -> Characters that delimit the fields and the lines of the data file, so no text field may contain them.
+     */
+    static final String RESERVED_CHARACTERS = ",()\r\n";
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private RecordFormat() {
+    }
+
+    /**
+     * Parses an employee line into an {@link Employee} object.
+     * @param line Line read from the data file.
+     * @return The parsed {@link Employee} or null if the line is not an employee line.
+     */
+    public static Employee parseEmployee(String line) {
+        if (!line.startsWith(EMPLOYEE_PREFIX)) {
+            return null;
+        }
+        String[] parts = fields(line);
+        return new Employee(Integer.parseInt(parts[0]), parts[1], parts[2], Integer.parseInt(parts[3]));
+    }
+
+    /**
+     * Parses a department line into a {@link Department} object.
+     * @param line Line read from the data file.
+     * @return The parsed {@link Department} or null if the line is not a department line.
+     */
+    public static Department parseDepartment(String line) {
+        if (!line.startsWith(DEPARTMENT_PREFIX)) {
+            return null;
+        }
+        String[] parts = fields(line);
+        return new Department(Integer.parseInt(parts[0]), parts[1], parts[2]);
+    }
+
+    /**
+     * Formats an {@link Employee} as a data file line (without line separator).
+     * @param employee {@link Employee} to format.
+     * @return Line with the format "employee(id,surname,job,department_id)".
+     * @throws IllegalArgumentException If a text field can't be stored in a line, see {@link #checkEmployee(Employee)}.
+     */
+    public static String formatEmployee(Employee employee) {
+        checkEmployee(employee);
+        return EMPLOYEE_PREFIX + employee.getEmpno() + "," + employee.getName() + "," + employee.getPosition() + "," + employee.getDepno() + ")";
+    }
+
+    /**
+     * Formats a {@link Department} as a data file line (without line separator).
+     * @param department {@link Department} to format.
+     * @return Line with the format "department(id,name,city)".
+     * @throws IllegalArgumentException If a text field can't be stored in a line, see {@link #checkDepartment(Department)}.
+     */
+    public static String formatDepartment(Department department) {
+        checkDepartment(department);
+        return DEPARTMENT_PREFIX + department.getDepno() + "," + department.getName() + "," + department.getLocation() + ")";
+    }
+
+    /**
+     * Checks that the text fields of an employee can be stored in a line, so a value like "Smith,Jr" is rejected
+     * before anything is written instead of splitting the record into the wrong fields.
+     * @param employee {@link Employee} to check.
+     * @throws IllegalArgumentException If the surname or the job contains one of the {@link #RESERVED_CHARACTERS}.
+     */
+    public static void checkEmployee(Employee employee) {
+        checkText("surname", employee.getName());
+        checkText("job", employee.getPosition());
+    }
+
+    /**
+     * Checks that the text fields of a department can be stored in a line, see {@link #checkEmployee(Employee)}.
+     * @param department {@link Department} to check.
+     * @throws IllegalArgumentException If the name or the city contains one of the {@link #RESERVED_CHARACTERS}.
+     */
+    public static void checkDepartment(Department department) {
+        checkText("name", department.getName());
+        checkText("city", department.getLocation());
+    }
+
+    /**
+     * Checks that a text field doesn't contain any of the {@link #RESERVED_CHARACTERS}.
+     * @param field Name of the field, for the error message.
+     * @param value Value of the field, null values are not checked.
+     * @throws IllegalArgumentException If the value contains a reserved character.
+     */
+    public static void checkText(String field, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (RESERVED_CHARACTERS.indexOf(value.charAt(i)) >= 0) {
+                throw new IllegalArgumentException("The " + field + " cannot contain commas, parentheses or line breaks: " + value.strip());
+            }
+        }
+    }
+
+    /**
+     * Formats a tombstone line that marks a record as deleted.
+     * @param kind {@link #EMPLOYEE_KIND} or {@link #DEPARTMENT_KIND}.
+     * @param id ID of the deleted record.
+     * @return Line with the format "tombstone(kind,id)".
+     */
+    public static String formatTombstone(String kind, int id) {
+        return TOMBSTONE_PREFIX + kind + "," + id + ")";
+    }
+
+    /**
+     * Gets the key of a record or tombstone line, which is the record kind and its ID (for example "employee,5").
+     * An update and a tombstone of the same record have the same key.
+     * @param line Line read from the data file.
+     * @return Key of the record, or null if the line is a comment, a malformed record or any other kind of line.
+     */
+    public static String recordKey(String line) {
+        if (line.startsWith(TOMBSTONE_PREFIX)) {
+            int end = line.indexOf(")");
+            return end < 0 ? null : line.substring(TOMBSTONE_PREFIX.length(), end);
+        }
+        String kind;
+        if (line.startsWith(EMPLOYEE_PREFIX)) {
+            kind = EMPLOYEE_KIND;
+        } else if (line.startsWith(DEPARTMENT_PREFIX)) {
+            kind = DEPARTMENT_KIND;
+        } else {
+            return null;
+        }
+        int start = kind.length() + 1;
+        int end = line.indexOf(",", start);
+        return end < 0 ? null : kind + "," + line.substring(start, end);
+    }
+
+    /**
+     * Creates a detached copy of an {@link Employee}, so cached objects can't be modified from outside.
+     * @param employee {@link Employee} to copy.
+     * @return New {@link Employee} with the same attributes.
+     */
+    public static Employee copy(Employee employee) {
+        return new Employee(employee.getEmpno(), employee.getName(), employee.getPosition(), employee.getDepno());
+    }
+
+    /**
+     * Creates a detached copy of a {@link Department}, so cached objects can't be modified from outside.
+     * @param department {@link Department} to copy.
+     * @return New {@link Department} with the same attributes.
+     */
+    public static Department copy(Department department) {
+        return new Department(department.getDepno(), department.getName(), department.getLocation());
+    }
+
+    /**
+     * Extracts the comma separated values between the parenthesis of a record line.
+     * @param line Record line.
+     * @return Array with the record values.
+     */
+    private static String[] fields(String line) {
+        return line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",");
+    }
+}
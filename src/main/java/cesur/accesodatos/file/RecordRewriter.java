@@ -0,0 +1,224 @@
+package cesur.accesodatos.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Changes or removes one record line of the data file in {@link StorageMode#REWRITE} mode, with constant memory.
+ * The file is never loaded: the target line is found by reading the file through a reused direct {@link ByteBuffer},
+ * and the new file is built in a temporary file by copying the bytes before and after the target line with
+ * {@link FileChannel#transferTo}. The temporary file is forced to disk and moved over the data file with
+ * {@link StandardCopyOption#ATOMIC_MOVE}, so readers (and a crash) only ever see the old or the new file.
+ * {@link #rewriteAll(Path, MappedRecordReader.RecordType, Map)} changes many records in the same single pass.
+ * The line separators of the file are kept; {@link #lineSeparator(Path)} gives the other rewrites of the file (the
+ * checkpoints of the journal and the log compactions) the separator to write.
+ *
+ * Must be called while holding the exclusive file lock, see {@link FileLockManager}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public final class RecordRewriter {
+    /**
+     * TEMP_SUFFIX -> Suffix added to the data file name to get the temporary file name.
+     */
+    static final String TEMP_SUFFIX = ".rewrite";
+    /**
+     * Reused read buffer of every thread.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BatchAppender.BUFFER_SIZE));
+
+    /**
+     * Utility class, it is not meant to be instantiated.
+     */
+    private RecordRewriter() {
+    }
+
+    /**
+     * Changes the first line of the file that starts with a prefix.
+     * @param file Path of the data file.
+     * @param prefix Start of the target line, for example "employee(5,".
+     * @param change Function that gets the current line (without line separator) and returns the new line, or null to
+     *               remove it. If it returns the current line the file is not replaced.
+     * @return The line before the change (without line separator), or null if no line starts with the prefix.
+     * @throws IOException If the file can't be read or replaced.
+     */
+    public static String rewrite(Path file, String prefix, UnaryOperator<String> change) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        String oldLine;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = source.size();
+            long[] bounds = findLine(source, size, prefix.getBytes(StandardCharsets.UTF_8));
+            if (bounds == null) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate((int) (bounds[1] - bounds[0])); // Only the target line is decoded
+            while (bytes.hasRemaining()) {
+                source.read(bytes, bounds[0] + bytes.position());
+            }
+            String text = new String(bytes.array(), StandardCharsets.UTF_8);
+            int contentEnd = text.length();
+            while (contentEnd > 0 && (text.charAt(contentEnd - 1) == '\n' || text.charAt(contentEnd - 1) == '\r')) {
+                contentEnd--;
+            }
+            oldLine = text.substring(0, contentEnd);
+            String newLine = change.apply(oldLine);
+            if (oldLine.equals(newLine)) {
+                return oldLine; // Nothing changes
+            }
+
+            try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                copy(source, 0, bounds[0], target);
+                if (newLine != null) {
+                    ByteBuffer replacement = ByteBuffer.wrap((newLine + text.substring(contentEnd)).getBytes(StandardCharsets.UTF_8));
+                    while (replacement.hasRemaining()) {
+                        target.write(replacement);
+                    }
+                }
+                copy(source, bounds[1], size, target);
+                target.force(true);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return oldLine;
+    }
+
+    /**
+     * Replaces the lines of many records of one type with a single pass over the file. The record lines are found with a
+     * {@link MappedRecordReader} (only the ID of every line is parsed), and the new file is built copying the bytes
+     * between the replaced lines. Only the first line of every ID is replaced, and the line separators are kept.
+     * @param file Path of the data file.
+     * @param type {@link MappedRecordReader.RecordType#EMPLOYEE} or {@link MappedRecordReader.RecordType#DEPARTMENT}.
+     * @param newLines New line (without line separator) by record ID.
+     * @return IDs whose line was replaced. If it is empty the file is not replaced.
+     * @throws IOException If the file can't be read or replaced.
+     */
+    public static Set<Integer> rewriteAll(Path file, MappedRecordReader.RecordType type, Map<Integer, String> newLines) throws IOException {
+        Set<Integer> replaced = new HashSet<>();
+        List<long[]> targets = new ArrayList<>(); // Offset, length and ID of every replaced line, in file order
+        MappedRecordReader.scan(file, cursor -> {
+            if (cursor.getType() == type) {
+                int id = cursor.getInt(0);
+                if (newLines.containsKey(id) && replaced.add(id)) {
+                    targets.add(new long[]{cursor.getOffset(), cursor.getLength(), id});
+                }
+            }
+            return replaced.size() < newLines.size(); // Stops once every record was found
+        });
+        if (targets.isEmpty()) {
+            return replaced;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (long[] line : targets) {
+                copy(source, position, line[0], target);
+                ByteBuffer replacement = ByteBuffer.wrap(newLines.get((int) line[2]).getBytes(StandardCharsets.UTF_8));
+                while (replacement.hasRemaining()) {
+                    target.write(replacement);
+                }
+                position = line[0] + line[1]; // The line separator is copied with the next range
+            }
+            copy(source, position, source.size(), target);
+            target.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return replaced;
+    }
+
+    /**
+     * Detects the line separator of a data file from its first line, so a file written again as a whole keeps it (the
+     * sample data file uses "\r\n" on every platform).
+     * @param file Path of the data file.
+     * @return "\r\n" or "\n", or the platform separator if the file has no line break yet.
+     * @throws IOException If the file can't be read.
+     */
+    static String lineSeparator(Path file) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            byte previous = 0;
+            while (true) {
+                buffer.clear();
+                int read = source.read(buffer, position);
+                if (read <= 0) {
+                    return System.lineSeparator();
+                }
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b == '\n') {
+                        return previous == '\r' ? "\r\n" : "\n";
+                    }
+                    previous = b;
+                }
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Finds the first line that starts with a prefix, comparing the bytes of the file with the bytes of the prefix.
+     * @param source Channel of the data file.
+     * @param size Size of the file.
+     * @param prefix Bytes of the prefix.
+     * @return Array with the position of the first byte of the line and the position after its line separator, or null
+     *         if no line starts with the prefix.
+     * @throws IOException If the file can't be read.
+     */
+    private static long[] findLine(FileChannel source, long size, byte[] prefix) throws IOException {
+        ByteBuffer buffer = BUFFER.get();
+        long position = 0;
+        long start = -1;
+        int matched = 0; // Bytes of the prefix matched by the current line, -1 if it doesn't match
+        while (position < size) {
+            buffer.clear();
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (start >= 0) {
+                        return new long[]{start, position + i + 1};
+                    }
+                    matched = 0;
+                } else if (start < 0 && matched >= 0) {
+                    if (b != prefix[matched]) {
+                        matched = -1;
+                    } else if (++matched == prefix.length) {
+                        start = position + i + 1 - prefix.length;
+                    }
+                }
+            }
+            position += read;
+        }
+        return start >= 0 ? new long[]{start, size} : null; // The last line has no line separator
+    }
+
+    /**
+     * Copies a range of the data file to the end of the temporary file.
+     * @param source Channel of the data file.
+     * @param from First position to copy.
+     * @param to Position after the last byte to copy.
+     * @param target Channel of the temporary file.
+     * @throws IOException If a file can't be read or written.
+     */
+    private static void copy(FileChannel source, long from, long to, FileChannel target) throws IOException {
+        while (from < to) {
+            from += source.transferTo(from, to - from, target);
+        }
+    }
+}
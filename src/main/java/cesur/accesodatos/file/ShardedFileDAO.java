@@ -0,0 +1,1009 @@
+package cesur.accesodatos.file;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Sharded file-based Data Access Object.
+ * Third storage backend that partitions the employees into one text file per department ("employees-10.txt", a shard)
+ * inside a directory, with the departments in a small manifest file ("departments.txt") of the same directory. Every
+ * file uses the record lines of the "empresa.txt" format of {@link FileDAO}.
+ *
+ * {@link #findEmployeesByDept(Object)} reads exactly one shard, and filters on the department of the employees only
+ * read the shards in range. Every shard has its own {@link FileLockManager}, so writes to employees of different
+ * departments run in parallel, in this and in other processes, and the dataset can grow past what one file handles well.
+ *
+ * Lookups by ID use a directory, kept in memory, with the shard of every employee ID. The directory remembers the
+ * generation every shard was read at, and a shard is only read again when its generation changed (a write of another
+ * DAO or process). A lookup first tries the shard the directory points to, so most lookups read one shard only.
+ * Employee IDs are unique across the shards: new IDs are checked against the directory.
+ *
+ * {@link #split(Path, Path)} creates the directory from a "empresa.txt" data file.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class ShardedFileDAO implements IDAO, FileHandlerInterface {
+    /**
+     * MANIFEST_NAME -> Name of the file with the departments.
+     */
+    static final String MANIFEST_NAME = "departments.txt";
+    /**
+     * SHARD_PREFIX -> Start of the name of the shard files, followed by the department ID.
+     */
+    static final String SHARD_PREFIX = "employees-";
+    /**
+     * SHARD_SUFFIX -> End of the name of the shard files.
+     */
+    static final String SHARD_SUFFIX = ".txt";
+
+    /**
+     * Directory with the manifest and the shards.
+     */
+    private final Path directory;
+    /**
+     * Path of the manifest with the departments.
+     */
+    private final Path manifest;
+    /**
+     * Cross-process locks of the manifest.
+     */
+    private final FileLockManager manifestLocks;
+    /**
+     * Flag indicating if the directory exists and has been checked.
+     */
+    private boolean connectionFlag = false;
+    /**
+     * Scanner used for capturing user input from the terminal in the update methods.
+     */
+    private final Scanner scanner = new Scanner(System.in);
+    /**
+     * Shard (department ID) of every employee ID. Guarded by itself, together with {@link #indexedShards} and
+     * {@link #pendingIds}. Its monitor is only held for memory updates, never while locking or reading a shard.
+     */
+    private final Map<Integer, Integer> shardOfEmployee = new HashMap<>();
+    /**
+     * Employee IDs of every shard read into the directory, by department ID.
+     */
+    private final Map<Integer, ShardEntry> indexedShards = new HashMap<>();
+    /**
+     * IDs of the employees being added, which are not in their shard yet.
+     */
+    private final Set<Integer> pendingIds = new HashSet<>();
+
+    /**
+     * Creates a DAO for the given directory.
+     * @param directory Path of the directory with the manifest and the shards.
+     */
+    public ShardedFileDAO(String directory) {
+        this.directory = Paths.get(directory);
+        this.manifest = this.directory.resolve(MANIFEST_NAME);
+        this.manifestLocks = FileLockManager.forFile(this.manifest);
+    }
+
+    /**
+     * Creates the sharded directory from a text data file, with one line per record (as written in
+     * {@link StorageMode#REWRITE} mode). Only the first line of every ID is kept.
+     * @param source Path of the text data file.
+     * @param directory Path of the directory to create. Existing shards are replaced.
+     * @throws IOException If the source can't be read or a file can't be written.
+     */
+    public static void split(Path source, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        List<String> departments = new ArrayList<>();
+        Map<Integer, List<String>> shards = new TreeMap<>();
+        Set<Integer> employeeIds = new HashSet<>();
+        Set<Integer> departmentIds = new HashSet<>();
+        try (MappedRecordReader.RecordIterator records = MappedRecordReader.open(source)) {
+            while (records.next()) {
+                MappedRecordReader.Cursor cursor = records.cursor();
+                if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE && employeeIds.add(cursor.getInt(0))) {
+                    Employee employee = cursor.toEmployee();
+                    shards.computeIfAbsent(employee.getDepno(), depno -> new ArrayList<>()).add(RecordFormat.formatEmployee(employee));
+                } else if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT && departmentIds.add(cursor.getInt(0))) {
+                    departments.add(RecordFormat.formatDepartment(cursor.toDepartment()));
+                }
+            }
+        }
+        write(directory.resolve(MANIFEST_NAME), departments);
+        for (Map.Entry<Integer, List<String>> shard : shards.entrySet()) {
+            write(directory.resolve(SHARD_PREFIX + shard.getKey() + SHARD_SUFFIX), shard.getValue());
+        }
+    }
+
+    /**
+     * Reads all employees, one shard after another in order of department ID.
+     * @return List of {@link Employee} objects. If no employees are found, an empty list is returned.
+     */
+    @Override
+    public List<Employee> findAllEmployees() {
+        List<Employee> employees = new ArrayList<>();
+        for (int depno : listShards()) {
+            employees.addAll(readShard(depno, cursor -> true));
+        }
+        return employees;
+    }
+
+    /**
+     * Finds an employee reading the shard the directory points to. The directory is only brought up to date when the
+     * employee is not in that shard.
+     * @param id Employee's ID, expected to be of type {@link Integer}.
+     * @return The {@link Employee} or null if it is not found or an error occurs.
+     */
+    @Override
+    public Employee findEmployeeById(Object id) {
+        if (!(id instanceof Integer)) {
+            return null;
+        }
+        int empId = (Integer) id;
+        Integer hint;
+        synchronized (shardOfEmployee) {
+            hint = shardOfEmployee.get(empId);
+        }
+        if (hint != null) {
+            Employee employee = findInShard(hint, empId);
+            if (employee != null) {
+                return employee;
+            }
+        }
+        Integer depno = locate(empId); // Moved, or written by another DAO or process
+        return depno == null || depno.equals(hint) ? null : findInShard(depno, empId);
+    }
+
+    /**
+     * Adds a new employee at the end of the shard of its department. Employees with an existing ID are rejected.
+     * @param employee The {@link Employee} to add.
+     */
+    @Override
+    public void addEmployee(Employee employee) {
+        addEmployees(List.of(employee));
+    }
+
+    /**
+     * Adds many employees with a single append to every shard. Employees with an existing ID are skipped.
+     * Shards of different departments are written one after another, each under its own lock.
+     * @param employees {@link Employee} objects to add.
+     */
+    @Override
+    public void addEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        Map<Integer, List<Employee>> byShard = new TreeMap<>();
+        refreshDirectory();
+        synchronized (shardOfEmployee) {
+            for (Employee employee : employees) {
+                if (shardOfEmployee.containsKey(employee.getEmpno()) || !pendingIds.add(employee.getEmpno())) {
+                    System.err.println("ERROR: There is already an Employee with ID " + employee.getEmpno());
+                } else {
+                    byShard.computeIfAbsent(employee.getDepno(), depno -> new ArrayList<>()).add(employee);
+                }
+            }
+        }
+        try {
+            for (Map.Entry<Integer, List<Employee>> shard : byShard.entrySet()) {
+                List<String> lines = new ArrayList<>();
+                List<Integer> ids = new ArrayList<>();
+                for (Employee employee : shard.getValue()) {
+                    lines.add(RecordFormat.formatEmployee(employee));
+                    ids.add(employee.getEmpno());
+                }
+                FileLockManager locks = shardLocks(shard.getKey());
+                long before;
+                long after;
+                try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+                    before = locks.getGeneration();
+                    append(shardFile(shard.getKey()), lines);
+                    after = fileLock.commit();
+                }
+                shardWritten(shard.getKey(), before, after, ids, List.of());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (shardOfEmployee) {
+                for (List<Employee> shard : byShard.values()) {
+                    for (Employee employee : shard) {
+                        pendingIds.remove(employee.getEmpno());
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Employee updateEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int empId = (Integer) id;
+        Employee employee = findEmployeeById(empId);
+        if (employee == null) {
+            System.out.println("Employee not found.");
+            return null;
+        }
+        String readVersion = RecordFormat.formatEmployee(employee);
+        String surname;
+        String job;
+        String departmentId;
+        synchronized (scanner) { // The terminal is shared, one interactive update at a time
+            System.out.println("Updating employee with ID: " + empId);
+            System.out.print("Last name (current: " + employee.getName() + "): ");
+            surname = scanner.nextLine();
+            if (surname.isEmpty()) throw new IllegalArgumentException("The last name cannot be empty");
+            RecordFormat.checkText("last name", surname);
+
+            System.out.print("Job (current: " + employee.getPosition() + "): ");
+            job = scanner.nextLine();
+            if (job.isEmpty()) throw new IllegalArgumentException("The job cannot be empty");
+            RecordFormat.checkText("job", job);
+
+            System.out.print("Department ID (current: " + employee.getDepno() + "): ");
+            departmentId = scanner.nextLine();
+            if (departmentId.isEmpty()) throw new IllegalArgumentException("The department ID cannot be empty");
+        }
+        employee.setName(surname);
+        employee.setPosition(job);
+        employee.setDepno(Integer.parseInt(departmentId));
+        // The shards are only locked now, not while the user types
+        try {
+            List<Employee> updated = writeEmployeeChanges(Map.of(empId, employee), readVersion);
+            if (updated == null) {
+                System.err.println("ERROR: The employee was modified by another user, the update was cancelled");
+                return null;
+            }
+            if (updated.isEmpty()) {
+                System.out.println("Employee not found.");
+                return null;
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return null;
+        }
+        System.out.println("The employee was successfully updated in the file.");
+        return employee;
+    }
+
+    @Override
+    public Employee updateEmployee(Employee employee) {
+        List<Employee> updated = updateEmployees(List.of(employee));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
+
+    /**
+     * Updates many employees. Every changed shard is rewritten once for the whole batch; employees whose department
+     * changed are moved to the shard of their new department. Employees whose ID doesn't exist are skipped.
+     * @param employees {@link Employee} objects with the ID of the employees to update and their new values.
+     * @return List of the updated employees. It is empty if an error occurs.
+     */
+    @Override
+    public List<Employee> updateEmployees(Collection<Employee> employees) {
+        employees.forEach(RecordFormat::checkEmployee); // Rejected before anything is written
+        Map<Integer, Employee> changes = new LinkedHashMap<>();
+        for (Employee employee : employees) {
+            changes.remove(employee.getEmpno()); // The last version of an ID keeps its position
+            changes.put(employee.getEmpno(), employee);
+        }
+        try {
+            return writeEmployeeChanges(changes, null);
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    @Override
+    public Employee deleteEmployee(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int empId = (Integer) id;
+        Integer depno = locate(empId);
+        if (depno != null) {
+            FileLockManager locks = shardLocks(depno);
+            try {
+                String removedLine;
+                long before;
+                long after;
+                try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+                    before = locks.getGeneration();
+                    removedLine = RecordRewriter.rewrite(shardFile(depno), RecordFormat.EMPLOYEE_PREFIX + empId + ",", line -> null);
+                    after = removedLine != null ? fileLock.commit() : before;
+                }
+                if (removedLine != null) {
+                    shardWritten(depno, before, after, List.of(), List.of(empId));
+                    System.out.println("Employee has been deleted.");
+                    return RecordFormat.parseEmployee(removedLine.strip());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        System.out.println("Employee not found.");
+        return null;
+    }
+
+    @Override
+    public List<Department> findAllDepartments() {
+        return readManifest(cursor -> true);
+    }
+
+    @Override
+    public Department findDepartmentById(Object id) {
+        if (!(id instanceof Integer)) {
+            return null;
+        }
+        int deptId = (Integer) id;
+        List<Department> departments = readManifest(cursor -> cursor.getInt(0) == deptId);
+        return departments.isEmpty() ? null : departments.get(0);
+    }
+
+    /**
+     * Adds a new department at the end of the manifest. Departments with an existing ID are rejected.
+     * @param department The {@link Department} to add.
+     */
+    @Override
+    public void addDepartment(Department department) {
+        addDepartments(List.of(department));
+    }
+
+    @Override
+    public Department updateDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int deptId = (Integer) id;
+        Department department = findDepartmentById(deptId);
+        if (department == null) {
+            System.out.println("Department not found.");
+            return null;
+        }
+        String readVersion = RecordFormat.formatDepartment(department);
+        String name;
+        String location;
+        synchronized (scanner) { // The terminal is shared, one interactive update at a time
+            System.out.println("Updating department with ID: " + deptId);
+            System.out.print("Name (current: " + department.getName() + "): ");
+            name = scanner.nextLine();
+            if (name.isEmpty()) throw new IllegalArgumentException("The name cannot be empty");
+            RecordFormat.checkText("name", name);
+
+            System.out.print("Location (current: " + department.getLocation() + "): ");
+            location = scanner.nextLine();
+            if (location.isEmpty()) throw new IllegalArgumentException("The location cannot be empty");
+            RecordFormat.checkText("location", location);
+        }
+        department.setName(name);
+        department.setLocation(location);
+        String newLine = RecordFormat.formatDepartment(department);
+        // The manifest is only locked now, not while the user types
+        try (FileLockManager.Lock fileLock = manifestLocks.lockExclusive()) {
+            boolean[] conflict = new boolean[1];
+            String oldLine = RecordRewriter.rewrite(manifest, RecordFormat.DEPARTMENT_PREFIX + deptId + ",", line -> {
+                conflict[0] = !RecordFormat.formatDepartment(RecordFormat.parseDepartment(line.strip())).equals(readVersion);
+                return conflict[0] ? line : newLine; // Returning the current line leaves the file untouched
+            });
+            if (oldLine == null) {
+                System.out.println("Department not found.");
+                return null;
+            }
+            if (conflict[0]) {
+                System.err.println("ERROR: The department was modified by another user, the update was cancelled");
+                return null;
+            }
+            fileLock.commit();
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return null;
+        }
+        System.out.println("The department was successfully updated in the file.");
+        return department;
+    }
+
+    @Override
+    public Department updateDepartment(Department department) {
+        List<Department> updated = updateDepartments(List.of(department));
+        return updated.isEmpty() ? null : updated.get(0);
+    }
+
+    /**
+     * Updates many departments with a single rewrite of the manifest. Departments whose ID doesn't exist are skipped.
+     * @param departments {@link Department} objects with the ID of the departments to update and their new values.
+     * @return List of the updated departments. It is empty if an error occurs.
+     */
+    @Override
+    public List<Department> updateDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        Map<Integer, Department> changes = new LinkedHashMap<>();
+        Map<Integer, String> newLines = new HashMap<>();
+        for (Department department : departments) {
+            changes.remove(department.getDepno()); // The last version of an ID keeps its position
+            changes.put(department.getDepno(), department);
+            newLines.put(department.getDepno(), RecordFormat.formatDepartment(department));
+        }
+        List<Department> updated = new ArrayList<>();
+        if (changes.isEmpty() || !Files.exists(manifest)) {
+            return updated;
+        }
+        try (FileLockManager.Lock fileLock = manifestLocks.lockExclusive()) {
+            Set<Integer> replaced = RecordRewriter.rewriteAll(manifest, MappedRecordReader.RecordType.DEPARTMENT, newLines);
+            if (!replaced.isEmpty()) {
+                fileLock.commit();
+            }
+            for (Department department : changes.values()) {
+                if (replaced.contains(department.getDepno())) {
+                    updated.add(department);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred while writing to the file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        return updated;
+    }
+
+    /**
+     * Deletes a department from the manifest. The shard with its employees is kept, as the other backends keep the
+     * employees of a deleted department.
+     * @param id Department's ID, expected to be of type {@link Integer}.
+     * @return The deleted {@link Department}, or null if it is not found or an error occurs.
+     */
+    @Override
+    public Department deleteDepartment(Object id) {
+        if (!(id instanceof Integer)) {
+            System.out.println("Invalid ID");
+            return null;
+        }
+        int deptId = (Integer) id;
+        if (Files.exists(manifest)) {
+            try (FileLockManager.Lock fileLock = manifestLocks.lockExclusive()) {
+                String removedLine = RecordRewriter.rewrite(manifest, RecordFormat.DEPARTMENT_PREFIX + deptId + ",", line -> null);
+                if (removedLine != null) {
+                    fileLock.commit();
+                    System.out.println("Department has been deleted.");
+                    return RecordFormat.parseDepartment(removedLine.strip());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        System.out.println("Department not found.");
+        return null;
+    }
+
+    /**
+     * Reads the employees of a department, which are the whole shard of the department.
+     * @param idDept Department's ID, expected to be of type {@link Integer}.
+     * @return List of {@link Employee} objects of the department, or null if the ID is not valid.
+     */
+    @Override
+    public List<Employee> findEmployeesByDept(Object idDept) {
+        if (!(idDept instanceof Integer)) {
+            System.out.println("Invalid department ID");
+            return null;
+        }
+        return readShard((Integer) idDept, cursor -> true);
+    }
+
+    /**
+     * Adds many departments with a single append to the manifest. Departments with an existing ID are skipped.
+     * @param departments {@link Department} objects to add.
+     */
+    @Override
+    public void addDepartments(Collection<Department> departments) {
+        departments.forEach(RecordFormat::checkDepartment); // Rejected before anything is written
+        try (FileLockManager.Lock fileLock = manifestLocks.lockExclusive()) {
+            Set<Integer> ids = new HashSet<>();
+            if (Files.exists(manifest)) {
+                MappedRecordReader.scan(manifest, cursor -> {
+                    if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT) {
+                        ids.add(cursor.getInt(0));
+                    }
+                    return true;
+                });
+            }
+            List<String> lines = new ArrayList<>();
+            for (Department department : departments) {
+                if (ids.add(department.getDepno())) {
+                    lines.add(RecordFormat.formatDepartment(department));
+                } else {
+                    System.err.println("ERROR: There is already a Department with ID " + department.getDepno());
+                }
+            }
+            if (!lines.isEmpty()) {
+                append(manifest, lines);
+                fileLock.commit();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams the employees. Shards are read one at a time while the stream is consumed, so only one shard is in memory.
+     * @return Lazy {@link Stream} of {@link Employee} objects.
+     */
+    @Override
+    public Stream<Employee> streamEmployees() {
+        return listShards().stream().flatMap(depno -> readShard(depno, cursor -> true).stream());
+    }
+
+    @Override
+    public Stream<Department> streamDepartments() {
+        return findAllDepartments().stream();
+    }
+
+    /**
+     * Finds the employees that meet a filter. Only the shards of the departments allowed by the filter are read, and
+     * a filter on a single employee ID reads the shard the directory points to.
+     * @param filter Employee {@link RecordFilter}.
+     * @return List of matching {@link Employee} objects. If none match or an error occurs, an empty list is returned.
+     */
+    @Override
+    public List<Employee> findEmployees(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.EMPLOYEE);
+        List<Employee> employees = new ArrayList<>();
+        int[] ids = filter.bounds(RecordFilter.Field.EMPLOYEE_ID);
+        if (ids != null && ids[0] == ids[1]) {
+            Employee employee = findEmployeeById(ids[0]);
+            if (employee != null && filter.matches(employee)) {
+                employees.add(employee);
+            }
+            return employees;
+        }
+        int[] departments = filter.bounds(RecordFilter.Field.EMPLOYEE_DEPNO);
+        for (int depno : listShards()) {
+            if (departments == null || (depno >= departments[0] && depno <= departments[1])) {
+                employees.addAll(readShard(depno, filter::matches));
+            }
+        }
+        return employees;
+    }
+
+    @Override
+    public List<Department> findDepartments(RecordFilter filter) {
+        filter.checkType(MappedRecordReader.RecordType.DEPARTMENT);
+        return readManifest(filter::matches);
+    }
+
+    /**
+     * Gets the generation of the whole directory: the sum of the generations of the manifest and of every shard, so
+     * it increases with every write of any of them.
+     * @return Current generation, or -1 if a lock file can't be read.
+     */
+    @Override
+    public long getGeneration() {
+        try {
+            long generation = manifestLocks.getGeneration();
+            for (int depno : listShards()) {
+                generation += shardLocks(depno).getGeneration();
+            }
+            return generation;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean checkFileExists() {
+        connectionFlag = Files.isDirectory(directory);
+        if (connectionFlag) {
+            System.out.println("The sharded database directory " + directory.getFileName() + " exists.");
+        } else {
+            System.out.println("The directory does not exist, connectionFlag is set to false.");
+        }
+        return connectionFlag;
+    }
+
+    @Override
+    public void closeConnection() {
+        // Every operation opens and closes the files, there is nothing left open
+        connectionFlag = false;
+    }
+
+    /**
+     * Applies a batch of employee changes. The old and new shards of the employees are locked in order of department
+     * ID, so two batches never wait for each other in a cycle. Employees that stay in their department are replaced
+     * with one {@link RecordRewriter#rewriteAll} per shard; the rest are removed from their old shard and appended to
+     * the new one.
+     * @param changes New versions of the employees by their ID.
+     * @param readVersion For a single change, the version of the employee the user edited: the change is cancelled
+     *                    if the stored version is different. Null to skip the check.
+     * @return List of the updated employees, or null if the change was cancelled.
+     * @throws IOException If a shard can't be read or written.
+     */
+    private List<Employee> writeEmployeeChanges(Map<Integer, Employee> changes, String readVersion) throws IOException {
+        Map<Integer, Integer> oldShards = new HashMap<>();
+        refreshDirectory();
+        synchronized (shardOfEmployee) {
+            for (int id : changes.keySet()) {
+                Integer depno = shardOfEmployee.get(id);
+                if (depno != null) {
+                    oldShards.put(id, depno);
+                }
+            }
+        }
+        List<Employee> updated = new ArrayList<>();
+        if (oldShards.isEmpty()) {
+            return updated;
+        }
+        SortedSet<Integer> touched = new TreeSet<>(oldShards.values());
+        for (int id : oldShards.keySet()) {
+            touched.add(changes.get(id).getDepno());
+        }
+        Map<Integer, FileLockManager.Lock> fileLocks = new TreeMap<>();
+        Map<Integer, long[]> generations = new TreeMap<>(); // Generation before and after the write of every locked shard
+        Set<Integer> written = new TreeSet<>();
+        Map<Integer, List<Integer>> added = new HashMap<>();
+        Map<Integer, List<Integer>> removed = new HashMap<>();
+        try {
+            for (int depno : touched) {
+                FileLockManager locks = shardLocks(depno);
+                fileLocks.put(depno, locks.lockExclusive());
+                generations.put(depno, new long[]{locks.getGeneration(), -1});
+            }
+            Map<Integer, Map<Integer, String>> stayers = new TreeMap<>();
+            Map<Integer, List<Employee>> movers = new TreeMap<>();
+            for (Map.Entry<Integer, Integer> old : oldShards.entrySet()) {
+                Employee employee = changes.get(old.getKey());
+                if (employee.getDepno() == old.getValue()) {
+                    stayers.computeIfAbsent(old.getValue(), depno -> new HashMap<>()).put(old.getKey(), RecordFormat.formatEmployee(employee));
+                } else {
+                    movers.computeIfAbsent(old.getValue(), depno -> new ArrayList<>()).add(employee);
+                }
+            }
+            boolean[] conflict = new boolean[1];
+            Predicate<String> expected = line -> { // True if the stored line can be changed
+                conflict[0] = readVersion != null && !RecordFormat.formatEmployee(RecordFormat.parseEmployee(line.strip())).equals(readVersion);
+                return !conflict[0];
+            };
+            Set<Integer> done = new HashSet<>();
+            for (Map.Entry<Integer, Map<Integer, String>> shard : stayers.entrySet()) {
+                Set<Integer> replaced;
+                if (readVersion != null) { // Single interactive change, checked against the version the user edited
+                    int id = shard.getValue().keySet().iterator().next();
+                    String newLine = shard.getValue().get(id);
+                    String oldLine = RecordRewriter.rewrite(shardFile(shard.getKey()), RecordFormat.EMPLOYEE_PREFIX + id + ",",
+                            line -> expected.test(line) ? newLine : line);
+                    if (conflict[0]) {
+                        return null;
+                    }
+                    replaced = oldLine != null ? Set.of(id) : Set.of();
+                } else {
+                    replaced = RecordRewriter.rewriteAll(shardFile(shard.getKey()), MappedRecordReader.RecordType.EMPLOYEE, shard.getValue());
+                }
+                done.addAll(replaced);
+                if (!replaced.isEmpty()) {
+                    written.add(shard.getKey());
+                }
+            }
+            Map<Integer, List<String>> appends = new TreeMap<>();
+            for (Map.Entry<Integer, List<Employee>> shard : movers.entrySet()) {
+                for (Employee employee : shard.getValue()) {
+                    String oldLine = RecordRewriter.rewrite(shardFile(shard.getKey()), RecordFormat.EMPLOYEE_PREFIX + employee.getEmpno() + ",",
+                            line -> expected.test(line) ? null : line);
+                    if (conflict[0]) {
+                        return null;
+                    }
+                    if (oldLine != null) {
+                        written.add(shard.getKey());
+                        removed.computeIfAbsent(shard.getKey(), depno -> new ArrayList<>()).add(employee.getEmpno());
+                        appends.computeIfAbsent(employee.getDepno(), depno -> new ArrayList<>()).add(RecordFormat.formatEmployee(employee));
+                        added.computeIfAbsent(employee.getDepno(), depno -> new ArrayList<>()).add(employee.getEmpno());
+                        done.add(employee.getEmpno());
+                    }
+                }
+            }
+            for (Map.Entry<Integer, List<String>> shard : appends.entrySet()) {
+                append(shardFile(shard.getKey()), shard.getValue());
+                written.add(shard.getKey());
+            }
+            for (int depno : written) {
+                generations.get(depno)[1] = fileLocks.get(depno).commit();
+            }
+            for (Employee employee : changes.values()) {
+                if (done.contains(employee.getEmpno())) {
+                    updated.add(employee);
+                }
+            }
+        } finally {
+            for (FileLockManager.Lock fileLock : fileLocks.values()) {
+                fileLock.close();
+            }
+        }
+        // The directory is only changed after releasing the shard locks
+        for (int depno : written) {
+            shardWritten(depno, generations.get(depno)[0], generations.get(depno)[1],
+                    added.getOrDefault(depno, List.of()), removed.getOrDefault(depno, List.of()));
+        }
+        return updated;
+    }
+
+    /**
+     * Finds the shard of an employee, bringing the directory up to date first.
+     * @param id Employee's ID.
+     * @return Department ID of the shard, or null if no shard has the employee.
+     */
+    private Integer locate(int id) {
+        refreshDirectory();
+        synchronized (shardOfEmployee) {
+            return shardOfEmployee.get(id);
+        }
+    }
+
+    /**
+     * Reads again the IDs of the shards whose generation changed since they were read into the directory, and forgets
+     * the shards that don't exist anymore. The generations are read without any lock and only the changed shards are
+     * locked and scanned, without holding the monitor of {@link #shardOfEmployee}, so a refresh doesn't block the
+     * lookups and writes of other threads. Must be called without holding that monitor.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private void refreshDirectory() {
+        Set<Integer> shards = listShards();
+        Map<Integer, Long> generations = new HashMap<>();
+        for (int depno : shards) {
+            try {
+                // A value read while a writer changes it only causes an unneeded scan, the scan reads it again locked
+                generations.put(depno, shardLocks(depno).getGeneration());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Map<Integer, ShardEntry> stale = new TreeMap<>(); // Changed shards and the entry they had, null for new shards
+        synchronized (shardOfEmployee) {
+            indexedShards.keySet().removeIf(depno -> !shards.contains(depno));
+            shardOfEmployee.values().removeIf(depno -> !shards.contains(depno));
+            for (Map.Entry<Integer, Long> shard : generations.entrySet()) {
+                ShardEntry entry = indexedShards.get(shard.getKey());
+                if (entry == null || entry.generation != shard.getValue()) {
+                    stale.put(shard.getKey(), entry);
+                }
+            }
+        }
+        for (Map.Entry<Integer, ShardEntry> shard : stale.entrySet()) {
+            int depno = shard.getKey();
+            FileLockManager locks = shardLocks(depno);
+            Set<Integer> ids = new HashSet<>();
+            long generation;
+            try (FileLockManager.Lock ignored = locks.lockShared()) {
+                generation = locks.getGeneration();
+                MappedRecordReader.scan(shardFile(depno), cursor -> {
+                    if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE) {
+                        ids.add(cursor.getInt(0));
+                    }
+                    return true;
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            synchronized (shardOfEmployee) {
+                ShardEntry entry = indexedShards.get(depno);
+                if (entry != shard.getValue() || (entry != null && entry.generation >= generation)) {
+                    continue; // Updated meanwhile by another refresh or by a write of this DAO
+                }
+                if (entry != null) {
+                    for (int id : entry.ids) {
+                        shardOfEmployee.remove(id, depno);
+                    }
+                }
+                for (int id : ids) {
+                    shardOfEmployee.put(id, depno);
+                }
+                indexedShards.put(depno, new ShardEntry(ids, generation));
+            }
+        }
+    }
+
+    /**
+     * Records a write of this DAO in the directory. If the shard was written by someone else since it was read into
+     * the directory, nothing is changed and the shard is read again by the next refresh.
+     * @param depno Department ID of the shard.
+     * @param before Generation of the shard before the write.
+     * @param after Generation committed by the write.
+     * @param added IDs of the employees added to the shard.
+     * @param removed IDs of the employees removed from the shard.
+     */
+    private void shardWritten(int depno, long before, long after, Collection<Integer> added, Collection<Integer> removed) {
+        synchronized (shardOfEmployee) {
+            ShardEntry entry = indexedShards.get(depno);
+            if (entry == null || entry.generation != before) {
+                return;
+            }
+            entry.generation = after;
+            for (int id : removed) {
+                entry.ids.remove(id);
+                shardOfEmployee.remove(id, depno);
+            }
+            for (int id : added) {
+                entry.ids.add(id);
+                shardOfEmployee.put(id, depno);
+            }
+        }
+    }
+
+    /**
+     * Reads the employees of a shard that meet a condition, holding the shared lock of the shard.
+     * @param depno Department ID of the shard.
+     * @param condition Condition checked on the record line before the employee is created.
+     * @return List of {@link Employee} objects. It is empty if the shard doesn't exist or an error occurs.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private List<Employee> readShard(int depno, Predicate<MappedRecordReader.Cursor> condition) {
+        List<Employee> employees = new ArrayList<>();
+        Path file = shardFile(depno);
+        if (!Files.exists(file)) {
+            return employees;
+        }
+        try (FileLockManager.Lock fileLock = shardLocks(depno).lockShared()) {
+            MappedRecordReader.scan(file, cursor -> {
+                if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE && condition.test(cursor)) {
+                    employees.add(cursor.toEmployee());
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return employees;
+    }
+
+    /**
+     * Finds an employee in a shard.
+     * @param depno Department ID of the shard.
+     * @param id Employee's ID.
+     * @return The {@link Employee}, or null if it is not in the shard or an error occurs.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private Employee findInShard(int depno, int id) {
+        Path file = shardFile(depno);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Employee[] found = new Employee[1];
+        try (FileLockManager.Lock fileLock = shardLocks(depno).lockShared()) {
+            MappedRecordReader.scan(file, cursor -> {
+                if (cursor.getType() == MappedRecordReader.RecordType.EMPLOYEE && cursor.getInt(0) == id) {
+                    found[0] = cursor.toEmployee();
+                    return false; // IDs are unique, the rest of the shard is not read
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return found[0];
+    }
+
+    /**
+     * Reads the departments of the manifest that meet a condition, holding the shared lock of the manifest.
+     * @param condition Condition checked on the record line before the department is created.
+     * @return List of {@link Department} objects. It is empty if the manifest doesn't exist or an error occurs.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    private List<Department> readManifest(Predicate<MappedRecordReader.Cursor> condition) {
+        List<Department> departments = new ArrayList<>();
+        if (!Files.exists(manifest)) {
+            return departments;
+        }
+        try (FileLockManager.Lock fileLock = manifestLocks.lockShared()) {
+            MappedRecordReader.scan(manifest, cursor -> {
+                if (cursor.getType() == MappedRecordReader.RecordType.DEPARTMENT && condition.test(cursor)) {
+                    departments.add(cursor.toDepartment());
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return departments;
+    }
+
+    /**
+     * Lists the shards of the directory.
+     * @return Department IDs of the shards, in ascending order. It is empty if the directory can't be read.
+     */
+    private SortedSet<Integer> listShards() {
+        SortedSet<Integer> shards = new TreeSet<>();
+        if (!Files.isDirectory(directory)) {
+            return shards;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SHARD_PREFIX) && name.endsWith(SHARD_SUFFIX))
+                    .map(name -> name.substring(SHARD_PREFIX.length(), name.length() - SHARD_SUFFIX.length()))
+                    .filter(depno -> depno.matches("-?\\d+"))
+                    .forEach(depno -> shards.add(Integer.parseInt(depno)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return shards;
+    }
+
+    /**
+     * Gets the path of the shard of a department.
+     * @param depno Department ID.
+     * @return Path of the shard file. It may not exist yet.
+     */
+    private Path shardFile(int depno) {
+        return directory.resolve(SHARD_PREFIX + depno + SHARD_SUFFIX);
+    }
+
+    /**
+     * Gets the cross-process locks of the shard of a department.
+     * @param depno Department ID.
+     * @return {@link FileLockManager} of the shard file.
+     */
+    private FileLockManager shardLocks(int depno) {
+        return FileLockManager.forFile(shardFile(depno));
+    }
+
+    /**
+     * Appends record lines at the end of a file, creating it if it doesn't exist.
+     * @param file Path of the file.
+     * @param lines Record lines (without line separator).
+     * @throws IOException If the file can't be written.
+     */
+    private static void append(Path file, List<String> lines) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String line : lines) {
+                out.write(line);
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes a whole file through a temporary file that is moved over it, so readers only see the old or the new file.
+     * @param file Path of the file.
+     * @param lines Record lines (without line separator).
+     * @throws IOException If the file can't be written.
+     */
+    private static void write(Path file, List<String> lines) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + RecordRewriter.TEMP_SUFFIX);
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Employee IDs of a shard and the generation of the shard they were read at.
+     */
+    private static final class ShardEntry {
+        /**
+         * IDs of the employees of the shard.
+         */
+        private final Set<Integer> ids;
+        /**
+         * Generation of the shard the IDs are valid for.
+         */
+        private long generation;
+
+        private ShardEntry(Set<Integer> ids, long generation) {
+            this.ids = ids;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cesur.accesodatos.file;
+
+/**
+ * Ways {@link FileDAO} can store changes in the data file.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public enum StorageMode {
+    /**
+     * Default mode. Updates and deletions rewrite the whole file, so it only contains one line per record.
+     */
+    REWRITE,
+    /**
+     * Log mode. Updates append the new version of the record and deletions append a tombstone line
+     * ("tombstone(employee,id)" or "tombstone(department,id)"). The last line of a record wins.
+     * Old versions are removed later by a background compaction. This mode always uses the in-memory {@link FileIndex}.
+     */
+    APPEND_LOG,
+    /**
+     * Journaled mode. Every change is appended to a {@link WriteAheadJournal} ("empresa.txt.wal") and forced to disk
+     * before the operation returns, with one force shared by concurrent writers (group commit). The data file is
+     * brought up to date by checkpoints in the background and when the mode is left or the DAO is closed.
+     * Like {@link #APPEND_LOG}, this mode always uses the in-memory {@link FileIndex}. Every process that shares the
+     * data file should use this mode, because the other modes don't read the journal.
+     */
+    JOURNALED
+}
@@ -0,0 +1,235 @@
+package cesur.accesodatos.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Dictionary encoding of a text column: every distinct value is stored once and the column keeps an int code instead
+ * of a reference per row. Codes are given in order of appearance and never change, so a column that was copied keeps
+ * pointing to the right values while the dictionary grows.
+ *
+ * Values are kept by their UTF-8 bytes too, so a field of the data file can be encoded straight from the bytes of the
+ * line (see {@link MappedRecordReader.Cursor#getCode(int, StringDictionary)}): a value that is already in the
+ * dictionary costs no String at all, and every occurrence of a value shares the same String object.
+ *
+ * Not thread-safe: {@link FileIndex} only adds values while holding exclusive access, and readers take a
+ * {@link #snapshot()} of the values.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class StringDictionary {
+    /**
+     * Values by their code.
+     */
+    private String[] values = new String[16];
+    /**
+     * UTF-8 bytes and hash of the values by their code.
+     */
+    private byte[][] bytes = new byte[16][];
+    private int[] hashes = new int[16];
+    /**
+     * Number of distinct values.
+     */
+    private int size;
+    /**
+     * Maximum number of distinct values, new values are not added once it is reached.
+     */
+    private final int maxSize;
+    /**
+     * Open-addressing hash of the values with linear probing: code plus one of every slot, 0 for an empty slot.
+     */
+    private int[] slots = new int[32];
+
+    /**
+     * Creates a dictionary without a limit of values.
+     */
+    public StringDictionary() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a dictionary that stops adding values when it has a number of them. Used for columns that are expected
+     * to repeat a few values, so an unexpected high number of distinct values doesn't make the dictionary grow forever.
+     * @param maxSize Maximum number of distinct values.
+     */
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the code of a value, adding it to the dictionary if it is new.
+     * @param value Text to encode.
+     * @return Code of the value, or -1 if it is new and the dictionary is full.
+     */
+    public int encode(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        return encode(ByteBuffer.wrap(utf8), 0, utf8.length, value);
+    }
+
+    /**
+     * Gets the code of a UTF-8 value stored in a buffer, adding it to the dictionary if it is new. The bytes are only
+     * decoded when the value is new.
+     * @param buffer Buffer with the value.
+     * @param from Position of the first byte of the value.
+     * @param to Position after the last byte of the value.
+     * @return Code of the value, or -1 if it is new and the dictionary is full.
+     */
+    public int encode(ByteBuffer buffer, int from, int to) {
+        return encode(buffer, from, to, null);
+    }
+
+    /**
+     * Gets the shared String of a value, adding it to the dictionary if it is new.
+     * @param value Text to intern.
+     * @return The String stored in the dictionary for that value, or the value itself if the dictionary is full.
+     */
+    public String intern(String value) {
+        int code = encode(value);
+        return code < 0 ? value : values[code];
+    }
+
+    /**
+     * Gets the code of a value without adding it to the dictionary.
+     * @param value Text to find.
+     * @return Code of the value, or -1 if it is not in the dictionary.
+     */
+    public int find(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(utf8);
+        return slots[slot(buffer, 0, utf8.length, hash(buffer, 0, utf8.length))] - 1;
+    }
+
+    /**
+     * Gets the value of a code.
+     * @param code Code returned by {@link #encode(String)}.
+     * @return The value.
+     */
+    public String decode(int code) {
+        return values[code];
+    }
+
+    /**
+     * Gets the values of the dictionary as they are now. New values are added to a new array when the current one is
+     * full, so the returned array can be read while the dictionary grows.
+     * @return Array of values by their code. It may be longer than the number of values.
+     */
+    public String[] snapshot() {
+        return values;
+    }
+
+    /**
+     * Gets the number of distinct values.
+     * @return Number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the code of a value, adding it if it is new.
+     * @param buffer Buffer with the UTF-8 bytes of the value.
+     * @param from Position of the first byte of the value.
+     * @param to Position after the last byte of the value.
+     * @param value The value as a String if the caller already has it, null to decode the bytes when the value is new.
+     * @return Code of the value, or -1 if it is new and the dictionary is full.
+     */
+    private int encode(ByteBuffer buffer, int from, int to, String value) {
+        int hash = hash(buffer, from, to);
+        int i = slot(buffer, from, to, hash);
+        if (slots[i] != 0) {
+            return slots[i] - 1;
+        }
+        if (size == maxSize) {
+            return -1;
+        }
+        byte[] utf8 = new byte[to - from];
+        buffer.get(from, utf8);
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2); // Old arrays stay valid for the codes they have
+            bytes = Arrays.copyOf(bytes, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        values[size] = value != null ? value : new String(utf8, StandardCharsets.UTF_8);
+        bytes[size] = utf8;
+        hashes[size] = hash;
+        slots[i] = size + 1;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Finds the slot of a value.
+     * @param buffer Buffer with the UTF-8 bytes of the value.
+     * @param from Position of the first byte of the value.
+     * @param to Position after the last byte of the value.
+     * @param hash Hash of the bytes.
+     * @return Slot that has the value, or the empty slot where it would be added.
+     */
+    private int slot(ByteBuffer buffer, int from, int to, int hash) {
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != 0) {
+            int code = slots[i] - 1;
+            if (hashes[code] == hash && equal(bytes[code], buffer, from, to)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Doubles the number of slots of the hash.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int code = 0; code < size; code++) {
+            int i = hashes[code] & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = code + 1;
+        }
+    }
+
+    /**
+     * Hashes the bytes of a value.
+     * @param buffer Buffer with the value.
+     * @param from Position of the first byte.
+     * @param to Position after the last byte.
+     * @return Hash of the bytes.
+     */
+    private static int hash(ByteBuffer buffer, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + buffer.get(i);
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Compares the stored bytes of a value with the bytes of a buffer.
+     * @param stored Bytes of a value of the dictionary.
+     * @param buffer Buffer with the other value.
+     * @param from Position of the first byte of the other value.
+     * @param to Position after the last byte of the other value.
+     * @return True if both values have the same bytes.
+     */
+    private static boolean equal(byte[] stored, ByteBuffer buffer, int from, int to) {
+        if (stored.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < stored.length; i++) {
+            if (stored[i] != buffer.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,383 @@
+package cesur.accesodatos.file;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a data file, used in {@link StorageMode#JOURNALED} mode.
+ * Every change is appended to a sidecar file ("empresa.txt.wal") as one entry with the record or tombstone lines of the
+ * change, and it is durable once the journal is forced to disk. The data file itself is only rewritten by checkpoints,
+ * which apply the journal to it and empty the journal.
+ *
+ * Entries are framed as [payload length (int)][sequence number (long)][CRC32 of the payload (int)][UTF-8 payload], so a
+ * partially written entry (the process died while appending) is detected and ignored. Sequence numbers are the
+ * generation (see {@link FileLockManager}) of the write that appended the entry, so they never decrease across
+ * processes; reading stops at the first entry with a lower number, which can only be a leftover of a checkpoint that
+ * was interrupted while moving the journal tail.
+ *
+ * Group commit: {@link #append(long, List)} only writes the entry, while {@link #sync(long)} is called after the writer
+ * released its locks. The first waiting writer forces the journal and every writer that appended before the force
+ * started is released by it, so concurrent writers share one {@link FileChannel#force(boolean)}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+public class WriteAheadJournal implements Closeable {
+    /**
+     * JOURNAL_SUFFIX -> Suffix added to the data file name to get the journal file name.
+     */
+    static final String JOURNAL_SUFFIX = ".wal";
+    /**
+     * HEADER_SIZE -> Bytes of the header of every entry (length, sequence number and checksum).
+     */
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Path of the data file.
+     */
+    private final Path dataFile;
+    /**
+     * Path of the journal file.
+     */
+    private final Path journalFile;
+    /**
+     * Channel of the journal file.
+     */
+    private final FileChannel channel;
+    /**
+     * Flag indicating if the end of the journal was already checked for a partially written entry.
+     */
+    private boolean validated;
+    /**
+     * Bytes appended by this process since the journal was opened. Used as ticket of the group commit, so tickets keep
+     * growing when a checkpoint empties the file.
+     */
+    private long appended;
+    /**
+     * Appended bytes that are known to be on disk.
+     */
+    private long durable;
+    /**
+     * Flag indicating if a thread is forcing the journal.
+     */
+    private boolean syncing;
+    /**
+     * Number of times the journal was forced to disk.
+     */
+    private long syncCount;
+
+    /**
+     * Opens (and creates) the journal of a data file.
+     * @param dataFile Path of the data file.
+     * @throws IOException If the journal can't be opened.
+     */
+    public WriteAheadJournal(Path dataFile) throws IOException {
+        this.dataFile = dataFile;
+        this.journalFile = journalPath(dataFile);
+        this.channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Gets the path of the journal of a data file.
+     * @param dataFile Path of the data file.
+     * @return Path of the journal file.
+     */
+    public static Path journalPath(Path dataFile) {
+        return dataFile.resolveSibling(dataFile.getFileName() + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Appends one entry with the lines of a change. The entry is written but not forced to disk, the writer must call
+     * {@link #sync(long)} with the returned ticket once it released its locks.
+     * Must be called while holding the exclusive file lock, so entries of different processes don't overlap.
+     * @param sequence Sequence number of the entry, the generation the write will commit.
+     * @param lines Record or tombstone lines of the change (without line separators).
+     * @return Ticket to wait for with {@link #sync(long)}.
+     * @throws IOException If the journal can't be written.
+     */
+    public synchronized long append(long sequence, List<String> lines) throws IOException {
+        if (!validated) {
+            channel.truncate(validEnd(channel.size())); // Drop what a crashed process left half-written
+            validated = true;
+        }
+        byte[] payload = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer entry = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        entry.putInt(payload.length).putLong(sequence).putInt((int) crc.getValue()).put(payload).flip();
+        long position = channel.size();
+        while (entry.hasRemaining()) {
+            position += channel.write(entry, position);
+        }
+        appended += HEADER_SIZE + payload.length;
+        return appended;
+    }
+
+    /**
+     * Waits until the entries appended up to a ticket are on disk (group commit). If no thread is forcing the journal,
+     * the calling thread forces it for everything appended so far; otherwise it waits for the running force and checks
+     * again, so a burst of writers needs only one or two forces.
+     * @param ticket Ticket returned by {@link #append(long, List)}.
+     * @throws IOException If the journal can't be forced.
+     */
+    public void sync(long ticket) throws IOException {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (syncing && durable < ticket) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the journal to be forced", e);
+                    }
+                }
+                if (durable >= ticket) {
+                    return;
+                }
+                syncing = true;
+                target = appended; // Everything appended until now is covered by this force
+            }
+            boolean forced = false;
+            try {
+                channel.force(false);
+                forced = true;
+            } finally {
+                synchronized (this) {
+                    syncing = false;
+                    if (forced) {
+                        durable = Math.max(durable, target);
+                        syncCount++;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the journal file.
+     * @return Size in bytes.
+     * @throws IOException If the size can't be read.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Gets the number of times the journal was forced to disk. With group commit it is lower than the number of writes.
+     * @return Number of forces.
+     */
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * Reads the lines of every valid entry of the journal, in order. Must be called while holding a file lock.
+     * @param action Consumer of every line.
+     * @return Number of read entries.
+     * @throws IOException If the journal can't be read.
+     */
+    public long replay(Consumer<String> action) throws IOException {
+        return replay(channel.size(), action)[0];
+    }
+
+    /**
+     * Reads the lines of the valid entries in the first bytes of the journal.
+     * @param limit Number of bytes to read.
+     * @param action Consumer of every line.
+     * @return Array with the number of read entries and the position where the valid entries end.
+     * @throws IOException If the journal can't be read.
+     */
+    private long[] replay(long limit, Consumer<String> action) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long entries = 0;
+        long lastSequence = Long.MIN_VALUE;
+        while (position + HEADER_SIZE <= limit) {
+            header.clear();
+            readFully(header, position);
+            int length = header.getInt(0);
+            long sequence = header.getLong(Integer.BYTES);
+            int checksum = header.getInt(Integer.BYTES + Long.BYTES);
+            if (length < 0 || position + HEADER_SIZE + length > limit || sequence < lastSequence) {
+                break; // Half-written entry or leftover of an interrupted checkpoint
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            for (String line : new String(payload.array(), StandardCharsets.UTF_8).split("\n")) {
+                action.accept(line);
+            }
+            lastSequence = sequence;
+            position += HEADER_SIZE + length;
+            entries++;
+        }
+        return new long[]{entries, position};
+    }
+
+    /**
+     * Gets the position where the valid entries of the journal end.
+     * @param limit Number of bytes to check.
+     * @return Position after the last valid entry.
+     * @throws IOException If the journal can't be read.
+     */
+    private long validEnd(long limit) throws IOException {
+        return replay(limit, line -> { })[1];
+    }
+
+    /**
+     * Applies the journal to the data file and empties it.
+     * The journal is read up to its size when the checkpoint starts and the data file is rewritten into a temporary file
+     * without blocking writers; only the final step (replacing the data file and removing the applied entries from the
+     * journal) is done while holding the exclusive file lock. Entries appended in the meantime stay in the journal.
+     * Applying an entry twice gives the same result, so a crash at any point loses nothing.
+     * @param locks {@link FileLockManager} of the data file.
+     * @param committed Called with the new generation while the exclusive lock is still held, or null.
+     * @return Number of applied entries, or 0 if the data file was replaced by another process in the meantime.
+     * @throws IOException If the files can't be read or written.
+     */
+    @SuppressWarnings("try") // The lock is only held while the body runs, it is never referenced
+    public long checkpoint(FileLockManager locks, LongConsumer committed) throws IOException {
+        long snapshotSize;
+        Object snapshotFile;
+        try (FileLockManager.Lock fileLock = locks.lockShared()) {
+            snapshotSize = channel.size();
+            snapshotFile = fileState(dataFile);
+        }
+        if (snapshotSize == 0) {
+            return 0;
+        }
+
+        // Last version of every record changed by the journal, in journal order
+        Map<String, String> changes = new LinkedHashMap<>();
+        long[] read = replay(snapshotSize, line -> changes.put(RecordFormat.recordKey(line), line));
+
+        // Rewrite the data file with the changes: updated records keep their place, new ones go to the end
+        Path temp = dataFile.resolveSibling(dataFile.getFileName() + ".checkpoint");
+        String separator = RecordRewriter.lineSeparator(dataFile); // The rewritten file keeps its line separator
+        try (BufferedReader reader = Files.newBufferedReader(dataFile, StandardCharsets.UTF_8);
+             BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String key = RecordFormat.recordKey(line);
+                String change = key == null ? null : changes.remove(key);
+                if (change != null) {
+                    line = change;
+                }
+                if (!line.startsWith(RecordFormat.TOMBSTONE_PREFIX)) {
+                    out.write(line);
+                    out.write(separator);
+                }
+            }
+            for (String change : changes.values()) {
+                if (!change.startsWith(RecordFormat.TOMBSTONE_PREFIX)) {
+                    out.write(change);
+                    out.write(separator);
+                }
+            }
+        }
+        try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            written.force(true); // The journal is only emptied once the new data file is on disk
+        }
+
+        // Final step: replace the data file and keep only the entries appended since the snapshot
+        try (FileLockManager.Lock fileLock = locks.lockExclusive()) {
+            if (!Objects.equals(fileState(dataFile), snapshotFile)) {
+                Files.deleteIfExists(temp); // Another process checkpointed the file, its journal is not ours anymore
+                return 0;
+            }
+            Files.move(temp, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                removeHead(read[1]);
+                durable = appended; // What is left of the journal was forced by removeHead
+            }
+            long generation = fileLock.commit();
+            if (committed != null) {
+                committed.accept(generation);
+            }
+        }
+        return read[0];
+    }
+
+    /**
+     * Removes the first bytes of the journal, moving the rest to the beginning. The journal is changed in place,
+     * because other processes keep it open.
+     * @param length Number of bytes to remove.
+     * @throws IOException If the journal can't be written.
+     */
+    private void removeHead(long length) throws IOException {
+        long size = channel.size();
+        long tail = size - length;
+        if (tail > 0) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(tail, BatchAppender.BUFFER_SIZE));
+            for (long done = 0; done < tail; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), tail - done));
+                readFully(buffer, length + done);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    done += channel.write(buffer, done);
+                }
+            }
+        }
+        channel.truncate(Math.max(tail, 0));
+        channel.force(false);
+        validated = true;
+    }
+
+    /**
+     * Reads bytes of the journal until the buffer is full.
+     * @param buffer Buffer to fill.
+     * @param position Position of the journal to read from.
+     * @throws IOException If the journal ends before the buffer is full.
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of the journal " + journalFile);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Gets the identity of the data file (file key, size and modification time), used to know if it was replaced.
+     * @param file Path of the data file.
+     * @return Comparable state of the file.
+     * @throws IOException If the attributes can't be read.
+     */
+    private static Object fileState(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return List.of(String.valueOf(attributes.fileKey()), attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Closes the journal file. Pending entries stay in it until the next checkpoint.
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,225 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Contention test of {@link FileDAO}: many threads add, update, delete and read the records of one shared DAO at the
+ * same time, and the final records must be exactly the ones expected, so no change is lost or brought back.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class FileDAOConcurrencyTest {
+    /**
+     * INITIAL_EMPLOYEES -> Employees in the data file before the threads start (IDs 1 to INITIAL_EMPLOYEES).
+     */
+    static final int INITIAL_EMPLOYEES = 200;
+    /**
+     * ADDING_THREADS -> Threads that add new employees.
+     */
+    static final int ADDING_THREADS = 4;
+    /**
+     * ADDS_PER_THREAD -> Employees added by every adding thread.
+     */
+    static final int ADDS_PER_THREAD = 50;
+    /**
+     * FIRST_ADDED_ID -> ID of the first added employee, every adding thread uses its own range from there.
+     */
+    static final int FIRST_ADDED_ID = 10_000;
+
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+
+    @Test
+    void concurrentChangesAreNotLostInRewriteMode() throws Exception {
+        assertNoLostUpdates(StorageMode.REWRITE, false);
+    }
+
+    @Test
+    void concurrentChangesAreNotLostInRewriteModeWithCache() throws Exception {
+        assertNoLostUpdates(StorageMode.REWRITE, true);
+    }
+
+    @Test
+    void concurrentChangesAreNotLostInAppendLogMode() throws Exception {
+        assertNoLostUpdates(StorageMode.APPEND_LOG, true);
+    }
+
+    @Test
+    void concurrentChangesAreNotLostInJournaledMode() throws Exception {
+        assertNoLostUpdates(StorageMode.JOURNALED, true);
+    }
+
+    @Test
+    void openStreamDoesNotBlockOtherWriters() throws Exception {
+        FileDAO dao = new FileDAO(createDataFile().toString());
+        Stream<Employee> stream = dao.streamEmployees();
+        Iterator<Employee> employees = stream.iterator();
+        assertEquals(1, employees.next().getEmpno()); // Partly consumed and left open
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> dao.addEmployee(new Employee(FIRST_ADDED_ID, "Added", "Job", 1))).get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, employees.next().getEmpno()); // Still reads the file as it was when it was opened
+        stream.close();
+        assertNotNull(dao.findEmployeeById(FIRST_ADDED_ID));
+        dao.closeConnection();
+    }
+
+    @Test
+    void streamConsumerCanWriteTheSameDAO() throws Exception {
+        FileDAO dao = new FileDAO(createDataFile().toString());
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            try (Stream<Employee> employees = dao.streamEmployees()) {
+                employees.filter(employee -> employee.getEmpno() <= INITIAL_EMPLOYEES / 2)
+                        .forEach(employee -> assertNotNull(dao.deleteEmployee(employee.getEmpno())));
+            }
+        });
+        assertEquals(INITIAL_EMPLOYEES / 2, dao.findAllEmployees().size());
+        dao.closeConnection();
+    }
+
+    /**
+     * Runs the adding, deleting, updating and reading threads on one DAO and checks the final records, both through
+     * that DAO and through a new DAO with the same mode that reads the data file from scratch.
+     * The first half of the initial employees is deleted and the second half is updated.
+     * @param mode {@link StorageMode} of the shared DAO.
+     * @param cache True to enable the cache mode.
+     * @throws Exception If a thread fails or the files can't be written.
+     */
+    private void assertNoLostUpdates(StorageMode mode, boolean cache) throws Exception {
+        Path data = createDataFile();
+        FileDAO dao = new FileDAO(data.toString());
+        if (cache) {
+            dao.setCacheEnabled(true);
+        }
+        dao.setStorageMode(mode);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Runnable> tasks = new ArrayList<>();
+        for (int t = 0; t < ADDING_THREADS; t++) {
+            int first = FIRST_ADDED_ID + t * ADDS_PER_THREAD;
+            tasks.add(() -> {
+                for (int id = first; id < first + ADDS_PER_THREAD; id++) {
+                    dao.addEmployee(new Employee(id, "Added" + id, "Job", 1));
+                }
+            });
+        }
+        tasks.add(() -> {
+            for (int id = 1; id <= INITIAL_EMPLOYEES / 2; id++) {
+                assertNotNull(dao.deleteEmployee(id), "Employee " + id + " was not deleted");
+            }
+        });
+        tasks.add(() -> {
+            for (int id = INITIAL_EMPLOYEES / 2 + 1; id <= INITIAL_EMPLOYEES; id++) {
+                assertNotNull(dao.updateEmployee(new Employee(id, "Updated" + id, "Job", 1)), "Employee " + id + " was not updated");
+            }
+        });
+        tasks.add(() -> {
+            for (int i = 0; i < 20; i++) {
+                List<Employee> employees = dao.findAllEmployees();
+                assertTrue(employees.size() >= INITIAL_EMPLOYEES / 2, "A reader saw a half-written file: " + employees.size());
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (Runnable task : tasks) {
+                running.add(executor.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : running) {
+                task.get(2, TimeUnit.MINUTES); // Rethrows the failed assertions of the threads
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<Integer, String> expected = expectedNames();
+        assertEquals(expected, namesById(dao.findAllEmployees()));
+        dao.closeConnection(); // Writes the journal into the data file in JOURNALED mode
+
+        FileDAO reread = new FileDAO(data.toString());
+        if (cache) {
+            reread.setCacheEnabled(true);
+        }
+        reread.setStorageMode(mode); // A log file keeps the old versions until it is compacted
+        assertEquals(expected, namesById(reread.findAllEmployees()));
+        reread.closeConnection();
+    }
+
+    /**
+     * Creates the data file with one department and the initial employees.
+     * @return Path of the data file.
+     * @throws IOException If the file can't be written.
+     */
+    private Path createDataFile() throws IOException {
+        StringBuilder lines = new StringBuilder("department(1,Sales,Madrid)\n");
+        for (int id = 1; id <= INITIAL_EMPLOYEES; id++) {
+            lines.append("employee(").append(id).append(",Initial").append(id).append(",Job,1)\n");
+        }
+        Path data = folder.resolve("empresa.txt");
+        Files.writeString(data, lines);
+        return data;
+    }
+
+    /**
+     * Gets the surnames the data file must have once every thread has finished.
+     * @return Surname of every expected employee by its ID.
+     */
+    private static Map<Integer, String> expectedNames() {
+        Map<Integer, String> expected = new TreeMap<>();
+        for (int id = INITIAL_EMPLOYEES / 2 + 1; id <= INITIAL_EMPLOYEES; id++) {
+            expected.put(id, "Updated" + id);
+        }
+        for (int id = FIRST_ADDED_ID; id < FIRST_ADDED_ID + ADDING_THREADS * ADDS_PER_THREAD; id++) {
+            expected.put(id, "Added" + id);
+        }
+        return expected;
+    }
+
+    /**
+     * Gets the surnames of some employees by their ID, failing if an ID appears twice.
+     * @param employees Employees read from a DAO.
+     * @return Surname of every employee by its ID.
+     */
+    private static Map<Integer, String> namesById(List<Employee> employees) {
+        Map<Integer, String> names = new TreeMap<>();
+        for (Employee employee : employees) {
+            String previous = names.put(employee.getEmpno(), employee.getName());
+            assertEquals(null, previous, "Employee " + employee.getEmpno() + " was read twice");
+        }
+        return names;
+    }
+}
@@ -0,0 +1,121 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Test of {@link FileLockManager}: a thread waiting for a file held by another process doesn't block the other methods
+ * of the manager, and idle managers are removed from the JVM.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class FileLockManagerTest {
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+
+    @Test
+    void waitingForAnotherProcessDoesNotBlockTheManager() throws Exception {
+        Path data = folder.resolve("empresa.txt");
+        Files.createFile(data);
+        FileLockManager locks = FileLockManager.forFile(data);
+        long generation;
+        try (FileLockManager.Lock lock = locks.lockExclusive()) {
+            generation = lock.commit();
+        }
+        locks.closeIdle();
+
+        Process holder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), LockHolder.class.getName(),
+                data.resolveSibling(data.getFileName() + FileLockManager.LOCK_SUFFIX).toString())
+                .redirectErrorStream(true).start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals('L', holder.getInputStream().read(), "The other process didn't lock the file");
+            Future<Long> writer = executor.submit(() -> {
+                try (FileLockManager.Lock lock = FileLockManager.forFile(data).lockExclusive()) {
+                    return lock.commit();
+                }
+            });
+            Thread.sleep(200); // The writer is now waiting for the other process
+            assertFalse(writer.isDone());
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                assertEquals(generation, FileLockManager.forFile(data).getGeneration());
+                FileLockManager.forFile(data).closeIdle(); // Does nothing while a lock is being taken
+            });
+
+            holder.getOutputStream().close(); // The other process releases the file and ends
+            assertEquals(generation + 1, writer.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            holder.destroy();
+        }
+    }
+
+    @Test
+    void idleManagerIsRemovedAndReplaced() throws IOException {
+        Path data = folder.resolve("empresa.txt");
+        FileLockManager retired = FileLockManager.forFile(data);
+        assertSame(retired, FileLockManager.forFile(data));
+        try (FileLockManager.Lock lock = retired.lockShared()) {
+            retired.closeIdle(); // Not idle, it is kept
+            assertSame(retired, FileLockManager.forFile(data));
+        }
+
+        retired.closeIdle();
+        FileLockManager current = FileLockManager.forFile(data);
+        assertNotSame(retired, current);
+
+        // A DAO that kept the retired manager uses the current one, so the JVM never locks the file twice
+        try (FileLockManager.Lock lock = retired.lockExclusive()) {
+            assertEquals(current.getGeneration() + 1, lock.commit());
+            assertEquals(retired.getGeneration(), current.getGeneration());
+        }
+        try (FileLockManager.Lock lock = current.lockExclusive()) {
+            lock.commit();
+        }
+    }
+
+    /**
+     * Program run as another process that holds the exclusive lock of a lock file until its standard input is closed.
+     * It writes "L" once the file is locked.
+     */
+    public static final class LockHolder {
+        /**
+         * Locks the file, tells the test and waits.
+         * @param args Path of the lock file.
+         * @throws IOException If the file can't be locked.
+         */
+        public static void main(String[] args) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                 FileLock lock = channel.lock()) {
+                System.out.write('L');
+                System.out.flush();
+                while (System.in.read() >= 0) {
+                    // Holds the lock until the test closes the input
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test of the compaction of data files written in {@link StorageMode#APPEND_LOG} mode: only the last version of every
+ * live record is kept, and the lines appended while a compaction runs are not lost.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class LogCompactorTest {
+    /**
+     * INITIAL_EMPLOYEES -> Employees in the data file before the writer starts (IDs 1 to INITIAL_EMPLOYEES).
+     */
+    static final int INITIAL_EMPLOYEES = 100;
+    /**
+     * FIRST_ADDED_ID -> ID of the first employee added while the compactions run.
+     */
+    static final int FIRST_ADDED_ID = 10_000;
+
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+
+    @Test
+    void onlyTheLastVersionOfLiveRecordsIsKept() throws IOException {
+        Path data = folder.resolve("empresa.txt");
+        Files.writeString(data, String.join("\r\n",
+                "department(1,Sales,Madrid)",
+                "employee(1,First,Job,1)",
+                "employee(2,Deleted,Job,1)",
+                "employee(1,Second,Job,1)",
+                RecordFormat.formatTombstone(RecordFormat.EMPLOYEE_KIND, 2),
+                "employee(3,Old,Job,1)",
+                RecordFormat.formatTombstone(RecordFormat.EMPLOYEE_KIND, 3),
+                "employee(3,AddedAgain,Job,1)",
+                ""));
+
+        long removed = LogCompactor.compact(data, new Object(), FileLockManager.forFile(data));
+
+        assertEquals(5, removed);
+        assertEquals("department(1,Sales,Madrid)\r\nemployee(1,Second,Job,1)\r\nemployee(3,AddedAgain,Job,1)\r\n",
+                Files.readString(data)); // The line separator of the file is kept
+    }
+
+    @Test
+    void appendsDuringCompactionsAreKept() throws Exception {
+        Path data = folder.resolve("empresa.txt");
+        StringBuilder lines = new StringBuilder("department(1,Sales,Madrid)\n");
+        for (int id = 1; id <= INITIAL_EMPLOYEES; id++) {
+            lines.append("employee(").append(id).append(",Initial").append(id).append(",Job,1)\n");
+        }
+        Files.writeString(data, lines);
+        FileDAO dao = new FileDAO(data.toString());
+        dao.setStorageMode(StorageMode.APPEND_LOG);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int id = 1; id <= INITIAL_EMPLOYEES; id++) {
+                    dao.updateEmployee(new Employee(id, "Updated" + id, "Job", 1));
+                    dao.addEmployee(new Employee(FIRST_ADDED_ID + id, "Added" + id, "Job", 1));
+                    if (id % 2 == 0) {
+                        dao.deleteEmployee(id);
+                    }
+                }
+            });
+            while (!writer.isDone()) {
+                assertTrue(dao.compactLog() >= 0, "The compaction failed");
+            }
+            writer.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+        dao.compactLog();
+        dao.closeConnection();
+
+        assertFalse(Files.readString(data).contains(RecordFormat.TOMBSTONE_PREFIX), "A tombstone was kept");
+        FileDAO reread = new FileDAO(data.toString()); // After the last compaction every record has one line
+        assertEquals(expectedNames(), namesById(reread.findAllEmployees()));
+        reread.closeConnection();
+    }
+
+    /**
+     * Gets the surnames the data file must have once the writer has finished: the odd initial employees updated and
+     * every added employee.
+     * @return Surname of every expected employee by its ID.
+     */
+    private static Map<Integer, String> expectedNames() {
+        Map<Integer, String> expected = new TreeMap<>();
+        for (int id = 1; id <= INITIAL_EMPLOYEES; id++) {
+            if (id % 2 != 0) {
+                expected.put(id, "Updated" + id);
+            }
+            expected.put(FIRST_ADDED_ID + id, "Added" + id);
+        }
+        return expected;
+    }
+
+    /**
+     * Gets the surnames of some employees by their ID, failing if an ID appears twice.
+     * @param employees Employees read from a DAO.
+     * @return Surname of every employee by its ID.
+     */
+    private static Map<Integer, String> namesById(List<Employee> employees) {
+        Map<Integer, String> names = new TreeMap<>();
+        for (Employee employee : employees) {
+            String previous = names.put(employee.getEmpno(), employee.getName());
+            assertEquals(null, previous, "Employee " + employee.getEmpno() + " was read twice");
+        }
+        return names;
+    }
+}
@@ -0,0 +1,64 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Test of the numeric fields of {@link MappedRecordReader.Cursor}, which are parsed straight from the bytes and must
+ * accept and reject the same values as {@link Integer#parseInt(String)}.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class MappedRecordReaderTest {
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+
+    @Test
+    void idsAtTheLimitsOfTheIntRangeAreParsed() throws IOException {
+        assertEquals(List.of(Integer.MAX_VALUE, Integer.MIN_VALUE, 0, -7), ids("2147483647", "-2147483648", "0", "-7"));
+    }
+
+    @Test
+    void idsOutOfTheIntRangeAreRejected() {
+        assertThrows(NumberFormatException.class, () -> ids("2147483648"));
+        assertThrows(NumberFormatException.class, () -> ids("-2147483649"));
+        assertThrows(NumberFormatException.class, () -> ids("99999999999"));
+    }
+
+    @Test
+    void idsWithoutDigitsAreRejected() {
+        assertThrows(NumberFormatException.class, () -> ids("-"));
+        assertThrows(NumberFormatException.class, () -> ids(""));
+        assertThrows(NumberFormatException.class, () -> ids("1x"));
+    }
+
+    /**
+     * Writes one employee line for every ID and parses their IDs with {@link MappedRecordReader.Cursor#getInt(int)}.
+     * @param ids IDs as they are written in the file.
+     * @return Parsed IDs, in file order.
+     * @throws IOException If the file can't be written or read.
+     */
+    private List<Integer> ids(String... ids) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (String id : ids) {
+            lines.append("employee(").append(id).append(",Name,Job,1)\n");
+        }
+        Path data = folder.resolve("empresa.txt");
+        Files.writeString(data, lines);
+        List<Integer> parsed = new ArrayList<>();
+        MappedRecordReader.scan(data, cursor -> parsed.add(cursor.getInt(0)));
+        return parsed;
+    }
+}
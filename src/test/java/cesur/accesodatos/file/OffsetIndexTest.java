@@ -0,0 +1,116 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test of the lookups of a {@link FileDAO} with the persistent {@link OffsetIndex} when the data file is edited by hand,
+ * without the locks and without a new generation: the index must notice it and be rebuilt, never returning a wrong record.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class OffsetIndexTest {
+    /**
+     * EMPLOYEES -> Employees in the data file (IDs 1 to EMPLOYEES).
+     */
+    static final int EMPLOYEES = 200;
+
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+    /**
+     * Data file of the test.
+     */
+    private Path data;
+    /**
+     * DAO with the persistent index enabled.
+     */
+    private FileDAO dao;
+    /**
+     * Lines parsed by the last read of the data file.
+     */
+    private final AtomicLong linesRead = new AtomicLong();
+
+    @BeforeEach
+    void createIndexedDAO() throws IOException {
+        data = folder.resolve("empresa.txt");
+        Files.write(data, lines());
+        dao = new FileDAO(data.toString());
+        dao.setPersistentIndexEnabled(true);
+        dao.setListener(new DAOListener() {
+            @Override
+            public void fileRead(long bytes, long lines) {
+                linesRead.set(lines);
+            }
+        });
+        assertEquals("Initial150", dao.findEmployeeById(150).getName());
+        assertEquals(1, linesRead.get(), "The lookup didn't use the index");
+        assertTrue(Files.exists(data.resolveSibling("empresa.txt" + OffsetIndex.INDEX_SUFFIX)));
+    }
+
+    @Test
+    void outsideEditThatMovesTheLinesRebuildsTheIndex() throws IOException {
+        List<String> edited = lines();
+        edited.add(0, "department(2,Extra,Bilbao)");
+        edited.set(edited.indexOf("employee(150,Initial150,Job,1)"), "employee(150,Edited,Job,1)");
+        edited.add("employee(300,Appended,Job,2)");
+        Files.write(data, edited);
+
+        assertEquals("Edited", dao.findEmployeeById(150).getName());
+        assertEquals("Initial1", dao.findEmployeeById(1).getName());
+        assertEquals("Appended", dao.findEmployeeById(300).getName());
+        assertEquals(1, linesRead.get(), "The rebuilt index was not used");
+        dao.closeConnection();
+    }
+
+    @Test
+    void outsideEditOfTheSameSizeRebuildsTheIndex() throws IOException {
+        List<String> edited = lines();
+        int first = edited.indexOf("employee(150,Initial150,Job,1)");
+        Collections.swap(edited, first, first + 1); // Same size and generation, only the offsets change
+        Files.write(data, edited);
+
+        assertEquals(150, dao.findEmployeeById(150).getEmpno());
+        assertEquals(151, dao.findEmployeeById(151).getEmpno());
+        dao.closeConnection();
+    }
+
+    @Test
+    void recordRemovedByAnOutsideEditIsNotFound() throws IOException {
+        List<String> edited = lines();
+        edited.remove("employee(150,Initial150,Job,1)");
+        Files.write(data, edited);
+
+        assertNull(dao.findEmployeeById(150));
+        assertEquals("Initial151", dao.findEmployeeById(151).getName());
+        dao.closeConnection();
+    }
+
+    /**
+     * Gets the lines of the data file before the edits: one department and the employees.
+     * @return Modifiable list of lines.
+     */
+    private static List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        lines.add("department(1,Sales,Madrid)");
+        for (int id = 1; id <= EMPLOYEES; id++) {
+            lines.add("employee(" + id + ",Initial" + id + ",Job,1)");
+        }
+        return lines;
+    }
+}
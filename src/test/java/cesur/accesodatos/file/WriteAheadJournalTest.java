@@ -0,0 +1,213 @@
+package cesur.accesodatos.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery test of the {@link WriteAheadJournal} of a {@link FileDAO} in {@link StorageMode#JOURNALED} mode.
+ * A DAO that is never closed stands for a process that died after its writes were acknowledged: the changes are only
+ * in the journal, and a new DAO must bring them into the data file, once and without the entries that were not
+ * completely written.
+ *
+ * @author Marc Albert Seguí Olmos
+ */
+class WriteAheadJournalTest {
+    /**
+     * INITIAL_EMPLOYEES -> Employees in the data file before the changes (IDs 1 to INITIAL_EMPLOYEES).
+     */
+    static final int INITIAL_EMPLOYEES = 10;
+    /**
+     * ADDED_ID -> ID of the employee added by the journaled changes.
+     */
+    static final int ADDED_ID = 100;
+
+    /**
+     * Folder of the data files, deleted after every test.
+     */
+    @TempDir
+    Path folder;
+
+    @Test
+    void newDAORecoversTheChangesOfACrashedOne() throws IOException {
+        Path data = createDataFile();
+        crashAfterChanges(data);
+        assertFalse(Files.readString(data).contains("employee(" + ADDED_ID + ","), "The change is already in the data file");
+
+        FileDAO recovered = new FileDAO(data.toString());
+        assertTrue(recovered.checkFileExists()); // Applies the journal to the data file
+        assertEquals(expectedNames(), namesById(data));
+        assertEquals(0, Files.size(WriteAheadJournal.journalPath(data)));
+        recovered.closeConnection();
+    }
+
+    @Test
+    void journaledDAORecoversTheChangesOfACrashedOne() throws IOException {
+        Path data = createDataFile();
+        crashAfterChanges(data);
+
+        FileDAO recovered = new FileDAO(data.toString());
+        recovered.setStorageMode(StorageMode.JOURNALED); // Opening the journal applies what was left in it
+        assertEquals(expectedNames(), namesById(recovered.findAllEmployees()));
+        recovered.closeConnection();
+        assertEquals(expectedNames(), namesById(data));
+    }
+
+    @Test
+    void tornTailEntryIsDiscarded() throws IOException {
+        Path data = createDataFile();
+        crashAfterChanges(data);
+        byte[] torn = entry(Long.MAX_VALUE, "employee(999,Torn,Job,1)", true);
+        appendToJournal(data, Arrays.copyOf(torn, torn.length - 5)); // The process died in the middle of it
+
+        FileDAO recovered = new FileDAO(data.toString());
+        recovered.checkFileExists();
+        assertEquals(expectedNames(), namesById(data));
+        recovered.closeConnection();
+    }
+
+    @Test
+    void corruptTailEntryIsDiscarded() throws IOException {
+        Path data = createDataFile();
+        crashAfterChanges(data);
+        appendToJournal(data, entry(Long.MAX_VALUE, "employee(999,Corrupt,Job,1)", false));
+
+        FileDAO recovered = new FileDAO(data.toString());
+        recovered.checkFileExists();
+        assertEquals(expectedNames(), namesById(data));
+        recovered.closeConnection();
+    }
+
+    @Test
+    void entriesAreNotAppliedTwiceAfterACheckpoint() throws IOException {
+        Path data = createDataFile();
+        crashAfterChanges(data);
+        Path journal = WriteAheadJournal.journalPath(data);
+        byte[] entries = Files.readAllBytes(journal);
+
+        FileDAO first = new FileDAO(data.toString());
+        first.checkFileExists();
+        first.closeConnection();
+        Map<Integer, String> checkpointed = namesById(data);
+        assertEquals(expectedNames(), checkpointed);
+
+        // A crash after the data file was replaced but before the journal was emptied leaves the entries behind
+        Files.write(journal, entries);
+        FileDAO second = new FileDAO(data.toString());
+        second.checkFileExists();
+        second.closeConnection();
+        assertEquals(checkpointed, namesById(data));
+
+        FileDAO third = new FileDAO(data.toString());
+        third.checkFileExists(); // Nothing is left to apply
+        third.closeConnection();
+        assertEquals(checkpointed, namesById(data));
+        assertEquals(0, Files.size(journal));
+    }
+
+    /**
+     * Makes some changes with a journaled DAO that is never closed, so they are only in the journal: an employee is
+     * added, the second one is updated and the first one is deleted.
+     * @param data Path of the data file.
+     */
+    private static void crashAfterChanges(Path data) {
+        FileDAO crashed = new FileDAO(data.toString());
+        crashed.setStorageMode(StorageMode.JOURNALED);
+        crashed.addEmployee(new Employee(ADDED_ID, "Added", "Job", 1));
+        crashed.updateEmployee(new Employee(2, "Updated", "Job", 1));
+        crashed.deleteEmployee(1);
+    }
+
+    /**
+     * Gets the surnames the data file must have once the changes of {@link #crashAfterChanges(Path)} are applied.
+     * @return Surname of every expected employee by its ID.
+     */
+    private static Map<Integer, String> expectedNames() {
+        Map<Integer, String> expected = new TreeMap<>();
+        for (int id = 2; id <= INITIAL_EMPLOYEES; id++) {
+            expected.put(id, id == 2 ? "Updated" : "Initial" + id);
+        }
+        expected.put(ADDED_ID, "Added");
+        return expected;
+    }
+
+    /**
+     * Creates the data file with one department and the initial employees.
+     * @return Path of the data file.
+     * @throws IOException If the file can't be written.
+     */
+    private Path createDataFile() throws IOException {
+        StringBuilder lines = new StringBuilder("department(1,Sales,Madrid)\n");
+        for (int id = 1; id <= INITIAL_EMPLOYEES; id++) {
+            lines.append("employee(").append(id).append(",Initial").append(id).append(",Job,1)\n");
+        }
+        Path data = folder.resolve("empresa.txt");
+        Files.writeString(data, lines);
+        return data;
+    }
+
+    /**
+     * Frames a journal entry like {@link WriteAheadJournal#append(long, List)} does.
+     * @param sequence Sequence number of the entry.
+     * @param line Record line of the entry.
+     * @param validChecksum False to store a wrong checksum.
+     * @return Bytes of the entry.
+     */
+    private static byte[] entry(long sequence, String line, boolean validChecksum) {
+        byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        int checksum = validChecksum ? (int) crc.getValue() : (int) crc.getValue() + 1;
+        return ByteBuffer.allocate(WriteAheadJournal.HEADER_SIZE + payload.length)
+                .putInt(payload.length).putLong(sequence).putInt(checksum).put(payload).array();
+    }
+
+    /**
+     * Appends raw bytes to the journal of a data file.
+     * @param data Path of the data file.
+     * @param bytes Bytes to append.
+     * @throws IOException If the journal can't be written.
+     */
+    private static void appendToJournal(Path data, byte[] bytes) throws IOException {
+        Files.write(WriteAheadJournal.journalPath(data), bytes, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the surnames of the employees of a data file with a new DAO in {@link StorageMode#REWRITE} mode, which
+     * doesn't look at the journal.
+     * @param data Path of the data file.
+     * @return Surname of every employee by its ID.
+     */
+    private static Map<Integer, String> namesById(Path data) {
+        return namesById(new FileDAO(data.toString()).findAllEmployees());
+    }
+
+    /**
+     * Gets the surnames of some employees by their ID, failing if an ID appears twice.
+     * @param employees Employees read from a DAO.
+     * @return Surname of every employee by its ID.
+     */
+    private static Map<Integer, String> namesById(List<Employee> employees) {
+        Map<Integer, String> names = new TreeMap<>();
+        for (Employee employee : employees) {
+            String previous = names.put(employee.getEmpno(), employee.getName());
+            assertEquals(null, previous, "Employee " + employee.getEmpno() + " was read twice");
+        }
+        return names;
+    }
+}